@@ -0,0 +1,123 @@
+/**
+ * Project Vaniglia
+ * User: Michele Aiello
+ *
+ * Copyright (C) 2003/2007  Michele Aiello
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ */
+
+package org.vaniglia.examples.messagequeue;
+
+import org.vaniglia.messagequeue.Message;
+import org.vaniglia.messagequeue.codec.BinaryMessageCodec;
+import org.vaniglia.messagequeue.codec.MessageCodec;
+import org.vaniglia.messagequeue.codec.SerializationMessageCodec;
+import org.vaniglia.messagequeue.message.StringArrayMessage;
+import org.vaniglia.messagequeue.message.StringMessage;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.text.NumberFormat;
+
+/**
+ * Message codecs benchmark.
+ * Encodes and decodes the same messages with the SerializationMessageCodec and the BinaryMessageCodec, and prints
+ * the throughput and the average encoded size of both codecs.
+ *
+ * Usage: CodecBenchmark [messages] [rounds]
+ */
+public class CodecBenchmark {
+
+    private static final NumberFormat nf = NumberFormat.getInstance();
+
+    public static void main(String[] args) throws IOException {
+        int numOfMsgs = (args.length > 0) ? Integer.parseInt(args[0]) : 10000;
+        int rounds = (args.length > 1) ? Integer.parseInt(args[1]) : 5;
+
+        Message[] msgs = new Message[numOfMsgs];
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < numOfMsgs; i++) {
+            if ((i % 2) == 0) {
+                msgs[i] = new StringMessage("Message body number "+i);
+            }
+            else {
+                msgs[i] = new StringArrayMessage(new String[] {"field"+i, String.valueOf(now), "some longer field value "+i});
+            }
+            msgs[i].setTimestamp(now + i);
+        }
+
+        System.out.println("Messages: "+numOfMsgs+" - Rounds: "+rounds);
+
+        MessageCodec[] codecs = new MessageCodec[] {
+                SerializationMessageCodec.getInstance(),
+                BinaryMessageCodec.getInstance()
+        };
+
+        for (int i = 0; i < codecs.length; i++) {
+            // First round is a warm up.
+            run(codecs[i], msgs);
+            long bestEncode = Long.MAX_VALUE;
+            long bestDecode = Long.MAX_VALUE;
+            long bytes = 0;
+            for (int r = 0; r < rounds; r++) {
+                long[] result = run(codecs[i], msgs);
+                bestEncode = Math.min(bestEncode, result[0]);
+                bestDecode = Math.min(bestDecode, result[1]);
+                bytes = result[2];
+            }
+            String codecName = codecs[i].getClass().getName();
+            codecName = codecName.substring(codecName.lastIndexOf('.')+1);
+            System.out.println(codecName+": encode "+nf.format(rate(numOfMsgs, bestEncode))+" msg/s - decode "+
+                    nf.format(rate(numOfMsgs, bestDecode))+" msg/s - "+(bytes/numOfMsgs)+" bytes/msg");
+        }
+    }
+
+    /**
+     * Encodes and decodes the messages, one buffer per message as the storages do.
+     *
+     * @return encode nanoseconds, decode nanoseconds and total encoded bytes.
+     */
+    private static long[] run(MessageCodec codec, Message[] msgs) throws IOException {
+        byte[][] encoded = new byte[msgs.length][];
+        long bytes = 0;
+
+        long start = System.nanoTime();
+        for (int i = 0; i < msgs.length; i++) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(128);
+            codec.encode(msgs[i], out);
+            encoded[i] = out.toByteArray();
+        }
+        long encodeTime = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < msgs.length; i++) {
+            Message msg = codec.decode(new ByteArrayInputStream(encoded[i]));
+            if (!msg.equals(msgs[i])) {
+                throw new IOException("Message "+msgs[i].getId()+" not decoded correctly.");
+            }
+            bytes += encoded[i].length;
+        }
+        long decodeTime = System.nanoTime() - start;
+
+        return new long[] {encodeTime, decodeTime, bytes};
+    }
+
+    private static long rate(int numOfMsgs, long nanos) {
+        return (numOfMsgs * 1000000000L) / Math.max(1, nanos);
+    }
+}
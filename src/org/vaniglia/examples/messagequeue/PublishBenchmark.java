@@ -0,0 +1,121 @@
+/**
+ * Project Vaniglia
+ * User: Michele Aiello
+ *
+ * Copyright (C) 2003/2007  Michele Aiello
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ */
+
+package org.vaniglia.examples.messagequeue;
+
+import org.vaniglia.messagequeue.Message;
+import org.vaniglia.messagequeue.MessageQueue;
+import org.vaniglia.messagequeue.MessageQueueException;
+import org.vaniglia.messagequeue.message.StringMessage;
+import org.vaniglia.messagequeue.storage.MessageStorageException;
+import org.vaniglia.messagequeue.storage.MessageStorageParameters;
+import org.vaniglia.messagequeue.storage.MessageStorageType;
+
+import java.text.NumberFormat;
+import java.util.Random;
+
+/**
+ * Multi producer publish throughput benchmark.
+ * Many threads publish messages with random due dates on the same queue. The benchmark is run for the MemoryType,
+ * HeapMemoryType and ConcurrentMemoryType storages.
+ *
+ * Usage: PublishBenchmark [threads] [messages per thread]
+ */
+public class PublishBenchmark {
+
+    private static final NumberFormat nf = NumberFormat.getInstance();
+
+    private static class Publisher extends Thread {
+        private MessageQueue queue;
+        private Message[] msgs;
+        private long[] timestamps;
+
+        public Publisher(MessageQueue queue, Message[] msgs, long[] timestamps) {
+            this.queue = queue;
+            this.msgs = msgs;
+            this.timestamps = timestamps;
+        }
+
+        public void run() {
+            try {
+                for (int i = 0; i < msgs.length; i++) {
+                    queue.publish(msgs[i], timestamps[i]);
+                }
+            } catch (MessageStorageException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    public static void main(String[] args) throws MessageQueueException, InterruptedException {
+        int threads = (args.length > 0) ? Integer.parseInt(args[0]) : 16;
+        int msgsPerThread = (args.length > 1) ? Integer.parseInt(args[1]) : 2000;
+
+        System.out.println("Publishers: "+threads+" - Messages per publisher: "+msgsPerThread);
+
+        MessageStorageType[] types = new MessageStorageType[] {
+                MessageStorageType.MemoryType,
+                MessageStorageType.HeapMemoryType,
+                MessageStorageType.ConcurrentMemoryType
+        };
+
+        for (int i = 0; i < types.length; i++) {
+            // First round is a warm up.
+            run(types[i], threads, msgsPerThread);
+            long rate = run(types[i], threads, msgsPerThread);
+            System.out.println(types[i]+": "+nf.format(rate)+" msg/s");
+        }
+    }
+
+    private static long run(MessageStorageType type, int threads, int msgsPerThread) throws MessageQueueException, InterruptedException {
+        String name = "Benchmark-"+type;
+        MessageQueue queue = MessageQueue.getQueue(name, type,
+                MessageStorageParameters.createMemoryStorageParameters(name, -1));
+
+        // Messages are created upfront, the benchmark measures only the publishing.
+        Random rnd = new Random(1);
+        long now = System.currentTimeMillis();
+        Publisher[] publishers = new Publisher[threads];
+        for (int i = 0; i < threads; i++) {
+            Message[] msgs = new Message[msgsPerThread];
+            long[] timestamps = new long[msgsPerThread];
+            for (int j = 0; j < msgsPerThread; j++) {
+                msgs[j] = new StringMessage("Message "+j);
+                timestamps[j] = now + rnd.nextInt(3600000);
+            }
+            publishers[i] = new Publisher(queue, msgs, timestamps);
+        }
+
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < threads; i++) {
+            publishers[i].start();
+        }
+        for (int i = 0; i < threads; i++) {
+            publishers[i].join();
+        }
+        long elapsed = Math.max(1, System.currentTimeMillis() - start);
+
+        MessageQueue.deleteQueue(name);
+
+        return ((long) threads * msgsPerThread * 1000) / elapsed;
+    }
+}
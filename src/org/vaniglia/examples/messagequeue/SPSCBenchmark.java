@@ -0,0 +1,198 @@
+/**
+ * Project Vaniglia
+ * User: Michele Aiello
+ *
+ * Copyright (C) 2003/2007  Michele Aiello
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ */
+
+package org.vaniglia.examples.messagequeue;
+
+import org.vaniglia.messagequeue.BackPressurePolicy;
+import org.vaniglia.messagequeue.Message;
+import org.vaniglia.messagequeue.MessageListener;
+import org.vaniglia.messagequeue.MessageQueue;
+import org.vaniglia.messagequeue.MessageQueueException;
+import org.vaniglia.messagequeue.SPSCMessageQueue;
+import org.vaniglia.messagequeue.WaitStrategy;
+import org.vaniglia.messagequeue.message.StringMessage;
+import org.vaniglia.messagequeue.storage.MessageStorageException;
+import org.vaniglia.messagequeue.storage.MessageStorageParameters;
+import org.vaniglia.messagequeue.storage.MessageStorageType;
+
+import java.text.NumberFormat;
+
+/**
+ * Single producer single consumer benchmark.
+ * One thread publishes messages due immediately and one listener handles them. The benchmark measures the time
+ * from the first publish to the last message handled with an event driven MessageQueue on the ConcurrentMemoryType
+ * and RingBufferType storages, and with a SPSCMessageQueue for each wait strategy.
+ *
+ * Usage: SPSCBenchmark [messages] [rounds]
+ */
+public class SPSCBenchmark {
+
+    private static final NumberFormat nf = NumberFormat.getInstance();
+
+    private static final int ringSize = 65536;
+
+    /**
+     * Counts the handled messages and notifies when all of them have been handled.
+     */
+    private static class CountingListener implements MessageListener {
+        private final int expected;
+        private int handled = 0;
+
+        public CountingListener(int expected) {
+            this.expected = expected;
+        }
+
+        public void handle(Message msg) {
+            if (++handled == expected) {
+                synchronized (this) {
+                    notifyAll();
+                }
+            }
+        }
+
+        public synchronized void await() throws InterruptedException {
+            while (handled < expected) {
+                wait(100);
+            }
+        }
+    }
+
+    private interface Publisher {
+        void publish(Message msg, long timestamp) throws MessageStorageException;
+    }
+
+    public static void main(String[] args) throws MessageQueueException, InterruptedException {
+        int numOfMsgs = (args.length > 0) ? Integer.parseInt(args[0]) : 1000000;
+        int rounds = (args.length > 1) ? Integer.parseInt(args[1]) : 3;
+
+        Message[] msgs = new Message[numOfMsgs];
+        for (int i = 0; i < numOfMsgs; i++) {
+            msgs[i] = new StringMessage("Message "+i);
+        }
+
+        System.out.println("Messages: "+numOfMsgs+" - Rounds: "+rounds);
+
+        MessageStorageType[] types = new MessageStorageType[] {
+                MessageStorageType.ConcurrentMemoryType,
+                MessageStorageType.RingBufferType
+        };
+        for (int i = 0; i < types.length; i++) {
+            // First round is a warm up.
+            runMessageQueue(types[i], msgs);
+            long best = Long.MAX_VALUE;
+            for (int r = 0; r < rounds; r++) {
+                best = Math.min(best, runMessageQueue(types[i], msgs));
+            }
+            System.out.println("MessageQueue "+types[i]+": "+nf.format(rate(numOfMsgs, best))+" msg/s");
+        }
+
+        WaitStrategy[] strategies = new WaitStrategy[] {
+                WaitStrategy.BusySpin,
+                WaitStrategy.Yield,
+                WaitStrategy.Park
+        };
+        for (int i = 0; i < strategies.length; i++) {
+            runSPSCMessageQueue(strategies[i], msgs);
+            long best = Long.MAX_VALUE;
+            for (int r = 0; r < rounds; r++) {
+                best = Math.min(best, runSPSCMessageQueue(strategies[i], msgs));
+            }
+            System.out.println("SPSCMessageQueue "+strategies[i]+": "+nf.format(rate(numOfMsgs, best))+" msg/s");
+        }
+    }
+
+    private static long runMessageQueue(MessageStorageType type, Message[] msgs) throws MessageQueueException, InterruptedException {
+        String name = "SPSCBenchmark-"+type;
+        MessageStorageParameters params;
+        if (type == MessageStorageType.RingBufferType) {
+            params = MessageStorageParameters.createRingBufferStorageParameters(name, 64*1024*1024);
+        }
+        else {
+            params = MessageStorageParameters.createMemoryStorageParameters(name, ringSize);
+        }
+        final MessageQueue queue = MessageQueue.getQueue(name, type, params);
+        queue.setEventDriven(true);
+        queue.setProcessingInterval(1);
+        queue.setCapacity(ringSize);
+        queue.setBackPressurePolicy(BackPressurePolicy.Block);
+        CountingListener listener = new CountingListener(msgs.length);
+        queue.subscribe(listener);
+        queue.start();
+
+        long elapsed = run(new Publisher() {
+            public void publish(Message msg, long timestamp) throws MessageStorageException {
+                queue.publish(msg, timestamp);
+            }
+        }, listener, msgs);
+
+        MessageQueue.deleteQueue(name);
+        return elapsed;
+    }
+
+    private static long runSPSCMessageQueue(WaitStrategy strategy, Message[] msgs) throws MessageQueueException, InterruptedException {
+        String name = "SPSCBenchmark-"+strategy;
+        final SPSCMessageQueue queue = SPSCMessageQueue.getQueue(name, ringSize, strategy);
+        CountingListener listener = new CountingListener(msgs.length);
+        queue.subscribe(listener);
+        queue.start();
+
+        long elapsed = run(new Publisher() {
+            public void publish(Message msg, long timestamp) throws MessageStorageException {
+                queue.publish(msg, timestamp);
+            }
+        }, listener, msgs);
+
+        SPSCMessageQueue.deleteQueue(name);
+        return elapsed;
+    }
+
+    /**
+     * Publishes the messages from a new thread and waits until all of them have been handled.
+     *
+     * @return the elapsed nanoseconds.
+     */
+    private static long run(final Publisher publisher, CountingListener listener, final Message[] msgs) throws InterruptedException {
+        Thread producer = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    long now = System.currentTimeMillis();
+                    for (int i = 0; i < msgs.length; i++) {
+                        publisher.publish(msgs[i], now);
+                    }
+                } catch (MessageStorageException e) {
+                    e.printStackTrace();
+                }
+            }
+        }, "SPSCBenchmark Producer");
+
+        long start = System.nanoTime();
+        producer.start();
+        listener.await();
+        long elapsed = System.nanoTime() - start;
+        producer.join();
+        return elapsed;
+    }
+
+    private static long rate(int numOfMsgs, long nanos) {
+        return (numOfMsgs * 1000000000L) / Math.max(1, nanos);
+    }
+}
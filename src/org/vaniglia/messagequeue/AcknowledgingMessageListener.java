@@ -0,0 +1,38 @@
+/**
+ * Project Vaniglia
+ * User: Michele Aiello
+ *
+ * Copyright (C) 2003/2007  Michele Aiello
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ */
+
+package org.vaniglia.messagequeue;
+
+/**
+ * A listener that acknowledges the messages asynchronously.
+ * When the queue has a visibility timeout (see MessageQueue.setVisibilityTimeout) the message is removed from the
+ * queue only after all the acknowledging listeners have acknowledged it using the handle. If a listener doesn't
+ * acknowledge the message within the visibility timeout, rejects it or raises an exception, the message is delivered
+ * again to all the listeners.
+ * When the queue has no visibility timeout the handle acknowledgment has no effect and the message is removed as
+ * soon as all the listeners returned, like with plain MessageListeners.
+ */
+public interface AcknowledgingMessageListener {
+
+    void handle(Message msg, MessageHandle handle) throws MessageQueueException;
+
+}
@@ -0,0 +1,54 @@
+/**
+ * Project Vaniglia
+ * User: Michele Aiello
+ *
+ * Copyright (C) 2003/2007  Michele Aiello
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ */
+
+package org.vaniglia.messagequeue;
+
+/**
+ * Enumeration class for the policies applied by a MessageQueue when a message is published and the queue is full
+ * (see MessageQueue.setCapacity).
+ *
+ * - Fail. Publish raises a MessageStorageException. This is the default policy.
+ *
+ * - Block. Publish waits until the queue has room for the messages, or until the publish timeout expires (see
+ *          MessageQueue.setPublishTimeout). In that case publish raises a MessageStorageException.
+ *
+ * - DropOldest. Publish removes the first messages due out of the queue to make room for the new messages. Dropped
+ *               messages are not handled and are logged as warnings. If there are no messages to drop (i.e. they are
+ *               all in handling) publish waits as with the Block policy.
+ */
+public final class BackPressurePolicy {
+
+    public static final BackPressurePolicy Fail = new BackPressurePolicy("Fail");
+    public static final BackPressurePolicy Block = new BackPressurePolicy("Block");
+    public static final BackPressurePolicy DropOldest = new BackPressurePolicy("DropOldest");
+
+    private final String name;
+
+    private BackPressurePolicy(String name) {
+        this.name = name;
+    }
+
+    public String toString() {
+        return name;
+    }
+
+}
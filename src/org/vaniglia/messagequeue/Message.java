@@ -22,28 +22,79 @@
 
 package org.vaniglia.messagequeue;
 
-import org.vaniglia.uid.TimestampUIDGenerator;
+import org.vaniglia.uid.NumericUIDGenerator;
 
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 
 public abstract class Message implements Comparable, Serializable {
 
+    // Same value computed for the 0.5.0 class, so messages persisted by older versions can still be read.
+    private static final long serialVersionUID = -988880029316273582L;
+
+    /**
+     * String form of the message id. For new messages it is rendered from the numeric id only when it is
+     * needed (see getId), and always before the message is serialized.
+     */
     protected String id;
     protected long timestamp;
 
-    static {
-        TimestampUIDGenerator.getInstance().setIndexPaddingDigits(5);
-    }
+    /**
+     * Numeric id of the message, 0 if not computed yet and -1 if the id is not a numeric id.
+     * It is not serialized: messages read from a stream only have the String id and the numeric one is parsed
+     * from it when needed.
+     */
+    private transient long uid;
+
+    /**
+     * Optional key of the message. Messages with the same key are handled in order when the queue is
+     * consumed by a pool of threads with ordering by key. Messages without a key have no ordering constraints.
+     */
+    protected String key;
+
+    /**
+     * Number of failed delivery attempts, see MessageQueue.setRetryPolicy.
+     */
+    protected int attempts;
 
     protected Message() {
-        id = TimestampUIDGenerator.getInstance().getUid();
+        uid = NumericUIDGenerator.getInstance().nextUid();
         timestamp = 0;
     }
 
+    /**
+     * Creates a message with the given id and timestamp. Used to rebuild messages read from a storage.
+     *
+     * @param id the message id.
+     * @param timestamp the message due timestamp.
+     */
+    protected Message(String id, long timestamp) {
+        this.id = id;
+        this.timestamp = timestamp;
+    }
+
     public String getId() {
+        if ((id == null) && (uid > 0)) {
+            id = NumericUIDGenerator.toString(uid);
+        }
         return id;
     }
 
+    /**
+     * Returns the numeric form of the message id. Any id that is the canonical decimal form of a positive long has a
+     * numeric form, including the all digits ids of the TimestampUIDGenerator used by older versions.
+     *
+     * @return the numeric id, or -1 if the id is not numeric or not canonical (i.e. it has leading zeros or it
+     * doesn't fit in a long).
+     */
+    public long getUid() {
+        if (uid == 0) {
+            uid = NumericUIDGenerator.parse(id);
+        }
+        return uid;
+    }
+
     public long getTimestamp() {
         return timestamp;
     }
@@ -52,6 +103,22 @@ public abstract class Message implements Comparable, Serializable {
         this.timestamp = timestamp;
     }
 
+    public String getKey() {
+        return key;
+    }
+
+    public void setKey(String key) {
+        this.key = key;
+    }
+
+    public int getAttempts() {
+        return attempts;
+    }
+
+    public void setAttempts(int attempts) {
+        this.attempts = attempts;
+    }
+
     public int compareTo(Object o) {
         if (this == o) return 0;
         final Message that = (Message)o;
@@ -59,6 +126,11 @@ public abstract class Message implements Comparable, Serializable {
         return ((timestamp<that.timestamp)?-1:((timestamp==that.timestamp)?0:1));
     }
 
+    /**
+     * Two messages are equal if they have the same timestamp and the same id. Ids with a numeric form (see getUid),
+     * generated by this version or by the TimestampUIDGenerator of older versions, are compared as numbers, the
+     * others as Strings.
+     */
     public boolean equals(Object o) {
         if (this == o) return true;
         if (o == null || getClass() != o.getClass()) return false;
@@ -66,15 +138,40 @@ public abstract class Message implements Comparable, Serializable {
         Message message = (Message) o;
 
         if (timestamp != message.timestamp) return false;
-        if (id != null ? !id.equals(message.id) : message.id != null) return false;
+
+        long thisUid = getUid();
+        long thatUid = message.getUid();
+        if ((thisUid > 0) || (thatUid > 0)) {
+            return thisUid == thatUid;
+        }
+
+        String thisId = getId();
+        String thatId = message.getId();
+        if (thisId != null ? !thisId.equals(thatId) : thatId != null) return false;
 
         return true;
     }
 
+    /**
+     * Consistent with equals: the hash code of ids with a numeric form is computed from the number.
+     */
     public int hashCode() {
         int result;
-        result = (id != null ? id.hashCode() : 0);
+        long numericId = getUid();
+        if (numericId > 0) {
+            result = (int) (numericId ^ (numericId >>> 32));
+        }
+        else {
+            String stringId = getId();
+            result = (stringId != null ? stringId.hashCode() : 0);
+        }
         result = 31 * result + (int) (timestamp ^ (timestamp >>> 32));
         return result;
     }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        // Renders the String id, that is the only form of the id that is serialized.
+        getId();
+        out.defaultWriteObject();
+    }
 }
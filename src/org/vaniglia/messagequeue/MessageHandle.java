@@ -0,0 +1,182 @@
+/**
+ * Project Vaniglia
+ * User: Michele Aiello
+ *
+ * Copyright (C) 2003/2007  Michele Aiello
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ */
+
+package org.vaniglia.messagequeue;
+
+import org.vaniglia.time.TimerWheel;
+
+/**
+ * The handle of a message delivered by a queue with a visibility timeout (see MessageQueue.setVisibilityTimeout).
+ * Each AcknowledgingMessageListener receives its own handle of the delivery, that acknowledges the message once.
+ * The message is removed from the queue when all of them have acknowledged it, while it is delivered again if one of
+ * them rejects it or if the visibility timeout expires first. Once the delivery has been completed or redelivered the
+ * handles can't be used anymore.
+ * Handles are thread safe, so messages can be acknowledged by any thread.
+ */
+public final class MessageHandle {
+
+    private final MessageQueue queue;
+    private final Message msg;
+
+    /**
+     * The handle of the delivery, for the handles given to the listeners. Null for the handle of the delivery.
+     */
+    private final MessageHandle delivery;
+    private boolean acked = false;
+
+    private final long deliveryNanos = System.nanoTime();
+
+    private int pendingAcks;
+    private boolean resolved = false;
+    private TimerWheel.Timeout timeout;
+
+    /**
+     * @param queue the queue that delivered the message, or null for deliveries that don't need acknowledgment.
+     * @param pendingAcks the number of acknowledgments required to complete the delivery.
+     */
+    MessageHandle(MessageQueue queue, Message msg, int pendingAcks) {
+        this.queue = queue;
+        this.msg = msg;
+        this.pendingAcks = pendingAcks;
+        this.delivery = null;
+    }
+
+    /**
+     * Creates the handle given to a listener.
+     *
+     * @param delivery the handle of the delivery.
+     */
+    MessageHandle(MessageHandle delivery) {
+        this.queue = delivery.queue;
+        this.msg = delivery.msg;
+        this.delivery = delivery;
+    }
+
+    public Message getMessage() {
+        return msg;
+    }
+
+    /**
+     * Returns true if the delivery has been completed or the message has been redelivered.
+     */
+    public boolean isResolved() {
+        if (delivery != null) {
+            return delivery.isResolved();
+        }
+        synchronized (this) {
+            return resolved;
+        }
+    }
+
+    /**
+     * Acknowledges the message. Only the first acknowledgment of a handle is counted.
+     *
+     * @return false if the handle has been already resolved, i.e. because the visibility timeout expired, or if the
+     * message has been already acknowledged with this handle.
+     */
+    public boolean ack() {
+        if (queue == null) {
+            return true;
+        }
+        if (delivery != null) {
+            synchronized (this) {
+                if (acked) {
+                    return false;
+                }
+                acked = true;
+            }
+            return delivery.ack();
+        }
+        synchronized (this) {
+            if (resolved) {
+                return false;
+            }
+            if (--pendingAcks > 0) {
+                return true;
+            }
+            resolved = true;
+        }
+        cancelTimeout();
+        queue.acknowledged(this);
+        return true;
+    }
+
+    /**
+     * Rejects the message, that is delivered again as soon as possible.
+     *
+     * @return false if the handle has been already resolved.
+     */
+    public boolean nack() {
+        if (queue == null) {
+            return true;
+        }
+        if (delivery != null) {
+            return delivery.nack();
+        }
+        synchronized (this) {
+            if (resolved) {
+                return false;
+            }
+            resolved = true;
+        }
+        cancelTimeout();
+        queue.redeliver(msg);
+        return true;
+    }
+
+    /**
+     * Returns the System.nanoTime of the delivery.
+     */
+    long getDeliveryNanos() {
+        return deliveryNanos;
+    }
+
+    void setTimeout(TimerWheel.Timeout timeout) {
+        synchronized (this) {
+            this.timeout = timeout;
+        }
+    }
+
+    /**
+     * Called by the visibility timer when the timeout expires. The message is handed back to the queue, that
+     * redelivers it from its processing task.
+     */
+    void expire() {
+        synchronized (this) {
+            if (resolved) {
+                return;
+            }
+            resolved = true;
+        }
+        queue.expired(msg);
+    }
+
+    private void cancelTimeout() {
+        TimerWheel.Timeout t;
+        synchronized (this) {
+            t = timeout;
+        }
+        if (t != null) {
+            t.cancel();
+        }
+    }
+}
@@ -28,12 +28,16 @@ import org.vaniglia.messagequeue.storage.MessageStorage;
 import org.vaniglia.messagequeue.storage.MessageStorageException;
 import org.vaniglia.messagequeue.storage.MessageStorageType;
 import org.vaniglia.messagequeue.storage.MessageStorageParameters;
+import org.vaniglia.messagequeue.storage.RecoveryProgress;
 import org.vaniglia.time.SystemDate;
+import org.vaniglia.time.TimerWheel;
 
 import java.util.Timer;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.Vector;
 import java.util.Set;
 import java.util.Iterator;
+import java.util.Collection;
 import java.io.PrintStream;
 
 /**
@@ -52,6 +56,11 @@ public class MessageQueue {
 
     private static final FastHashMap queues = new FastHashMap(5, 0.75f);
 
+    /**
+     * Timer wheel shared by all the queues to track the visibility timeouts of the messages in handling.
+     */
+    private static TimerWheel visibilityTimer;
+
     private int processingIntervalMillis = 1000;
 
     private String name;
@@ -60,8 +69,56 @@ public class MessageQueue {
     private Timer timerThread;
     private MessageQueueProcessingTask processingTask;
 
+    private int consumerThreads = 1;
+    private boolean orderedByKey = false;
+    private MessageQueueConsumerPool consumerPool;
+
+    private int processingBatchSize = 1;
+
+    private boolean eventDriven = false;
+    private volatile MessageQueueSignallingTask signallingTask;
+    private Thread signallingThread;
+
     private Vector listeners;
 
+    private long visibilityTimeoutMillis = 0;
+
+    /**
+     * Messages whose visibility timeout expired. The visibility timer only queues them, they are redelivered by the
+     * processing task so that the timer thread shared by all the queues never waits for a storage.
+     */
+    private final Vector expiredMessages = new Vector();
+
+    private volatile MessageQueueMetrics metrics;
+
+    private RetryPolicy retryPolicy;
+    private MessageQueue deadLetterQueue;
+
+    private volatile long capacity = 0;
+    private volatile BackPressurePolicy backPressurePolicy = BackPressurePolicy.Fail;
+    private volatile long publishTimeoutMillis = 0;
+
+    private volatile long highWatermark = 0;
+    private volatile long lowWatermark = 0;
+    private volatile MessageQueueWatermarkListener watermarkListener;
+    private volatile boolean aboveHighWatermark = false;
+
+    /**
+     * Guards the watermarks transitions. Publishers waiting for room in the queue wait on it.
+     * Publish reads the capacity and watermarks settings without locking and enters the monitor only to wait for
+     * room or to cross a watermark.
+     */
+    private final Object capacityMonitor = new Object();
+
+    /**
+     * Number of messages reserved and released by publishers since the queue has been created. Their difference is
+     * the number of messages being pushed by publishers that already checked there is room for them in the queue.
+     * The counters only grow, so the compare and set in reserve can't succeed on a stale value.
+     */
+    private final AtomicLong reservations = new AtomicLong();
+    private final AtomicLong releases = new AtomicLong();
+    private volatile int waitingPublishers = 0;
+
     /**
      * Private constructor. To create a Message queue, the static method, getQueue must be used.
      *
@@ -143,6 +200,8 @@ public class MessageQueue {
         }
 
         queue.storage.clear();
+        queue.storage.close();
+        queue.setMetricsEnabled(false);
 
         queues.remove(name);
     }
@@ -185,12 +244,350 @@ public class MessageQueue {
      * @throws MessageQueueException if the queue has already been started.
      */
     public void setProcessingInterval(int millis) throws MessageQueueException {
-        if (processingTask != null) {
+        if (isRunning()) {
             throw new MessageQueueException("Queue already started.");
         }
         this.processingIntervalMillis = millis;
     }
 
+    /**
+     * This method returns the maximum number of messages popped out of the storage at once by the processing task.
+     *
+     * @return the processing batch size.
+     */
+    public int getProcessingBatchSize() {
+        return processingBatchSize;
+    }
+
+    /**
+     * This method sets the maximum number of messages popped out of the storage at once by the processing task.
+     * Popping many messages at once reduces the storage overhead (i.e. a single directory scan for the file system
+     * storages), but when the queue has a single consumer thread the messages of a batch are removed from the storage
+     * only after all of them have been handled, so in case of crash the whole batch is handled again at restart.
+     * The default value is 1.
+     *
+     * @param batchSize the processing batch size.
+     * @throws MessageQueueException if the batch size is less than 1.
+     */
+    public void setProcessingBatchSize(int batchSize) throws MessageQueueException {
+        if (batchSize < 1) {
+            throw new MessageQueueException("Invalid processing batch size: "+batchSize);
+        }
+        this.processingBatchSize = batchSize;
+    }
+
+    /**
+     * This method returns the number of threads that dispatch messages to the listeners.
+     *
+     * @return the number of consumer threads.
+     */
+    public int getConsumerThreads() {
+        return consumerThreads;
+    }
+
+    /**
+     * This method sets the number of threads that dispatch messages to the listeners.
+     * With the default value of 1 messages are dispatched one at a time by the queue processing task. With a greater
+     * value the processing task only pops the due messages out of the storage and hands them to a pool of consumer
+     * threads, so many messages are handled concurrently.
+     *
+     * @param threads the number of consumer threads.
+     * @throws MessageQueueException if the queue has already been started or the number of threads is less than 1.
+     */
+    public void setConsumerThreads(int threads) throws MessageQueueException {
+        if (isRunning()) {
+            throw new MessageQueueException("Queue already started.");
+        }
+        if (threads < 1) {
+            throw new MessageQueueException("Invalid number of consumer threads: "+threads);
+        }
+        this.consumerThreads = threads;
+    }
+
+    /**
+     * Returns true if messages with the same key are dispatched in order by the consumer threads.
+     *
+     * @return true if the messages are ordered by key.
+     */
+    public boolean isOrderedByKey() {
+        return orderedByKey;
+    }
+
+    /**
+     * This method sets the ordering of messages when the queue has more than one consumer thread.
+     * If true, messages with the same key (see Message.setKey) are always dispatched by the same consumer thread
+     * in due order. If false (the default) messages are dispatched by the first idle consumer thread.
+     *
+     * @param orderedByKey true to preserve the ordering of messages with the same key.
+     * @throws MessageQueueException if the queue has already been started.
+     */
+    public void setOrderedByKey(boolean orderedByKey) throws MessageQueueException {
+        if (isRunning()) {
+            throw new MessageQueueException("Queue already started.");
+        }
+        this.orderedByKey = orderedByKey;
+    }
+
+    /**
+     * Returns true if the queue is processed as soon as messages are due instead of at fixed intervals.
+     *
+     * @return true if the queue is event driven.
+     */
+    public boolean isEventDriven() {
+        return eventDriven;
+    }
+
+    /**
+     * This method sets the queue processing mode.
+     * By default the queue is processed at fixed intervals (see setProcessingInterval), so a message can wait up to
+     * a whole interval after its due date before being handled. An event driven queue is instead processed by a
+     * dedicated thread that is woken up by publish when a message is due before its next planned processing and that
+     * otherwise sleeps until the due date of the first message in the storage. For storages that can't tell the due
+     * date of their first message, and in any case as a safety net, the processing interval is used as the maximum
+     * sleep time.
+     *
+     * @param eventDriven true to process the queue as soon as messages are due.
+     * @throws MessageQueueException if the queue has already been started.
+     */
+    public void setEventDriven(boolean eventDriven) throws MessageQueueException {
+        if (isRunning()) {
+            throw new MessageQueueException("Queue already started.");
+        }
+        this.eventDriven = eventDriven;
+    }
+
+    /**
+     * Returns the maximum number of messages in the queue, including messages currently in handling.
+     *
+     * @return the capacity set with setCapacity, or the capacity of the storage if none has been set. A value less
+     * than 1 means the queue is unbounded.
+     */
+    public long getCapacity() {
+        long c = capacity;
+        return (c > 0) ? c : storage.getCapacity();
+    }
+
+    /**
+     * This method sets the maximum number of messages in the queue, including messages currently in handling.
+     * When the queue is full publish applies the back-pressure policy (see setBackPressurePolicy). By default the
+     * capacity of the queue is the capacity of its storage, i.e. the size of the memory storages.
+     * Enforcing the capacity requires the size of the storage at each publish, so it should be used only with storages
+     * where size() is cheap.
+     *
+     * @param capacity the queue capacity, a value less than 1 to use the capacity of the storage.
+     */
+    public void setCapacity(long capacity) {
+        synchronized (capacityMonitor) {
+            this.capacity = capacity;
+            capacityMonitor.notifyAll();
+        }
+    }
+
+    /**
+     * Returns the policy applied when a message is published and the queue is full.
+     *
+     * @return the back-pressure policy.
+     */
+    public BackPressurePolicy getBackPressurePolicy() {
+        return backPressurePolicy;
+    }
+
+    /**
+     * This method sets the policy applied when a message is published and the queue is full.
+     * The default policy is BackPressurePolicy.Fail.
+     *
+     * @param policy the back-pressure policy.
+     */
+    public void setBackPressurePolicy(BackPressurePolicy policy) {
+        synchronized (capacityMonitor) {
+            this.backPressurePolicy = policy;
+            capacityMonitor.notifyAll();
+        }
+    }
+
+    /**
+     * Returns the maximum time (milliseconds) publish waits for room in the queue.
+     *
+     * @return the publish timeout, 0 means no timeout.
+     */
+    public long getPublishTimeout() {
+        return publishTimeoutMillis;
+    }
+
+    /**
+     * This method sets the maximum time (milliseconds) publish waits for room in the queue with the
+     * BackPressurePolicy.Block policy, after that publish raises a MessageStorageException.
+     * The default value is 0, publish waits forever.
+     *
+     * @param millis the publish timeout.
+     */
+    public void setPublishTimeout(long millis) {
+        this.publishTimeoutMillis = millis;
+    }
+
+    /**
+     * This method sets the queue watermarks. The watermark listener is notified when the number of messages in the
+     * queue reaches the high watermark and than when it goes back to the low watermark.
+     *
+     * @param high the high watermark.
+     * @param low the low watermark.
+     * @throws MessageQueueException if the low watermark is not less than the high watermark.
+     */
+    public void setWatermarks(long high, long low) throws MessageQueueException {
+        if ((low < 0) || (low >= high)) {
+            throw new MessageQueueException("Invalid watermarks: high = "+high+", low = "+low);
+        }
+        synchronized (capacityMonitor) {
+            this.highWatermark = high;
+            this.lowWatermark = low;
+            this.aboveHighWatermark = false;
+        }
+    }
+
+    public long getHighWatermark() {
+        return highWatermark;
+    }
+
+    public long getLowWatermark() {
+        return lowWatermark;
+    }
+
+    /**
+     * This method sets the listener notified when the number of messages in the queue crosses the watermarks.
+     * The watermarks must be set with setWatermarks.
+     *
+     * @param listener the watermark listener, null to remove it.
+     */
+    public void setWatermarkListener(MessageQueueWatermarkListener listener) {
+        synchronized (capacityMonitor) {
+            this.watermarkListener = listener;
+            this.aboveHighWatermark = false;
+        }
+    }
+
+    /**
+     * Returns the time (milliseconds) after which messages not acknowledged are delivered again.
+     *
+     * @return the visibility timeout, 0 if messages are removed as soon as they have been handled.
+     */
+    public long getVisibilityTimeout() {
+        return visibilityTimeoutMillis;
+    }
+
+    /**
+     * This method sets the acknowledgment mode of the queue.
+     * By default (visibility timeout = 0) a message is removed from the queue as soon as all the listeners returned,
+     * so a slow listener delays all the following messages and a message whose listener crashed is never handled
+     * again. With a visibility timeout the message is removed only when all the AcknowledgingMessageListeners have
+     * acknowledged it using the MessageHandle, that can be done asynchronously by other threads, and messages not
+     * acknowledged within the timeout are requeued and delivered again to all the listeners. Plain MessageListeners
+     * acknowledge the message when they return.
+     * Messages are delivered at least once, listeners must tolerate duplicates.
+     *
+     * @param millis the visibility timeout, 0 to remove messages as soon as they have been handled.
+     * @throws MessageQueueException if the queue has already been started or the timeout is negative.
+     */
+    public void setVisibilityTimeout(long millis) throws MessageQueueException {
+        if (isRunning()) {
+            throw new MessageQueueException("Queue already started.");
+        }
+        if (millis < 0) {
+            throw new MessageQueueException("Invalid visibility timeout: "+millis);
+        }
+        this.visibilityTimeoutMillis = millis;
+    }
+
+    /**
+     * Returns the policy applied to messages whose delivery failed.
+     *
+     * @return the retry policy, or null if failed messages are not retried.
+     */
+    public RetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    /**
+     * This method sets the policy applied to messages whose delivery failed, that is messages for which a listener
+     * raised a MessageQueueException or, for queues with a visibility timeout, messages rejected or not acknowledged
+     * in time.
+     * Without a retry policy (the default) failed messages are removed like the others, or delivered again
+     * immediately by queues with a visibility timeout. With a retry policy failed messages are requeued with the
+     * policy delay and delivered again to all the listeners, until the maximum number of attempts is reached. Than
+     * they are moved to the dead letter queue (see setDeadLetterQueue) or removed if there is none.
+     * Storages that pop messages in push order (see MessageStorage.isFifo) don't support a retry policy, a message
+     * requeued with a delay would hold back all the messages behind it.
+     *
+     * @param policy the retry policy, null to not retry failed messages.
+     * @throws MessageQueueException if the queue storage pops messages in push order.
+     */
+    public void setRetryPolicy(RetryPolicy policy) throws MessageQueueException {
+        if ((policy != null) && storage.isFifo()) {
+            throw new MessageQueueException("Queue "+name+" storage pops messages in push order, it doesn't support a retry policy.");
+        }
+        this.retryPolicy = policy;
+    }
+
+    /**
+     * Returns the queue where messages are moved when they failed all the delivery attempts.
+     *
+     * @return the dead letter queue, or null.
+     */
+    public MessageQueue getDeadLetterQueue() {
+        return deadLetterQueue;
+    }
+
+    /**
+     * This method sets the queue where messages are moved when they failed all the delivery attempts allowed by the
+     * retry policy. Messages are published to the dead letter queue with the current time and keep their number of
+     * attempts.
+     *
+     * @param queue the dead letter queue, null to remove failed messages.
+     * @throws MessageQueueException if the dead letter queue is this queue.
+     */
+    public void setDeadLetterQueue(MessageQueue queue) throws MessageQueueException {
+        if (queue == this) {
+            throw new MessageQueueException("A queue can't be its own dead letter queue.");
+        }
+        this.deadLetterQueue = queue;
+    }
+
+    /**
+     * This method enables or disables the collection of the queue metrics.
+     * Enabling the metrics creates and starts a new set of monitors, while disabling them stops the monitors and
+     * detaches them from the queue. The metrics are disabled by default.
+     *
+     * @param enabled true to collect the metrics.
+     */
+    public synchronized void setMetricsEnabled(boolean enabled) {
+        if (enabled && (metrics == null)) {
+            MessageQueueMetrics newMetrics = new MessageQueueMetrics(name);
+            newMetrics.start();
+            metrics = newMetrics;
+        }
+        else if (!enabled && (metrics != null)) {
+            metrics.stop();
+            metrics = null;
+        }
+    }
+
+    /**
+     * Returns the queue metrics.
+     *
+     * @return the metrics, or null if the metrics are not enabled.
+     */
+    public MessageQueueMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Returns true if the queue has been started.
+     *
+     * @return true if the queue is running.
+     */
+    public boolean isRunning() {
+        return (timerThread != null) || (signallingThread != null);
+    }
+
     /**
      * Starts the queue processing task.
      *
@@ -209,11 +606,24 @@ public class MessageQueue {
      * @throws MessageQueueException if the queue is already running
      */
     public void start(long interval) throws MessageQueueException {
-        if (timerThread == null) {
-            logger.info("Starting queue "+name+" with processing interval = "+interval+"ms");
-            timerThread = new Timer(true);
-            processingTask = new MessageQueueProcessingTask(this);
-            timerThread.scheduleAtFixedRate(processingTask, interval, interval);
+        if (!isRunning()) {
+            logger.info("Starting queue "+name+" with processing interval = "+interval+"ms"+(eventDriven ? " (event driven)" : ""));
+            if (consumerThreads > 1) {
+                logger.info("Queue "+name+" uses "+consumerThreads+" consumer threads"+(orderedByKey ? " ordered by key" : ""));
+                consumerPool = new MessageQueueConsumerPool(this, consumerThreads, orderedByKey);
+                consumerPool.start();
+            }
+            if (eventDriven) {
+                signallingTask = new MessageQueueSignallingTask(this, interval);
+                signallingThread = new Thread(signallingTask, name+" Processing");
+                signallingThread.setDaemon(true);
+                signallingThread.start();
+            }
+            else {
+                timerThread = new Timer(true);
+                processingTask = new MessageQueueProcessingTask(this);
+                timerThread.scheduleAtFixedRate(processingTask, interval, interval);
+            }
         }
         else {
             throw new MessageQueueException("Queue "+name+" already running.");
@@ -226,11 +636,22 @@ public class MessageQueue {
      * @throws MessageQueueException if the queue is not running
      */
     public void stop() throws MessageQueueException {
-        if (timerThread != null) {
+        if (isRunning()) {
             logger.info("Stopping queue "+name);
-            timerThread.cancel();
-            timerThread = null;
-            processingTask = null;
+            if (timerThread != null) {
+                timerThread.cancel();
+                timerThread = null;
+                processingTask = null;
+            }
+            if (signallingThread != null) {
+                signallingTask.shutdown();
+                signallingTask = null;
+                signallingThread = null;
+            }
+            if (consumerPool != null) {
+                consumerPool.shutdown();
+                consumerPool = null;
+            }
         }
         else {
             throw new MessageQueueException("Queue "+name+" not running.");
@@ -239,12 +660,13 @@ public class MessageQueue {
 
     /**
      * Publish a message to the queue using the current time.
+     * Publishing does not lock the queue, concurrency is handled by the underlaying storage.
      *
      * @param msg the message to publish
      *
      * @throws MessageStorageException in case something goes wrong with the underlaying storage system.
      */
-    public synchronized void publish(Message msg) throws MessageStorageException {
+    public void publish(Message msg) throws MessageStorageException {
         publish(msg, SystemDate.getInstance().currentTimeMillis());
     }
 
@@ -256,11 +678,109 @@ public class MessageQueue {
      *
      * @throws MessageStorageException in case something goes wrong with the underlaying storage system.
      */
-    public synchronized void publish(Message msg, long timestamp) throws MessageStorageException {
+    public void publish(Message msg, long timestamp) throws MessageStorageException {
         if (logger.isDebugEnabled()) {
             logger.debug("Publishing message with ID: "+msg.getId()+" TS: "+timestamp);
         }
-        storage.push(msg, timestamp);
+        boolean bounded = reserve(1);
+        MessageQueueMetrics m = metrics;
+        long start = (m != null) ? System.nanoTime() : 0;
+        try {
+            storage.push(msg, timestamp);
+        } finally {
+            if (bounded) {
+                unreserve(1);
+            }
+        }
+        if (m != null) {
+            m.record(MessageQueueMetrics.publishMetric, 1, System.nanoTime() - start);
+        }
+        messagesAdded();
+
+        MessageQueueSignallingTask task = signallingTask;
+        if (task != null) {
+            task.signal(timestamp);
+        }
+    }
+
+    /**
+     * Publish a batch of messages to the queue using the current time.
+     *
+     * @param msgs the messages to publish
+     *
+     * @throws MessageStorageException in case something goes wrong with the underlaying storage system.
+     */
+    public void publish(Message[] msgs) throws MessageStorageException {
+        publish(msgs, SystemDate.getInstance().currentTimeMillis());
+    }
+
+    /**
+     * Publish a batch of messages to the queue using the current time.
+     *
+     * @param msgs the collection of messages to publish
+     *
+     * @throws MessageStorageException in case something goes wrong with the underlaying storage system.
+     */
+    public void publish(Collection msgs) throws MessageStorageException {
+        publish((Message[]) msgs.toArray(new Message[msgs.size()]));
+    }
+
+    /**
+     * Publish a batch of messages to the queue, all with the same due time.
+     *
+     * @param msgs the messages to publish
+     * @param timestamp the messages due time.
+     *
+     * @throws MessageStorageException in case something goes wrong with the underlaying storage system.
+     */
+    public void publish(Message[] msgs, long timestamp) throws MessageStorageException {
+        long[] timestamps = new long[msgs.length];
+        for (int i = 0; i < timestamps.length; i++) {
+            timestamps[i] = timestamp;
+        }
+        publish(msgs, timestamps);
+    }
+
+    /**
+     * Publish a batch of messages to the queue.
+     * The whole batch is pushed in the storage at once, see MessageStorage.push(Message[], long[]), so if the queue
+     * is bounded the back-pressure policy is applied to the whole batch.
+     *
+     * @param msgs the messages to publish
+     * @param timestamps the messages due times.
+     *
+     * @throws MessageStorageException in case something goes wrong with the underlaying storage system.
+     */
+    public void publish(Message[] msgs, long[] timestamps) throws MessageStorageException {
+        if (msgs.length == 0) {
+            return;
+        }
+        if (logger.isDebugEnabled()) {
+            logger.debug("Publishing "+msgs.length+" messages");
+        }
+        boolean bounded = reserve(msgs.length);
+        MessageQueueMetrics m = metrics;
+        long start = (m != null) ? System.nanoTime() : 0;
+        try {
+            storage.push(msgs, timestamps);
+        } finally {
+            if (bounded) {
+                unreserve(msgs.length);
+            }
+        }
+        if (m != null) {
+            m.record(MessageQueueMetrics.publishMetric, msgs.length, System.nanoTime() - start);
+        }
+        messagesAdded();
+
+        MessageQueueSignallingTask task = signallingTask;
+        if (task != null) {
+            long first = Long.MAX_VALUE;
+            for (int i = 0; i < timestamps.length; i++) {
+                first = Math.min(first, timestamps[i]);
+            }
+            task.signal(first);
+        }
     }
 
     /**
@@ -271,6 +791,21 @@ public class MessageQueue {
      * @throws MessageQueueException if the listener is already subscribed
      */
     public synchronized void subscribe(MessageListener listener) throws MessageQueueException {
+        addListener(listener);
+    }
+
+    /**
+     * Subscribe a listener that acknowledges messages asynchronously to the queue.
+     *
+     * @param listener the listener to subscribe
+     *
+     * @throws MessageQueueException if the listener is already subscribed
+     */
+    public synchronized void subscribe(AcknowledgingMessageListener listener) throws MessageQueueException {
+        addListener(listener);
+    }
+
+    private void addListener(Object listener) throws MessageQueueException {
         for (int i = 0; i < listeners.size(); i++) {
             if (listener.equals(listeners.get(i))) {
                 throw new MessageQueueException("Listener already subscribed");
@@ -278,6 +813,11 @@ public class MessageQueue {
         }
 
         listeners.add(listener);
+
+        MessageQueueSignallingTask task = signallingTask;
+        if (task != null) {
+            task.signal(Long.MIN_VALUE);
+        }
     }
 
     /**
@@ -288,6 +828,22 @@ public class MessageQueue {
      * @throws MessageQueueException if the listener is not subscribed
      */
     public synchronized void unsubscribe(MessageListener listener) throws MessageQueueException {
+        removeListener(listener);
+    }
+
+    /**
+     * Unsubscribes an acknowledging listener from the queue. Messages already delivered to the listener can still
+     * be acknowledged.
+     *
+     * @param listener the listener to unsubscribe
+     *
+     * @throws MessageQueueException if the listener is not subscribed
+     */
+    public synchronized void unsubscribe(AcknowledgingMessageListener listener) throws MessageQueueException {
+        removeListener(listener);
+    }
+
+    private void removeListener(Object listener) throws MessageQueueException {
         boolean removed = listeners.remove(listener);
         if (!removed) {
             throw new MessageQueueException("Listener not subscribed");
@@ -300,40 +856,496 @@ public class MessageQueue {
     public synchronized void clear() {
         if (storage != null) {
             storage.clear();
+            messagesRemoved();
         }
     }
 
+    /**
+     * Reserves room in the queue for the messages about to be pushed, applying the back-pressure policy if the queue
+     * is full. The reservation must be released with unreserve once the messages have been pushed.
+     *
+     * @param count the number of messages.
+     *
+     * @return false if the queue is unbounded, in that case nothing has been reserved.
+     *
+     * @throws MessageStorageException if there is no room for the messages.
+     */
+    private boolean reserve(int count) throws MessageStorageException {
+        long deadline = 0;
+        for (;;) {
+            long limit = getCapacity();
+            if (limit <= 0) {
+                return false;
+            }
+            if (count > limit) {
+                throw new MessageStorageException("Queue "+name+" can't hold "+count+" messages, capacity is "+limit+".");
+            }
+
+            // A message released has already been pushed, so it is counted by size() when read after releases.
+            long reserved = reservations.get();
+            long free = limit - (reserved - releases.get()) - storage.size();
+            if (free >= count) {
+                if (reservations.compareAndSet(reserved, reserved + count)) {
+                    return true;
+                }
+                continue;
+            }
+
+            BackPressurePolicy policy = backPressurePolicy;
+            if (policy == BackPressurePolicy.Fail) {
+                throw new MessageStorageException("Queue "+name+" is full.");
+            }
+            if ((policy == BackPressurePolicy.DropOldest) && (dropOldest((int) (count - free)) > 0)) {
+                continue;
+            }
+
+            long now = SystemDate.getInstance().currentTimeMillis();
+            if (deadline == 0) {
+                long timeout = publishTimeoutMillis;
+                deadline = (timeout > 0) ? now + timeout : Long.MAX_VALUE;
+            }
+            long wait = deadline - now;
+            if (wait <= 0) {
+                throw new MessageStorageException("Queue "+name+" is full. Publish timeout expired.");
+            }
+            synchronized (capacityMonitor) {
+                waitingPublishers++;
+                try {
+                    // Messages removed before waitingPublishers was incremented did not notify us.
+                    if (limit - (reservations.get() - releases.get()) - storage.size() >= count) {
+                        continue;
+                    }
+                    // The wait is bounded by the processing interval in case messages are removed by someone else
+                    // (i.e. another JVM sharing the storage).
+                    capacityMonitor.wait(Math.min(wait, processingIntervalMillis));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new MessageStorageException("Interrupted while waiting for room in queue "+name+".");
+                } finally {
+                    waitingPublishers--;
+                }
+            }
+        }
+    }
+
+    private void unreserve(int count) {
+        releases.addAndGet(count);
+    }
+
+    /**
+     * Removes the first messages due out of the storage.
+     *
+     * @param count the number of messages to drop.
+     *
+     * @return the number of messages dropped.
+     */
+    private int dropOldest(int count) {
+        Message[] msgs = storage.pop(Long.MAX_VALUE, count);
+        for (int i = 0; i < msgs.length; i++) {
+            logger.warn("Queue "+name+" is full. Dropping message "+msgs[i].getId());
+        }
+        try {
+            storage.removeMessages(msgs);
+        } catch (MessageStorageException e) {
+            logger.error("Exception removing a batch of "+msgs.length+" dropped messages", e);
+        }
+        return msgs.length;
+    }
+
+    /**
+     * Checks the high watermark after messages have been published.
+     */
+    private void messagesAdded() {
+        MessageQueueWatermarkListener listener = watermarkListener;
+        if ((listener == null) || aboveHighWatermark) {
+            return;
+        }
+
+        long size = storage.size();
+        if (size < highWatermark) {
+            return;
+        }
+        synchronized (capacityMonitor) {
+            if (aboveHighWatermark || (size < highWatermark)) {
+                return;
+            }
+            aboveHighWatermark = true;
+        }
+        listener.highWatermarkReached(this, size);
+    }
+
+    /**
+     * Wakes up the publishers waiting for room in the queue and checks the low watermark after messages have been
+     * removed.
+     */
+    private void messagesRemoved() {
+        if (waitingPublishers > 0) {
+            synchronized (capacityMonitor) {
+                capacityMonitor.notifyAll();
+            }
+        }
+        MessageQueueWatermarkListener listener = watermarkListener;
+        if ((listener == null) || !aboveHighWatermark) {
+            return;
+        }
+
+        long size = storage.size();
+        if (size > lowWatermark) {
+            return;
+        }
+        synchronized (capacityMonitor) {
+            if (!aboveHighWatermark || (size > lowWatermark)) {
+                return;
+            }
+            aboveHighWatermark = false;
+        }
+        listener.lowWatermarkReached(this, size);
+    }
+
     /**
      * This is the method called by the Queue Processing Task.
      */
     void handle() {
+        redeliverExpired();
+
         if (listeners.size() == 0) {
             logger.debug("Skipping messages processing. No listeners subscribed.");
             return;
         }
 
-        Message msg = null;
+        MessageQueueConsumerPool pool = consumerPool;
 
-        msg = storage.pop();
-        while (msg != null) {
-            logger.info("Begin Processing message "+msg.getId());
-            for (int i = 0; i < listeners.size(); i++) {
-                try {
-                    ((MessageListener)listeners.get(i)).handle(msg);
-                } catch (MessageQueueException e) {
-                    logger.error("Exception handling message '"+msg.getId()+"'", e);
+        Message[] msgs = popDue();
+        while (msgs.length > 0) {
+            if (pool != null) {
+                for (int i = 0; i < msgs.length; i++) {
+                    try {
+                        pool.submit(msgs[i]);
+                    } catch (InterruptedException e) {
+                        logger.warn("Interrupted while handing message '"+msgs[i].getId()+"' to the consumers. Dispatching it now.");
+                        dispatch(msgs[i]);
+                    }
+                }
+            }
+            else if ((msgs.length == 1) || (visibilityTimeoutMillis > 0)) {
+                for (int i = 0; i < msgs.length; i++) {
+                    dispatch(msgs[i]);
+                }
+            }
+            else {
+                // Each message waits for the removal of the whole batch.
+                MessageQueueMetrics m = metrics;
+                Vector delivered = new Vector(msgs.length);
+                long[] deliveryStarts = new long[msgs.length];
+                for (int i = 0; i < msgs.length; i++) {
+                    long start = (m != null) ? System.nanoTime() : 0;
+                    if (deliver(msgs[i])) {
+                        deliveryStarts[delivered.size()] = start;
+                        delivered.add(msgs[i]);
+                    }
+                    else {
+                        deliveryFailed(msgs[i]);
+                    }
+                }
+                if (delivered.size() > 0) {
+                    try {
+                        storage.removeMessages((Message[]) delivered.toArray(new Message[delivered.size()]));
+                    } catch (MessageStorageException e) {
+                        logger.error("Exception removing a batch of "+delivered.size()+" messages", e);
+                    }
+                    if (m != null) {
+                        // The acknowledgment time of a message goes from its delivery to the removal of the batch.
+                        long removed = System.nanoTime();
+                        long ackNanos = 0;
+                        for (int i = 0; i < delivered.size(); i++) {
+                            ackNanos += removed - deliveryStarts[i];
+                        }
+                        m.record(MessageQueueMetrics.ackMetric, delivered.size(), ackNanos);
+                    }
+                    messagesRemoved();
+                }
+            }
+
+            msgs = popDue();
+        }
+    }
+
+    /**
+     * Pops the due messages out of the storage.
+     */
+    private Message[] popDue() {
+        MessageQueueMetrics m = metrics;
+        if (m == null) {
+            return storage.pop(SystemDate.getInstance().currentTimeMillis(), processingBatchSize);
+        }
+
+        long start = System.nanoTime();
+        Message[] msgs = storage.pop(SystemDate.getInstance().currentTimeMillis(), processingBatchSize);
+        m.record(MessageQueueMetrics.popMetric, msgs.length, System.nanoTime() - start);
+        return msgs;
+    }
+
+    /**
+     * Dispatches a message to all the listeners and removes it from the storage.
+     * This method is called by the Queue Processing Task or by the consumer threads.
+     *
+     * @param msg the message to dispatch.
+     */
+    void dispatch(Message msg) {
+        if (visibilityTimeoutMillis > 0) {
+            deliverWithHandle(msg);
+            return;
+        }
+
+        long start = System.nanoTime();
+        if (!deliver(msg)) {
+            deliveryFailed(msg);
+            return;
+        }
+
+        try {
+            storage.removeMessage(msg);
+        } catch (MessageStorageException e) {
+            logger.error("Exception removing message '"+msg.getId()+"'", e);
+        }
+        MessageQueueMetrics m = metrics;
+        if (m != null) {
+            m.record(MessageQueueMetrics.ackMetric, 1, System.nanoTime() - start);
+        }
+        messagesRemoved();
+    }
+
+    /**
+     * Delivers a message to all the listeners.
+     *
+     * @param msg the message to deliver.
+     *
+     * @return false if a listener raised an exception.
+     */
+    private boolean deliver(Message msg) {
+        boolean delivered = true;
+        MessageQueueMetrics m = metrics;
+        long start = (m != null) ? dispatched(m, msg) : 0;
+
+        logger.info("Begin Processing message "+msg.getId());
+        for (int i = 0; i < listeners.size(); i++) {
+            Object listener = listeners.get(i);
+            try {
+                if (listener instanceof AcknowledgingMessageListener) {
+                    // Without visibility timeout the acknowledgment has no effect.
+                    ((AcknowledgingMessageListener) listener).handle(msg, new MessageHandle(null, msg, 0));
                 }
+                else {
+                    ((MessageListener) listener).handle(msg);
+                }
+            } catch (MessageQueueException e) {
+                logger.error("Exception handling message '"+msg.getId()+"'", e);
+                delivered = false;
+            }
+        }
+        logger.info("Finished Processing message "+msg.getId());
+
+        if (m != null) {
+            m.record(MessageQueueMetrics.listenerMetric, 1, System.nanoTime() - start);
+        }
+        return delivered;
+    }
+
+    /**
+     * Records the delay of a message being dispatched.
+     *
+     * @return the System.nanoTime of the dispatch.
+     */
+    private long dispatched(MessageQueueMetrics m, Message msg) {
+        long delay = SystemDate.getInstance().currentTimeMillis() - msg.getTimestamp();
+        m.record(MessageQueueMetrics.delayMetric, 1, Math.max(delay, 0) * 1000000);
+        return System.nanoTime();
+    }
+
+    /**
+     * Delivers a message to all the listeners, the message will be removed when it has been acknowledged by all
+     * the AcknowledgingMessageListeners or requeued when the visibility timeout expires.
+     *
+     * @param msg the message to deliver.
+     */
+    private void deliverWithHandle(Message msg) {
+        Object[] currentListeners = listeners.toArray();
+        int acknowledging = 0;
+        for (int i = 0; i < currentListeners.length; i++) {
+            if (currentListeners[i] instanceof AcknowledgingMessageListener) {
+                acknowledging++;
             }
-            logger.info("Finished Processing message "+msg.getId());
+        }
 
+        // The queue holds an acknowledgment until all the listeners have been called, so the message is not
+        // removed while it is still being delivered.
+        final MessageHandle handle = new MessageHandle(this, msg, acknowledging+1);
+        handle.setTimeout(getVisibilityTimer().schedule(new Runnable() {
+            public void run() {
+                handle.expire();
+            }
+        }, visibilityTimeoutMillis));
+
+        MessageQueueMetrics m = metrics;
+        long start = (m != null) ? dispatched(m, msg) : 0;
+
+        logger.info("Begin Processing message "+msg.getId());
+        for (int i = 0; i < currentListeners.length; i++) {
             try {
-                storage.removeMessage(msg);
-            } catch (MessageStorageException e) {
-                logger.error("Exception removing message '"+msg.getId()+"'", e);
+                if (currentListeners[i] instanceof AcknowledgingMessageListener) {
+                    ((AcknowledgingMessageListener) currentListeners[i]).handle(msg, new MessageHandle(handle));
+                }
+                else {
+                    ((MessageListener) currentListeners[i]).handle(msg);
+                }
+            } catch (MessageQueueException e) {
+                logger.error("Exception handling message '"+msg.getId()+"'", e);
+                handle.nack();
             }
+        }
+        if (m != null) {
+            m.record(MessageQueueMetrics.listenerMetric, 1, System.nanoTime() - start);
+        }
+        handle.ack();
+        logger.info("Finished Processing message "+msg.getId());
+    }
 
-            msg = storage.pop(SystemDate.getInstance().currentTimeMillis());
+    private static synchronized TimerWheel getVisibilityTimer() {
+        if (visibilityTimer == null) {
+            visibilityTimer = new TimerWheel("MessageQueue Visibility Timer", 50, 1024);
         }
+        return visibilityTimer;
+    }
+
+    /**
+     * Called by the MessageHandle when the message has been acknowledged by all the listeners.
+     */
+    void acknowledged(MessageHandle handle) {
+        Message msg = handle.getMessage();
+        try {
+            storage.removeMessage(msg);
+        } catch (MessageStorageException e) {
+            logger.error("Exception removing message '"+msg.getId()+"'", e);
+        }
+        MessageQueueMetrics m = metrics;
+        if (m != null) {
+            m.record(MessageQueueMetrics.ackMetric, 1, System.nanoTime() - handle.getDeliveryNanos());
+        }
+        messagesRemoved();
+    }
+
+    /**
+     * Called by the MessageHandle when the message has been rejected.
+     */
+    void redeliver(Message msg) {
+        deliveryFailed(msg);
+    }
+
+    /**
+     * Called by the MessageHandle, from the visibility timer thread, when the visibility timeout of a message
+     * expired. The message is redelivered by the processing task.
+     */
+    void expired(Message msg) {
+        expiredMessages.add(msg);
+
+        MessageQueueSignallingTask task = signallingTask;
+        if (task != null) {
+            task.signal(SystemDate.getInstance().currentTimeMillis());
+        }
+    }
+
+    /**
+     * Redelivers the messages whose visibility timeout expired.
+     */
+    private void redeliverExpired() {
+        while (expiredMessages.size() > 0) {
+            Message msg = (Message) expiredMessages.remove(0);
+            logger.warn("Visibility timeout expired for message "+msg.getId()+".");
+            deliveryFailed(msg);
+        }
+    }
+
+    /**
+     * Handles a message whose delivery failed, applying the retry policy.
+     *
+     * @param msg the message, still in the storage special stocking area.
+     */
+    private void deliveryFailed(Message msg) {
+        long now = SystemDate.getInstance().currentTimeMillis();
+        RetryPolicy policy = retryPolicy;
+        if (policy == null) {
+            if (visibilityTimeoutMillis > 0) {
+                logger.warn("Delivery of message "+msg.getId()+" failed. The message will be delivered again.");
+                requeue(msg, now);
+            }
+            else {
+                remove(msg);
+            }
+            return;
+        }
+
+        int attempts = msg.getAttempts() + 1;
+        msg.setAttempts(attempts);
+        if (policy.canRetry(attempts)) {
+            long delay = policy.getDelay(attempts);
+            logger.warn("Delivery of message "+msg.getId()+" failed "+attempts+" times. Retrying in "+delay+"ms.");
+            requeue(msg, now + delay);
+            return;
+        }
+
+        MessageQueue dlq = deadLetterQueue;
+        if (dlq == null) {
+            logger.error("Delivery of message "+msg.getId()+" failed "+attempts+" times. Removing the message.");
+            remove(msg);
+            return;
+        }
+
+        logger.warn("Delivery of message "+msg.getId()+" failed "+attempts+" times. Moving the message to queue "+dlq.getName()+".");
+        // Publish sets the timestamp of the message, storages find the messages in handling by id.
+        long timestamp = msg.getTimestamp();
+        try {
+            dlq.publish(msg);
+        } catch (MessageStorageException e) {
+            // Don't lose the message, it will be moved again after the maximum delay.
+            logger.error("Exception moving message '"+msg.getId()+"' to queue "+dlq.getName(), e);
+            msg.setTimestamp(timestamp);
+            requeue(msg, now + policy.getMaxDelay());
+            return;
+        }
+        remove(msg);
+    }
+
+    private void requeue(Message msg, long timestamp) {
+        try {
+            storage.requeue(msg, timestamp);
+        } catch (MessageStorageException e) {
+            logger.error("Exception requeueing message '"+msg.getId()+"'", e);
+            return;
+        }
+
+        MessageQueueSignallingTask task = signallingTask;
+        if (task != null) {
+            task.signal(timestamp);
+        }
+    }
+
+    private void remove(Message msg) {
+        try {
+            storage.removeMessage(msg);
+        } catch (MessageStorageException e) {
+            logger.error("Exception removing message '"+msg.getId()+"'", e);
+        }
+        messagesRemoved();
+    }
+
+    /**
+     * Returns the due timestamp of the first message waiting in the queue storage.
+     *
+     * @return the first due timestamp, Long.MAX_VALUE if there are no messages or
+     * MessageStorage.UNKNOWN_TIMESTAMP if the storage can't tell.
+     */
+    long getNextTimestamp() {
+        return storage.getNextTimestamp();
     }
 
     /**
@@ -350,6 +1362,17 @@ public class MessageQueue {
         }
     }
 
+    /**
+     * Returns the progress of the recovery of the messages left in handling by the queue storage. With background
+     * recovery (see FileSystemStorageParameters.setBackgroundRecovery) the queue can be used while the messages are
+     * recovered.
+     *
+     * @return the recovery progress.
+     */
+    public RecoveryProgress getRecoveryProgress() {
+        return storage.getRecoveryProgress();
+    }
+
     /**
      * Returns the number of messages in the queue. This number does include also messages currently in handling.
      *
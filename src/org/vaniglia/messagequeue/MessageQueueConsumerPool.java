@@ -0,0 +1,140 @@
+/**
+ * Project Vaniglia
+ * User: Michele Aiello
+ *
+ * Copyright (C) 2003/2007  Michele Aiello
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ */
+package org.vaniglia.messagequeue;
+
+import org.apache.log4j.Logger;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pool of worker threads that dispatch the messages popped out of a queue to its listeners.
+ *
+ * Without ordering all the workers share the same lane, so a message is dispatched by the first idle worker.
+ * With ordering by key every worker has its own lane and messages are assigned to a lane using the hash of
+ * the message key: messages with the same key are always dispatched by the same worker, in due order.
+ *
+ * Lanes are bounded, when they are full the queue processing task waits for the workers to catch up instead of
+ * popping more messages from the storage.
+ */
+class MessageQueueConsumerPool {
+
+    private static final Logger logger = Logger.getLogger(MessageQueueConsumerPool.class);
+
+    private static final int laneCapacityPerWorker = 100;
+    private static final long pollTimeoutMillis = 100;
+
+    private MessageQueue queue;
+    private boolean orderedByKey;
+
+    private BlockingQueue[] lanes;
+    private Thread[] workers;
+
+    private volatile boolean shutdown = false;
+
+    private class Worker implements Runnable {
+        private BlockingQueue lane;
+
+        public Worker(BlockingQueue lane) {
+            this.lane = lane;
+        }
+
+        public void run() {
+            while (!shutdown || !lane.isEmpty()) {
+                Message msg = null;
+                try {
+                    msg = (Message) lane.poll(pollTimeoutMillis, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                }
+
+                if (msg != null) {
+                    try {
+                        queue.dispatch(msg);
+                    } catch (Throwable e) {
+                        logger.error("Exception while dispatching message '"+msg.getId()+"'", e);
+                    }
+                }
+            }
+        }
+    }
+
+    public MessageQueueConsumerPool(MessageQueue queue, int threads, boolean orderedByKey) {
+        this.queue = queue;
+        this.orderedByKey = orderedByKey;
+
+        lanes = new BlockingQueue[threads];
+        if (orderedByKey) {
+            for (int i = 0; i < threads; i++) {
+                lanes[i] = new LinkedBlockingQueue(laneCapacityPerWorker);
+            }
+        }
+        else {
+            BlockingQueue sharedLane = new LinkedBlockingQueue(laneCapacityPerWorker*threads);
+            for (int i = 0; i < threads; i++) {
+                lanes[i] = sharedLane;
+            }
+        }
+
+        workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Thread(new Worker(lanes[i]), queue.getName()+" Consumer "+i);
+            workers[i].setDaemon(true);
+        }
+    }
+
+    public void start() {
+        for (int i = 0; i < workers.length; i++) {
+            workers[i].start();
+        }
+    }
+
+    /**
+     * Hands a message to the workers. Blocks while the lane of the message is full.
+     *
+     * @param msg the message to dispatch.
+     *
+     * @throws InterruptedException if interrupted while waiting for room in the lane.
+     */
+    public void submit(Message msg) throws InterruptedException {
+        lanes[laneIndex(msg)].put(msg);
+    }
+
+    /**
+     * Stops the workers. Messages already handed to the workers are dispatched before the workers terminate.
+     */
+    public void shutdown() {
+        shutdown = true;
+    }
+
+    private int laneIndex(Message msg) {
+        if (!orderedByKey) {
+            return 0;
+        }
+
+        String key = msg.getKey();
+        if (key == null) {
+            key = msg.getId();
+        }
+        return (key.hashCode() & 0x7fffffff) % lanes.length;
+    }
+}
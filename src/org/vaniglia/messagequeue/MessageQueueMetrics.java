@@ -0,0 +1,206 @@
+/**
+ * Project Vaniglia
+ * User: Michele Aiello
+ *
+ * Copyright (C) 2003/2007  Michele Aiello
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ */
+
+package org.vaniglia.messagequeue;
+
+import org.vaniglia.performancemonitor.Lap;
+import org.vaniglia.performancemonitor.PerformanceMonitor;
+import org.vaniglia.performancemonitor.PerformanceMonitorException;
+
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Throughput and latency metrics of a MessageQueue (see MessageQueue.setMetricsEnabled).
+ * Each stage of the life of a message is measured by its own PerformanceMonitor, where events are messages and
+ * latencies are the time spent in the stage:
+ *
+ * - publish. Messages published, latency is the time spent pushing them in the storage.
+ * - pop. Messages popped out of the storage by the processing task, latency is the time spent popping them.
+ * - delay. Messages dispatched, latency is the delay between the message due time and the dispatch. For messages
+ *          published without a due time this is the time spent in the queue.
+ * - listener. Messages dispatched, latency is the time spent by the listeners handling them.
+ * - ack. Messages removed from the queue, latency is the time between the dispatch and the removal. For queues with
+ *        a visibility timeout this includes the wait for the acknowledgments.
+ *
+ * When a queue falls behind, a growing delay with a low listener latency points to the storage (see publish and
+ * pop), while a listener latency close to the delay points to the listeners.
+ * Laps are added to all the monitors with addLap and are named after the metrics, i.e. the "1 sec" lap of the pop
+ * metric can be read with getMonitor(POP).getLap("1 sec").
+ */
+public class MessageQueueMetrics {
+
+    public static final String PUBLISH = "publish";
+    public static final String POP = "pop";
+    public static final String DELAY = "delay";
+    public static final String LISTENER = "listener";
+    public static final String ACK = "ack";
+
+    static final int publishMetric = 0;
+    static final int popMetric = 1;
+    static final int delayMetric = 2;
+    static final int listenerMetric = 3;
+    static final int ackMetric = 4;
+
+    private static final String[] metricNames = new String[] {PUBLISH, POP, DELAY, LISTENER, ACK};
+
+    private static final long nanosPerMilli = 1000000;
+
+    private String queueName;
+    private PerformanceMonitor[] monitors;
+
+    /**
+     * Nanoseconds measured and not yet reported to the monitors, that take latencies in milliseconds. Carrying the
+     * remainders keeps the average latencies of sub millisecond stages (i.e. memory storages) right.
+     */
+    private AtomicLong[] carriedNanos;
+
+    MessageQueueMetrics(String queueName) {
+        this.queueName = queueName;
+        monitors = new PerformanceMonitor[metricNames.length];
+        carriedNanos = new AtomicLong[metricNames.length];
+        for (int i = 0; i < metricNames.length; i++) {
+            monitors[i] = new PerformanceMonitor();
+            carriedNanos[i] = new AtomicLong();
+        }
+    }
+
+    public String getQueueName() {
+        return queueName;
+    }
+
+    /**
+     * Returns the names of the metrics.
+     */
+    public static String[] getMetricNames() {
+        return (String[]) metricNames.clone();
+    }
+
+    /**
+     * Returns the monitor of a metric.
+     *
+     * @param metric the metric name, one of PUBLISH, POP, DELAY, LISTENER and ACK.
+     *
+     * @return the monitor of the metric.
+     *
+     * @throws PerformanceMonitorException if the metric doesn't exist.
+     */
+    public PerformanceMonitor getMonitor(String metric) throws PerformanceMonitorException {
+        for (int i = 0; i < metricNames.length; i++) {
+            if (metricNames[i].equals(metric)) {
+                return monitors[i];
+            }
+        }
+        throw new PerformanceMonitorException("Metric '"+metric+"' doesn't exist.");
+    }
+
+    /**
+     * Adds a lap to the monitors of all the metrics, see PerformanceMonitor.addLap.
+     *
+     * @param lapName the name of the lap
+     * @param period the lap period in milliseconds
+     * @param delayed if true, the first period will be (period - currentTimeMillis % period)
+     * @param historyDepth the lap history depth. 0 for no history
+     *
+     * @throws PerformanceMonitorException if the lap already exists.
+     */
+    public synchronized void addLap(String lapName, long period, boolean delayed, int historyDepth) throws PerformanceMonitorException {
+        for (int i = 0; i < monitors.length; i++) {
+            monitors[i].addLap(lapName, period, delayed, historyDepth);
+        }
+    }
+
+    /**
+     * Returns the lap of a metric.
+     *
+     * @param metric the metric name.
+     * @param lapName the lap name.
+     *
+     * @return the lap.
+     *
+     * @throws PerformanceMonitorException if the metric or the lap don't exist.
+     */
+    public Lap getLap(String metric, String lapName) throws PerformanceMonitorException {
+        return getMonitor(metric).getLap(lapName);
+    }
+
+    /**
+     * Prints the totals of all the metrics.
+     *
+     * @param out the PrintStream to print to.
+     */
+    public void printTotals(PrintStream out) {
+        for (int i = 0; i < monitors.length; i++) {
+            out.println("*** "+queueName+" - "+metricNames[i]+" ***");
+            monitors[i].printTotals(out);
+        }
+    }
+
+    /**
+     * Prints a lap of all the metrics.
+     *
+     * @param lapName the lap name.
+     * @param out the PrintStream to print to.
+     *
+     * @throws PerformanceMonitorException if the lap doesn't exist.
+     */
+    public void printLap(String lapName, PrintStream out) throws PerformanceMonitorException {
+        for (int i = 0; i < monitors.length; i++) {
+            out.print(queueName+" - "+metricNames[i]+" - ");
+            monitors[i].printLap(lapName, out);
+        }
+    }
+
+    void start() {
+        for (int i = 0; i < monitors.length; i++) {
+            monitors[i].start();
+        }
+    }
+
+    void stop() {
+        for (int i = 0; i < monitors.length; i++) {
+            monitors[i].stop();
+        }
+    }
+
+    /**
+     * Records events of a metric.
+     *
+     * @param metric the metric index.
+     * @param events the number of events.
+     * @param nanos the total latency of the events in nanoseconds.
+     */
+    void record(int metric, long events, long nanos) {
+        if (events <= 0) {
+            return;
+        }
+        long millis = 0;
+        if (nanos > 0) {
+            long total = carriedNanos[metric].addAndGet(nanos);
+            millis = total / nanosPerMilli;
+            if (millis > 0) {
+                carriedNanos[metric].addAndGet(-millis * nanosPerMilli);
+            }
+        }
+        monitors[metric].update(events, millis);
+    }
+}
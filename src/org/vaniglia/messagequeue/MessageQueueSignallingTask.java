@@ -0,0 +1,115 @@
+/**
+ * Project Vaniglia
+ * User: Michele Aiello
+ *
+ * Copyright (C) 2003/2007  Michele Aiello
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ */
+package org.vaniglia.messagequeue;
+
+import org.apache.log4j.Logger;
+import org.vaniglia.messagequeue.storage.MessageStorage;
+import org.vaniglia.time.SystemDate;
+
+/**
+ * Processing task of event driven queues.
+ * The task handles the queue and than sleeps until the due date of the first message in the storage, or until a
+ * message due earlier is published. The sleep time is never longer than the queue processing interval.
+ */
+class MessageQueueSignallingTask implements Runnable {
+
+    private static final Logger logger = Logger.getLogger(MessageQueueSignallingTask.class);
+
+    private MessageQueue queue;
+    private long maxWaitMillis;
+
+    private final Object monitor = new Object();
+
+    /**
+     * Time of the next planned processing. While the queue is being handled it is Long.MAX_VALUE, so that any
+     * message published meanwhile triggers a new processing.
+     */
+    private long wakeupTime = Long.MAX_VALUE;
+    private boolean signalled = false;
+    private boolean shutdown = false;
+
+    public MessageQueueSignallingTask(MessageQueue queue, long maxWaitMillis) {
+        this.queue = queue;
+        this.maxWaitMillis = maxWaitMillis;
+    }
+
+    /**
+     * Notifies the task that a message with the given due timestamp has been published.
+     * The task is woken up only if the message is due before its next planned processing.
+     *
+     * @param timestamp the due timestamp of the published message.
+     */
+    public void signal(long timestamp) {
+        synchronized (monitor) {
+            if (timestamp < wakeupTime) {
+                signalled = true;
+                monitor.notify();
+            }
+        }
+    }
+
+    public void shutdown() {
+        synchronized (monitor) {
+            shutdown = true;
+            monitor.notify();
+        }
+    }
+
+    public void run() {
+        for (;;) {
+            synchronized (monitor) {
+                if (shutdown) {
+                    return;
+                }
+                signalled = false;
+                wakeupTime = Long.MAX_VALUE;
+            }
+
+            try {
+                queue.handle();
+            } catch (Throwable e) {
+                logger.error("Exception while handling the queue...", e);
+            }
+
+            long now = SystemDate.getInstance().currentTimeMillis();
+            long next = queue.getNextTimestamp();
+            long wait;
+            if ((next == MessageStorage.UNKNOWN_TIMESTAMP) || (next <= now)) {
+                // The storage can't tell, or the queue couldn't be drained (i.e. there are no listeners).
+                wait = maxWaitMillis;
+            }
+            else {
+                wait = Math.min(next - now, maxWaitMillis);
+            }
+
+            synchronized (monitor) {
+                if (!signalled && !shutdown) {
+                    wakeupTime = now + wait;
+                    try {
+                        monitor.wait(wait);
+                    } catch (InterruptedException e) {
+                    }
+                }
+            }
+        }
+    }
+}
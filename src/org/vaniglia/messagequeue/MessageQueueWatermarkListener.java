@@ -0,0 +1,40 @@
+/**
+ * Project Vaniglia
+ * User: Michele Aiello
+ *
+ * Copyright (C) 2003/2007  Michele Aiello
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ */
+
+package org.vaniglia.messagequeue;
+
+/**
+ * Listener notified when the number of messages of a MessageQueue crosses its watermarks (see
+ * MessageQueue.setWatermarks). Producers can use it to slow down before the queue is full and to speed up again once
+ * the queue has been drained.
+ * The high watermark notification is sent once when the size of the queue reaches the high watermark, than the low
+ * watermark notification is sent once when the size goes back to the low watermark, and so on.
+ * Notifications are sent by the thread that published or handled the message, so listeners must be fast and thread
+ * safe.
+ */
+public interface MessageQueueWatermarkListener {
+
+    void highWatermarkReached(MessageQueue queue, long size);
+
+    void lowWatermarkReached(MessageQueue queue, long size);
+
+}
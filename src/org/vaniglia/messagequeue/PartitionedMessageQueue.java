@@ -0,0 +1,474 @@
+/**
+ * Project Vaniglia
+ * User: Michele Aiello
+ *
+ * Copyright (C) 2003/2007  Michele Aiello
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ */
+package org.vaniglia.messagequeue;
+
+import org.apache.commons.collections.FastHashMap;
+import org.apache.log4j.Logger;
+import org.vaniglia.messagequeue.storage.MessageStorageException;
+import org.vaniglia.messagequeue.storage.MessageStorageParameters;
+import org.vaniglia.time.SystemDate;
+
+import java.io.PrintStream;
+import java.util.Vector;
+
+/**
+ * A queue partitioned over many MessageQueues, each with its own storage and its own processing task.
+ * Messages are assigned to a partition using the hash of their key (or of their id if they have no key), so all the
+ * messages with the same key are handled by the same partition in due order, while messages with different keys are
+ * pushed, popped and handled concurrently by different partitions and storages.
+ *
+ * The partitions are regular MessageQueues named after the partitioned queue name followed by the partition index.
+ * Listeners are subscribed to all the partitions, so they must be thread safe.
+ */
+public class PartitionedMessageQueue {
+
+    private static final Logger logger = Logger.getLogger(PartitionedMessageQueue.class);
+
+    private static final FastHashMap queues = new FastHashMap(5, 0.75f);
+
+    private String name;
+    private MessageQueue[] partitions;
+
+    private PartitionedMessageQueue(String name, MessageStorageParameters.PartitionedStorageParameters params) throws MessageQueueException {
+        logger.info("Initializing partitioned queue "+name+" with "+params.getPartitions()+" partitions");
+        this.name = name;
+
+        partitions = new MessageQueue[params.getPartitions()];
+        for (int i = 0; i < partitions.length; i++) {
+            String partitionName = MessageStorageParameters.PartitionedStorageParameters.getPartitionName(name, i);
+            try {
+                partitions[i] = MessageQueue.getQueue(partitionName, params.getStorageType(), params.getPartitionParams(i));
+            } catch (MessageQueueException e) {
+                // Don't leave the partitions created so far around.
+                for (int j = 0; j < i; j++) {
+                    MessageQueue.deleteQueue(partitions[j].getName());
+                }
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * This method is used to create a Partitioned Message Queue.
+     *
+     * @param name the queue name
+     * @param params the parameters for the partitions, the name of the parameters is ignored
+     *
+     * @return the Partitioned Message Queue
+     *
+     * @throws MessageQueueException if the Queue or one of its partitions has been already created or the number of
+     * partitions is less than 1.
+     */
+    public static synchronized PartitionedMessageQueue getQueue(String name, MessageStorageParameters.PartitionedStorageParameters params)
+            throws MessageQueueException
+    {
+        if (params.getPartitions() < 1) {
+            throw new MessageQueueException("Invalid number of partitions: "+params.getPartitions());
+        }
+
+        PartitionedMessageQueue queue = (PartitionedMessageQueue) queues.get(name);
+        if (queue == null) {
+            queue = new PartitionedMessageQueue(name, params);
+            queues.put(name, queue);
+        }
+        else {
+            throw new MessageQueueException("Queue "+name+" has been already created.");
+        }
+
+        return queue;
+    }
+
+    /**
+     * This method returns a Partitioned Message Queue given its name.
+     *
+     * @param name the Partitioned Message Queue's name
+     *
+     * @return the Partitioned Message Queue with the given name or null if it has not been created.
+     */
+    public static synchronized PartitionedMessageQueue getQueue(String name) {
+        return (PartitionedMessageQueue) queues.get(name);
+    }
+
+    /**
+     * This method wipes out a Partitioned Message Queue and all its partitions from the system.
+     *
+     * @param name the name of the Partitioned Message Queue to delete
+     */
+    public static synchronized void deleteQueue(String name) {
+        PartitionedMessageQueue queue = (PartitionedMessageQueue) queues.remove(name);
+        if (queue == null) {
+            logger.warn("Trying to delete a queue that doesn't exist. Queue name = "+name);
+            return;
+        }
+
+        for (int i = 0; i < queue.partitions.length; i++) {
+            MessageQueue.deleteQueue(queue.partitions[i].getName());
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Returns the number of partitions.
+     *
+     * @return the number of partitions.
+     */
+    public int getPartitionsCount() {
+        return partitions.length;
+    }
+
+    /**
+     * Returns a partition, i.e. to configure it individually.
+     *
+     * @param partition the partition index.
+     *
+     * @return the queue of the partition.
+     */
+    public MessageQueue getPartition(int partition) {
+        return partitions[partition];
+    }
+
+    /**
+     * Returns the partition of a message.
+     *
+     * @param msg the message.
+     *
+     * @return the queue of the partition the message is assigned to.
+     */
+    public MessageQueue getPartition(Message msg) {
+        String key = msg.getKey();
+        if (key == null) {
+            key = msg.getId();
+        }
+        return partitions[(key.hashCode() & 0x7fffffff) % partitions.length];
+    }
+
+    /**
+     * Sets the processing interval of all the partitions, see MessageQueue.setProcessingInterval.
+     */
+    public void setProcessingInterval(int millis) throws MessageQueueException {
+        for (int i = 0; i < partitions.length; i++) {
+            partitions[i].setProcessingInterval(millis);
+        }
+    }
+
+    /**
+     * Sets the processing batch size of all the partitions, see MessageQueue.setProcessingBatchSize.
+     */
+    public void setProcessingBatchSize(int batchSize) throws MessageQueueException {
+        for (int i = 0; i < partitions.length; i++) {
+            partitions[i].setProcessingBatchSize(batchSize);
+        }
+    }
+
+    /**
+     * Sets the processing mode of all the partitions, see MessageQueue.setEventDriven.
+     */
+    public void setEventDriven(boolean eventDriven) throws MessageQueueException {
+        for (int i = 0; i < partitions.length; i++) {
+            partitions[i].setEventDriven(eventDriven);
+        }
+    }
+
+    /**
+     * Enables or disables the metrics of all the partitions, see MessageQueue.setMetricsEnabled. The metrics are
+     * collected per partition and can be read with getPartition(i).getMetrics().
+     */
+    public void setMetricsEnabled(boolean enabled) {
+        for (int i = 0; i < partitions.length; i++) {
+            partitions[i].setMetricsEnabled(enabled);
+        }
+    }
+
+    /**
+     * Sets the visibility timeout of all the partitions, see MessageQueue.setVisibilityTimeout.
+     */
+    public void setVisibilityTimeout(long millis) throws MessageQueueException {
+        for (int i = 0; i < partitions.length; i++) {
+            partitions[i].setVisibilityTimeout(millis);
+        }
+    }
+
+    /**
+     * Sets the retry policy of all the partitions, see MessageQueue.setRetryPolicy.
+     */
+    public void setRetryPolicy(RetryPolicy policy) throws MessageQueueException {
+        for (int i = 0; i < partitions.length; i++) {
+            partitions[i].setRetryPolicy(policy);
+        }
+    }
+
+    /**
+     * Sets the dead letter queue of all the partitions, see MessageQueue.setDeadLetterQueue.
+     */
+    public void setDeadLetterQueue(MessageQueue queue) throws MessageQueueException {
+        for (int i = 0; i < partitions.length; i++) {
+            partitions[i].setDeadLetterQueue(queue);
+        }
+    }
+
+    /**
+     * Sets the capacity of each partition, see MessageQueue.setCapacity.
+     */
+    public void setCapacity(long capacity) {
+        for (int i = 0; i < partitions.length; i++) {
+            partitions[i].setCapacity(capacity);
+        }
+    }
+
+    /**
+     * Sets the back-pressure policy of all the partitions, see MessageQueue.setBackPressurePolicy.
+     */
+    public void setBackPressurePolicy(BackPressurePolicy policy) {
+        for (int i = 0; i < partitions.length; i++) {
+            partitions[i].setBackPressurePolicy(policy);
+        }
+    }
+
+    /**
+     * Sets the publish timeout of all the partitions, see MessageQueue.setPublishTimeout.
+     */
+    public void setPublishTimeout(long millis) {
+        for (int i = 0; i < partitions.length; i++) {
+            partitions[i].setPublishTimeout(millis);
+        }
+    }
+
+    public boolean isRunning() {
+        return partitions[0].isRunning();
+    }
+
+    /**
+     * Starts the processing tasks of all the partitions.
+     *
+     * @throws MessageQueueException if the queue is already running.
+     */
+    public void start() throws MessageQueueException {
+        if (isRunning()) {
+            throw new MessageQueueException("Queue "+name+" already running.");
+        }
+        for (int i = 0; i < partitions.length; i++) {
+            partitions[i].start();
+        }
+    }
+
+    /**
+     * Stops the processing tasks of all the partitions.
+     *
+     * @throws MessageQueueException if the queue is not running.
+     */
+    public void stop() throws MessageQueueException {
+        if (!isRunning()) {
+            throw new MessageQueueException("Queue "+name+" not running.");
+        }
+        for (int i = 0; i < partitions.length; i++) {
+            if (partitions[i].isRunning()) {
+                partitions[i].stop();
+            }
+        }
+    }
+
+    /**
+     * Publish a message to its partition using the current time.
+     *
+     * @param msg the message to publish
+     *
+     * @throws MessageStorageException in case something goes wrong with the underlaying storage system.
+     */
+    public void publish(Message msg) throws MessageStorageException {
+        publish(msg, SystemDate.getInstance().currentTimeMillis());
+    }
+
+    /**
+     * Publish a message to its partition.
+     *
+     * @param msg the message to publish
+     * @param timestamp the message due time.
+     *
+     * @throws MessageStorageException in case something goes wrong with the underlaying storage system.
+     */
+    public void publish(Message msg, long timestamp) throws MessageStorageException {
+        getPartition(msg).publish(msg, timestamp);
+    }
+
+    /**
+     * Publish a batch of messages. The batch is split by partition and each part is published as a batch to its
+     * partition.
+     *
+     * @param msgs the messages to publish
+     * @param timestamps the messages due times.
+     *
+     * @throws MessageStorageException in case something goes wrong with the underlaying storage system. Parts of
+     * the batch published to other partitions are not rolled back.
+     */
+    public void publish(Message[] msgs, long[] timestamps) throws MessageStorageException {
+        if (msgs.length != timestamps.length) {
+            throw new MessageStorageException("Messages and timestamps have different lengths.");
+        }
+
+        Vector[] parts = new Vector[partitions.length];
+        for (int i = 0; i < msgs.length; i++) {
+            String key = msgs[i].getKey();
+            if (key == null) {
+                key = msgs[i].getId();
+            }
+            int partition = (key.hashCode() & 0x7fffffff) % partitions.length;
+            if (parts[partition] == null) {
+                parts[partition] = new Vector();
+            }
+            parts[partition].add(new Integer(i));
+        }
+
+        for (int p = 0; p < parts.length; p++) {
+            if (parts[p] == null) {
+                continue;
+            }
+            Message[] partMsgs = new Message[parts[p].size()];
+            long[] partTimestamps = new long[partMsgs.length];
+            for (int i = 0; i < partMsgs.length; i++) {
+                int index = ((Integer) parts[p].get(i)).intValue();
+                partMsgs[i] = msgs[index];
+                partTimestamps[i] = timestamps[index];
+            }
+            partitions[p].publish(partMsgs, partTimestamps);
+        }
+    }
+
+    /**
+     * Subscribe a listener to all the partitions.
+     *
+     * @param listener the listener to subscribe
+     *
+     * @throws MessageQueueException if the listener is already subscribed
+     */
+    public synchronized void subscribe(MessageListener listener) throws MessageQueueException {
+        for (int i = 0; i < partitions.length; i++) {
+            partitions[i].subscribe(listener);
+        }
+    }
+
+    /**
+     * Subscribe an acknowledging listener to all the partitions.
+     *
+     * @param listener the listener to subscribe
+     *
+     * @throws MessageQueueException if the listener is already subscribed
+     */
+    public synchronized void subscribe(AcknowledgingMessageListener listener) throws MessageQueueException {
+        for (int i = 0; i < partitions.length; i++) {
+            partitions[i].subscribe(listener);
+        }
+    }
+
+    /**
+     * Unsubscribes an acknowledging listener from all the partitions.
+     *
+     * @param listener the listener to unsubscribe
+     *
+     * @throws MessageQueueException if the listener is not subscribed
+     */
+    public synchronized void unsubscribe(AcknowledgingMessageListener listener) throws MessageQueueException {
+        for (int i = 0; i < partitions.length; i++) {
+            partitions[i].unsubscribe(listener);
+        }
+    }
+
+    /**
+     * Unsubscribes a listener from all the partitions.
+     *
+     * @param listener the listener to unsubscribe
+     *
+     * @throws MessageQueueException if the listener is not subscribed
+     */
+    public synchronized void unsubscribe(MessageListener listener) throws MessageQueueException {
+        for (int i = 0; i < partitions.length; i++) {
+            partitions[i].unsubscribe(listener);
+        }
+    }
+
+    /**
+     * Clears all the partitions. All messages in the queue will be lost.
+     */
+    public void clear() {
+        for (int i = 0; i < partitions.length; i++) {
+            partitions[i].clear();
+        }
+    }
+
+    /**
+     * Returns the number of messages in all the partitions, including messages currently in handling.
+     *
+     * @return the number of messags in the queue.
+     */
+    public long size() {
+        long size = 0;
+        for (int i = 0; i < partitions.length; i++) {
+            size += partitions[i].size();
+        }
+        return size;
+    }
+
+    /**
+     * Returns a list of all messages in all the partitions, partition by partition.
+     *
+     * @return a list of all the message's ids in the queue.
+     */
+    public String[] getMessageList() {
+        Vector msgsList = new Vector();
+        for (int i = 0; i < partitions.length; i++) {
+            String[] ids = partitions[i].getMessageList();
+            for (int j = 0; j < ids.length; j++) {
+                msgsList.add(ids[j]);
+            }
+        }
+        return (String[]) msgsList.toArray(new String[msgsList.size()]);
+    }
+
+    /**
+     * Returns all messages in all the partitions, partition by partition.
+     *
+     * @return all messages in the queue.
+     */
+    public Message[] getAllMessages() {
+        Vector allMsgs = new Vector();
+        for (int i = 0; i < partitions.length; i++) {
+            Message[] msgs = partitions[i].getAllMessages();
+            for (int j = 0; j < msgs.length; j++) {
+                allMsgs.add(msgs[j]);
+            }
+        }
+        return (Message[]) allMsgs.toArray(new Message[allMsgs.size()]);
+    }
+
+    /**
+     * Prints out all messages in all the partitions to a given PrintStream.
+     *
+     * @param stream the stream used to print all messages.
+     */
+    public void printAllMessages(PrintStream stream) {
+        for (int i = 0; i < partitions.length; i++) {
+            partitions[i].printAllMessages(stream);
+        }
+    }
+}
@@ -0,0 +1,109 @@
+/**
+ * Project Vaniglia
+ * User: Michele Aiello
+ *
+ * Copyright (C) 2003/2007  Michele Aiello
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ */
+
+package org.vaniglia.messagequeue;
+
+/**
+ * Retry policy for messages whose delivery failed (see MessageQueue.setRetryPolicy).
+ * A failed message is requeued with a due time in the future, so it is retried by the storage scheduling without any
+ * busy loop. The delay grows exponentially with the number of failed attempts:
+ *
+ *   delay = min(initialDelay * multiplier^(attempts-1), maxDelay)
+ *
+ * After maxAttempts failed deliveries the message is moved to the dead letter queue of the queue, if any.
+ */
+public class RetryPolicy {
+
+    private int maxAttempts;
+    private long initialDelayMillis;
+    private double multiplier;
+    private long maxDelayMillis;
+
+    /**
+     * Creates a retry policy.
+     *
+     * @param maxAttempts the maximum number of deliveries of a message, including the first one.
+     * @param initialDelayMillis the delay before the first retry.
+     * @param multiplier the factor applied to the delay at each retry, 1 for a constant delay.
+     * @param maxDelayMillis the maximum delay between retries.
+     *
+     * @throws IllegalArgumentException if maxAttempts is less than 1, the delays are negative or the multiplier is
+     * less than 1.
+     */
+    public RetryPolicy(int maxAttempts, long initialDelayMillis, double multiplier, long maxDelayMillis) {
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException("Invalid max attempts: "+maxAttempts);
+        }
+        if ((initialDelayMillis < 0) || (maxDelayMillis < initialDelayMillis)) {
+            throw new IllegalArgumentException("Invalid delays: initial = "+initialDelayMillis+", max = "+maxDelayMillis);
+        }
+        if (multiplier < 1) {
+            throw new IllegalArgumentException("Invalid multiplier: "+multiplier);
+        }
+        this.maxAttempts = maxAttempts;
+        this.initialDelayMillis = initialDelayMillis;
+        this.multiplier = multiplier;
+        this.maxDelayMillis = maxDelayMillis;
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    public long getInitialDelay() {
+        return initialDelayMillis;
+    }
+
+    public double getMultiplier() {
+        return multiplier;
+    }
+
+    public long getMaxDelay() {
+        return maxDelayMillis;
+    }
+
+    /**
+     * Returns the delay before the next delivery of a message.
+     *
+     * @param attempts the number of failed deliveries of the message.
+     *
+     * @return the delay in milliseconds.
+     */
+    public long getDelay(int attempts) {
+        double delay = initialDelayMillis * Math.pow(multiplier, Math.max(attempts - 1, 0));
+        return (delay >= maxDelayMillis) ? maxDelayMillis : (long) delay;
+    }
+
+    /**
+     * Returns true if a message can be delivered again.
+     *
+     * @param attempts the number of failed deliveries of the message.
+     */
+    public boolean canRetry(int attempts) {
+        return attempts < maxAttempts;
+    }
+
+    public String toString() {
+        return "RetryPolicy [max attempts: "+maxAttempts+", initial delay: "+initialDelayMillis+"ms, multiplier: "+
+                multiplier+", max delay: "+maxDelayMillis+"ms]";
+    }
+}
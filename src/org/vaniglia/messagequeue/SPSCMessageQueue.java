@@ -0,0 +1,401 @@
+/**
+ * Project Vaniglia
+ * User: Michele Aiello
+ *
+ * Copyright (C) 2003/2007  Michele Aiello
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ */
+
+package org.vaniglia.messagequeue;
+
+import org.apache.commons.collections.FastHashMap;
+import org.apache.log4j.Logger;
+import org.vaniglia.messagequeue.storage.MessageStorageException;
+import org.vaniglia.time.SystemDate;
+
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A transient queue for exactly one publisher thread and one listener.
+ * Messages are kept in an array used as a ring and exchanged through two sequences, the producer sequence (last
+ * message published) and the consumer sequence (last message handled). Each sequence is written by one thread only,
+ * so publish and dispatch don't take any lock, and each sequence is padded to a cache line of its own, so the two
+ * threads don't invalidate each other's cache. The messages are dispatched to the listener by a dedicated consumer
+ * thread as soon as they are due, without the storage, the processing task and the listeners list of MessageQueue.
+ *
+ * Messages are dispatched in publication order: a message published with a due time in the future delays the
+ * messages published after it. While no listener is subscribed messages are kept in the queue. Messages are lost
+ * when the application terminates. When the ring is full publish waits for room using the queue wait strategy.
+ *
+ * The queue must be published by a single thread at a time: the first thread that publishes owns the queue and
+ * publish raises a MessageStorageException if called by other threads (see setProducerThread).
+ */
+public class SPSCMessageQueue {
+
+    private static final Logger logger = Logger.getLogger(SPSCMessageQueue.class);
+
+    private static final FastHashMap queues = new FastHashMap(5, 0.75f);
+
+    /**
+     * A sequence padded to fill a cache line on both sides.
+     */
+    static final class Sequence {
+        private static final AtomicLongFieldUpdater updater = AtomicLongFieldUpdater.newUpdater(Sequence.class, "value");
+
+        long p1, p2, p3, p4, p5, p6, p7;
+        volatile long value = -1;
+        long p9, p10, p11, p12, p13, p14, p15;
+
+        long get() {
+            return value;
+        }
+
+        /**
+         * Ordered write: visible to the other thread after all the previous writes, without a full fence.
+         */
+        void set(long newValue) {
+            updater.lazySet(this, newValue);
+        }
+
+        /**
+         * Volatile write: also orders the following volatile reads of this thread after it.
+         */
+        void setVolatile(long newValue) {
+            value = newValue;
+        }
+    }
+
+    private final String name;
+    private final Message[] ring;
+    private final long[] timestamps;
+    private final int mask;
+    private final WaitStrategy waitStrategy;
+    private final boolean parks;
+
+    private final Sequence producerSequence = new Sequence();
+    private final Sequence consumerSequence = new Sequence();
+
+    // Producer side state, accessed by the producer thread only.
+    private long nextProducerSequence = 0;
+    private long cachedConsumerSequence = -1;
+    private volatile Thread producerThread;
+
+    private volatile MessageListener listener;
+    private volatile Thread consumerThread;
+    private volatile boolean running = false;
+    private volatile boolean consumerWaiting = false;
+
+    private SPSCMessageQueue(String name, int size, WaitStrategy waitStrategy) {
+        logger.info("Initializing SPSC queue "+name+" with "+size+" slots and wait strategy "+waitStrategy);
+        this.name = name;
+        this.ring = new Message[size];
+        this.timestamps = new long[size];
+        this.mask = size - 1;
+        this.waitStrategy = waitStrategy;
+        this.parks = waitStrategy.parks();
+    }
+
+    /**
+     * This method is used to create a SPSC Message Queue.
+     *
+     * @param name the queue name
+     * @param size the number of slots of the ring, must be a power of 2.
+     * @param waitStrategy the strategy used by the consumer and producer threads to wait.
+     *
+     * @return the SPSC Message Queue
+     *
+     * @throws MessageQueueException if the Queue has been already created or the size is not a power of 2.
+     */
+    public static synchronized SPSCMessageQueue getQueue(String name, int size, WaitStrategy waitStrategy) throws MessageQueueException {
+        if ((size < 1) || ((size & (size - 1)) != 0)) {
+            throw new MessageQueueException("Invalid ring size: "+size+". The size must be a power of 2.");
+        }
+
+        SPSCMessageQueue queue = (SPSCMessageQueue) queues.get(name);
+        if (queue == null) {
+            queue = new SPSCMessageQueue(name, size, waitStrategy);
+            queues.put(name, queue);
+        }
+        else {
+            throw new MessageQueueException("Queue "+name+" has been already created.");
+        }
+
+        return queue;
+    }
+
+    /**
+     * This method returns a SPSC Message Queue given its name.
+     *
+     * @param name the SPSC Message Queue's name
+     *
+     * @return the SPSC Message Queue with the given name or null if it has not been created.
+     */
+    public static synchronized SPSCMessageQueue getQueue(String name) {
+        return (SPSCMessageQueue) queues.get(name);
+    }
+
+    /**
+     * This method wipes out a SPSC Message Queue from the system. Messages in the queue are lost.
+     *
+     * @param name the name of the SPSC Message Queue to delete
+     */
+    public static synchronized void deleteQueue(String name) {
+        SPSCMessageQueue queue = (SPSCMessageQueue) queues.remove(name);
+        if (queue == null) {
+            logger.warn("Trying to delete a queue that doesn't exist. Queue name = "+name);
+            return;
+        }
+
+        if (queue.isRunning()) {
+            try {
+                queue.stop();
+            } catch (MessageQueueException e) {
+            }
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public WaitStrategy getWaitStrategy() {
+        return waitStrategy;
+    }
+
+    /**
+     * Sets the thread allowed to publish. By default the first thread that publishes owns the queue, this method is
+     * used to hand the queue over to another thread, i.e. when the producer is restarted.
+     *
+     * @param thread the producer thread, null to let the next thread that publishes own the queue.
+     */
+    public void setProducerThread(Thread thread) {
+        this.producerThread = thread;
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Starts the consumer thread.
+     *
+     * @throws MessageQueueException if the queue is already running.
+     */
+    public synchronized void start() throws MessageQueueException {
+        if (running) {
+            throw new MessageQueueException("Queue "+name+" already running.");
+        }
+        logger.info("Starting SPSC queue "+name);
+        running = true;
+        consumerThread = new Thread(new Runnable() {
+            public void run() {
+                consume();
+            }
+        }, name+" Consumer");
+        consumerThread.setDaemon(true);
+        consumerThread.start();
+    }
+
+    /**
+     * Stops the consumer thread. Messages not dispatched yet stay in the queue.
+     *
+     * @throws MessageQueueException if the queue is not running.
+     */
+    public synchronized void stop() throws MessageQueueException {
+        if (!running) {
+            throw new MessageQueueException("Queue "+name+" not running.");
+        }
+        logger.info("Stopping SPSC queue "+name);
+        running = false;
+        Thread thread = consumerThread;
+        LockSupport.unpark(thread);
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        consumerThread = null;
+    }
+
+    /**
+     * Subscribe the listener of the queue.
+     *
+     * @param listener the listener to subscribe
+     *
+     * @throws MessageQueueException if the queue has already a listener.
+     */
+    public synchronized void subscribe(MessageListener listener) throws MessageQueueException {
+        if (this.listener != null) {
+            throw new MessageQueueException("The queue has already a listener");
+        }
+        this.listener = listener;
+        LockSupport.unpark(consumerThread);
+    }
+
+    /**
+     * Unsubscribes the listener of the queue.
+     *
+     * @param listener the listener to unsubscribe
+     *
+     * @throws MessageQueueException if the listener is not subscribed
+     */
+    public synchronized void unsubscribe(MessageListener listener) throws MessageQueueException {
+        if ((this.listener == null) || !this.listener.equals(listener)) {
+            throw new MessageQueueException("Listener not subscribed");
+        }
+        this.listener = null;
+    }
+
+    /**
+     * Publish a message to the queue using the current time.
+     *
+     * @param msg the message to publish
+     *
+     * @throws MessageStorageException if the calling thread is not the producer thread of the queue.
+     */
+    public void publish(Message msg) throws MessageStorageException {
+        publish(msg, SystemDate.getInstance().currentTimeMillis());
+    }
+
+    /**
+     * Publish a message to the queue. If the ring is full the method waits until the consumer makes room.
+     *
+     * @param msg the message to publish
+     * @param timestamp the message due time.
+     *
+     * @throws MessageStorageException if the calling thread is not the producer thread of the queue.
+     */
+    public void publish(Message msg, long timestamp) throws MessageStorageException {
+        Thread current = Thread.currentThread();
+        if (producerThread != current) {
+            synchronized (this) {
+                if (producerThread == null) {
+                    producerThread = current;
+                }
+                else if (producerThread != current) {
+                    throw new MessageStorageException("Queue "+name+" can be published only by thread "+producerThread.getName());
+                }
+            }
+        }
+
+        long sequence = nextProducerSequence;
+        long wrapPoint = sequence - ring.length;
+        if (cachedConsumerSequence < wrapPoint) {
+            int counter = 0;
+            while ((cachedConsumerSequence = consumerSequence.get()) < wrapPoint) {
+                counter = waitStrategy.idle(counter);
+            }
+        }
+
+        int index = (int) sequence & mask;
+        msg.setTimestamp(timestamp);
+        ring[index] = msg;
+        timestamps[index] = timestamp;
+        nextProducerSequence = sequence + 1;
+        if (!parks) {
+            producerSequence.set(sequence);
+            return;
+        }
+
+        // The consumer sets consumerWaiting before reading the producer sequence again, and here the sequence is
+        // written before reading consumerWaiting. Both writes are volatile, so at least one thread sees the write
+        // of the other: either the consumer finds the message or it is unparked.
+        producerSequence.setVolatile(sequence);
+        if (consumerWaiting) {
+            LockSupport.unpark(consumerThread);
+        }
+    }
+
+    /**
+     * Returns the number of messages in the queue, including the message being handled.
+     *
+     * @return the number of messages in the queue.
+     */
+    public long size() {
+        return producerSequence.get() - consumerSequence.get();
+    }
+
+    /**
+     * Clears the queue. All messages in the queue will be lost.
+     *
+     * @throws MessageQueueException if the queue is running.
+     */
+    public synchronized void clear() throws MessageQueueException {
+        if (running) {
+            throw new MessageQueueException("Queue "+name+" is running.");
+        }
+        long last = producerSequence.get();
+        for (long sequence = consumerSequence.get() + 1; sequence <= last; sequence++) {
+            ring[(int) sequence & mask] = null;
+        }
+        consumerSequence.set(last);
+    }
+
+    /**
+     * The consumer thread loop.
+     */
+    private void consume() {
+        long sequence = consumerSequence.get() + 1;
+        int counter = 0;
+        while (running) {
+            if (producerSequence.get() < sequence) {
+                if (parks && (counter >= 200)) {
+                    // The flag is set before checking again, so a message published meanwhile unparks the thread
+                    // (see publish).
+                    consumerWaiting = true;
+                    if (producerSequence.get() < sequence) {
+                        counter = waitStrategy.idle(counter);
+                    }
+                    consumerWaiting = false;
+                }
+                else {
+                    counter = waitStrategy.idle(counter);
+                }
+                continue;
+            }
+
+            int index = (int) sequence & mask;
+            long wait = timestamps[index] - SystemDate.getInstance().currentTimeMillis();
+            if (wait > 0) {
+                // Not due yet. Parked at most 100ms at a time, so stop is not delayed.
+                LockSupport.parkNanos(Math.min(wait, 100) * 1000000);
+                continue;
+            }
+
+            MessageListener currentListener = listener;
+            if (currentListener == null) {
+                // The message stays in the ring until a listener subscribes, subscribe unparks the thread.
+                LockSupport.parkNanos(100 * 1000000);
+                continue;
+            }
+            counter = 0;
+
+            Message msg = ring[index];
+            ring[index] = null;
+            try {
+                currentListener.handle(msg);
+            } catch (MessageQueueException e) {
+                logger.error("Exception handling message '"+msg.getId()+"'", e);
+            } catch (RuntimeException e) {
+                logger.error("Exception handling message '"+msg.getId()+"'", e);
+            }
+            consumerSequence.set(sequence);
+            sequence++;
+        }
+    }
+}
@@ -0,0 +1,107 @@
+/**
+ * Project Vaniglia
+ * User: Michele Aiello
+ *
+ * Copyright (C) 2003/2007  Michele Aiello
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ */
+
+package org.vaniglia.messagequeue;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Enumeration class for the strategies used by the SPSCMessageQueue threads to wait for messages (the consumer) or
+ * for room in the ring (the producer).
+ *
+ * - BusySpin. The thread spins on the sequence. Lowest latency, but it burns a whole core and must be used only when
+ *             there are more cores than busy threads.
+ *
+ * - Yield. The thread spins yielding the CPU to other threads. Low latency while leaving the core to other threads
+ *          when they need it.
+ *
+ * - Park. The thread spins for a while and than it is parked. The consumer is unparked by the producer when a message
+ *         is published, or at the latest after a millisecond, so an idle queue wakes up only once per
+ *         millisecond at the cost of a higher latency after idle periods.
+ */
+public abstract class WaitStrategy {
+
+    private static final int spinTries = 100;
+    private static final long maxParkNanos = 1000000;
+
+    public static final WaitStrategy BusySpin = new WaitStrategy("BusySpin") {
+        int idle(int counter) {
+            return counter + 1;
+        }
+    };
+
+    public static final WaitStrategy Yield = new WaitStrategy("Yield") {
+        int idle(int counter) {
+            if (counter < spinTries) {
+                return counter + 1;
+            }
+            Thread.yield();
+            return counter;
+        }
+    };
+
+    public static final WaitStrategy Park = new WaitStrategy("Park") {
+        int idle(int counter) {
+            if (counter < spinTries) {
+                return counter + 1;
+            }
+            if (counter < 2*spinTries) {
+                Thread.yield();
+                return counter + 1;
+            }
+            // Bounded park, in case the unpark is missed.
+            LockSupport.parkNanos(maxParkNanos);
+            return counter;
+        }
+
+        boolean parks() {
+            return true;
+        }
+    };
+
+    private final String name;
+
+    private WaitStrategy(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Waits once. Called in a loop until the awaited condition is met.
+     *
+     * @param counter the number of times the thread has waited so far, 0 the first time.
+     *
+     * @return the counter to pass to the next call.
+     */
+    abstract int idle(int counter);
+
+    /**
+     * Returns true if waiting threads must be unparked.
+     */
+    boolean parks() {
+        return false;
+    }
+
+    public String toString() {
+        return name;
+    }
+
+}
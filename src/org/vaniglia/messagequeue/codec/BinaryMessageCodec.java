@@ -0,0 +1,201 @@
+/**
+ * Project Vaniglia
+ * User: Michele Aiello
+ *
+ * Copyright (C) 2003/2007  Michele Aiello
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ */
+
+package org.vaniglia.messagequeue.codec;
+
+import org.vaniglia.messagequeue.Message;
+import org.vaniglia.messagequeue.message.StringArrayMessage;
+import org.vaniglia.messagequeue.message.StringMessage;
+
+import java.io.*;
+
+/**
+ * Compact binary codec.
+ * StringMessage and StringArrayMessage are written with a hand written format: a format byte, a type byte, the
+ * message id, timestamp, key and delivery attempts and than the message body. Messages written with the first
+ * version of the format, that had no delivery attempts, are still read. Numbers are written as variable length integers and
+ * strings as a length followed by the UTF-8 bytes (the length is 0 for null strings and length+1 otherwise).
+ * Other message types are written with Java serialization after the format and type bytes.
+ *
+ * Messages written with Java serialization (i.e. by the SerializationMessageCodec or by previous versions) are
+ * recognized and read as well, so a storage can be switched to this codec without losing its messages.
+ */
+public class BinaryMessageCodec implements MessageCodec {
+
+    private static final int formatV1 = 0x01;
+    private static final int formatV2 = 0x02;
+
+    // First byte of Java serialization streams (STREAM_MAGIC is 0xACED).
+    private static final int serializationMagic = 0xAC;
+
+    private static final int serializedType = 0;
+    private static final int stringType = 1;
+    private static final int stringArrayType = 2;
+
+    private static final BinaryMessageCodec instance = new BinaryMessageCodec();
+
+    public static BinaryMessageCodec getInstance() {
+        return instance;
+    }
+
+    public void encode(Message msg, OutputStream out) throws IOException {
+        out.write(formatV2);
+
+        if (msg.getClass() == StringMessage.class) {
+            out.write(stringType);
+            writeHeader(msg, out);
+            writeString(((StringMessage) msg).getBody(), out);
+        }
+        else if (msg.getClass() == StringArrayMessage.class) {
+            out.write(stringArrayType);
+            writeHeader(msg, out);
+            String[] elements = ((StringArrayMessage) msg).getElements();
+            if (elements == null) {
+                writeVarLong(0, out);
+            }
+            else {
+                writeVarLong(elements.length + 1, out);
+                for (int i = 0; i < elements.length; i++) {
+                    writeString(elements[i], out);
+                }
+            }
+        }
+        else {
+            out.write(serializedType);
+            SerializationMessageCodec.getInstance().encode(msg, out);
+        }
+    }
+
+    public Message decode(InputStream in) throws IOException {
+        int format = in.read();
+        if (format == serializationMagic) {
+            return SerializationMessageCodec.getInstance().decode(new SequenceInputStream(new ByteArrayInputStream(new byte[] {(byte) format}), in));
+        }
+        if ((format != formatV1) && (format != formatV2)) {
+            throw new IOException("Unknown message format: "+format);
+        }
+
+        int type = in.read();
+        switch (type) {
+            case serializedType: {
+                return SerializationMessageCodec.getInstance().decode(in);
+            }
+            case stringType: {
+                String id = readString(in);
+                long timestamp = readVarLong(in);
+                String key = readString(in);
+                int attempts = (format == formatV1) ? 0 : (int) readVarLong(in);
+                StringMessage msg = new StringMessage(id, timestamp, readString(in));
+                msg.setKey(key);
+                msg.setAttempts(attempts);
+                return msg;
+            }
+            case stringArrayType: {
+                String id = readString(in);
+                long timestamp = readVarLong(in);
+                String key = readString(in);
+                int attempts = (format == formatV1) ? 0 : (int) readVarLong(in);
+                String[] elements = null;
+                long length = readVarLong(in);
+                if (length > 0) {
+                    elements = new String[(int) (length - 1)];
+                    for (int i = 0; i < elements.length; i++) {
+                        elements[i] = readString(in);
+                    }
+                }
+                StringArrayMessage msg = new StringArrayMessage(id, timestamp, elements);
+                msg.setKey(key);
+                msg.setAttempts(attempts);
+                return msg;
+            }
+            default: {
+                throw new IOException("Unknown message type: "+type);
+            }
+        }
+    }
+
+    private static void writeHeader(Message msg, OutputStream out) throws IOException {
+        writeString(msg.getId(), out);
+        writeVarLong(msg.getTimestamp(), out);
+        writeString(msg.getKey(), out);
+        writeVarLong(msg.getAttempts(), out);
+    }
+
+    private static void writeString(String str, OutputStream out) throws IOException {
+        if (str == null) {
+            writeVarLong(0, out);
+            return;
+        }
+        byte[] bytes = str.getBytes("UTF-8");
+        writeVarLong(bytes.length + 1, out);
+        out.write(bytes);
+    }
+
+    private static String readString(InputStream in) throws IOException {
+        long length = readVarLong(in);
+        if (length == 0) {
+            return null;
+        }
+        byte[] bytes = new byte[(int) (length - 1)];
+        readFully(in, bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    /**
+     * Writes a long using 7 bits per byte, the high bit of each byte tells if more bytes follow. Values are zig-zag
+     * encoded so that small negative values are short as well.
+     */
+    private static void writeVarLong(long value, OutputStream out) throws IOException {
+        long v = (value << 1) ^ (value >> 63);
+        while ((v & ~0x7FL) != 0) {
+            out.write((int) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        out.write((int) v);
+    }
+
+    private static long readVarLong(InputStream in) throws IOException {
+        long v = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException();
+            }
+            v |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return (v >>> 1) ^ -(v & 1);
+            }
+        }
+        throw new IOException("Malformed variable length integer.");
+    }
+
+    private static void readFully(InputStream in, byte[] bytes) throws IOException {
+        int read = 0;
+        while (read < bytes.length) {
+            int n = in.read(bytes, read, bytes.length - read);
+            if (n < 0) {
+                throw new EOFException();
+            }
+            read += n;
+        }
+    }
+}
@@ -0,0 +1,58 @@
+/**
+ * Project Vaniglia
+ * User: Michele Aiello
+ *
+ * Copyright (C) 2003/2007  Michele Aiello
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ */
+
+package org.vaniglia.messagequeue.codec;
+
+import org.vaniglia.messagequeue.Message;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Encoder and decoder of messages used by persistent Message Storages.
+ * The storages don't close nor buffer the streams, the codec should read and write only the bytes of the message.
+ * Codecs must be thread safe.
+ */
+public interface MessageCodec {
+
+    /**
+     * Writes a message to a stream.
+     *
+     * @param msg the message to encode.
+     * @param out the stream where the message is written.
+     *
+     * @throws IOException if the message can't be written.
+     */
+    void encode(Message msg, OutputStream out) throws IOException;
+
+    /**
+     * Reads a message from a stream.
+     *
+     * @param in the stream from which the message is read.
+     *
+     * @return the decoded message.
+     *
+     * @throws IOException if the message can't be read.
+     */
+    Message decode(InputStream in) throws IOException;
+}
@@ -0,0 +1,61 @@
+/**
+ * Project Vaniglia
+ * User: Michele Aiello
+ *
+ * Copyright (C) 2003/2007  Michele Aiello
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ */
+
+package org.vaniglia.messagequeue.codec;
+
+import org.vaniglia.messagequeue.Message;
+
+import java.io.*;
+
+/**
+ * Codec based on Java serialization. This is the default codec of the persistent storages and the format used by
+ * the previous versions.
+ */
+public class SerializationMessageCodec implements MessageCodec {
+
+    private static final SerializationMessageCodec instance = new SerializationMessageCodec();
+
+    public static SerializationMessageCodec getInstance() {
+        return instance;
+    }
+
+    public void encode(Message msg, OutputStream out) throws IOException {
+        ObjectOutputStream objOut = new ObjectOutputStream(out);
+        objOut.writeObject(msg);
+        objOut.flush();
+    }
+
+    public Message decode(InputStream in) throws IOException {
+        ObjectInputStream objIn = new ObjectInputStream(in);
+        try {
+            return (Message) objIn.readObject();
+        } catch (ClassNotFoundException e) {
+            IOException ioe = new IOException("Unknown message class: "+e.getMessage());
+            ioe.initCause(e);
+            throw ioe;
+        } catch (ClassCastException e) {
+            IOException ioe = new IOException("The stream doesn't contain a message.");
+            ioe.initCause(e);
+            throw ioe;
+        }
+    }
+}
@@ -34,6 +34,11 @@ public class StringArrayMessage extends Message {
         this.elements = elements;
     }
 
+    public StringArrayMessage(String id, long timestamp, String[] elements) {
+        super(id, timestamp);
+        this.elements = elements;
+    }
+
     public String[] getElements() {
         return elements;
     }
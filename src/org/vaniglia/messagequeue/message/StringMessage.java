@@ -34,6 +34,11 @@ public class StringMessage extends Message {
         this.body = body;
     }
 
+    public StringMessage(String id, long timestamp, String body) {
+        super(id, timestamp);
+        this.body = body;
+    }
+
     public String getBody() {
         return body;
     }
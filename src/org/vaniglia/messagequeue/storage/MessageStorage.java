@@ -26,12 +26,18 @@ import org.vaniglia.messagequeue.Message;
 import org.vaniglia.time.SystemDate;
 
 import java.io.PrintStream;
+import java.util.Vector;
 
 /**
  * This is the base class for Message Storages.
  */
 public abstract class MessageStorage {
 
+    /**
+     * Value returned by getNextTimestamp by storages that can't tell the due timestamp of their first message.
+     */
+    public static final long UNKNOWN_TIMESTAMP = -1;
+
     protected String name;
 
     /**
@@ -82,6 +88,26 @@ public abstract class MessageStorage {
      */
     public abstract void push(Message msg, long timestamp) throws MessageStorageException;
 
+    /**
+     * Push a batch of messages in the storage.
+     * The default implementation pushes the messages one at a time, storages should override it to push the whole
+     * batch at once. If a message can't be pushed an exception is raised and the following messages are not pushed,
+     * depending on the storage the messages preceding the failing one may have been pushed or not.
+     *
+     * @param msgs the messages to push in.
+     * @param timestamps the messages due timestamps. Must have the same length of msgs.
+     *
+     * @throws MessageStorageException if one of the messages can't be pushed in.
+     */
+    public void push(Message[] msgs, long[] timestamps) throws MessageStorageException {
+        if (msgs.length != timestamps.length) {
+            throw new MessageStorageException("Messages and timestamps have different lengths.");
+        }
+        for (int i = 0; i < msgs.length; i++) {
+            push(msgs[i], timestamps[i]);
+        }
+    }
+
     /**
      * Pops out a message from the storage with a due date earlier than the provided timestamp.
      * The returned message is not removed from the storage but is moved into a special storage area
@@ -104,6 +130,52 @@ public abstract class MessageStorage {
         return pop(SystemDate.getInstance().currentTimeMillis());
     }
 
+    /**
+     * Pops out up to max messages from the storage with a due date earlier than the provided timestamp.
+     * The returned messages are ordered by due date and are moved into the special storage area as for the
+     * pop method. The default implementation pops the messages one at a time, storages should override it to
+     * pop the whole batch at once.
+     *
+     * @param timestamp the timestamp
+     * @param max the maximum number of messages to pop.
+     *
+     * @return the first messages in the storage with msg.timestamp <= timestamp. The array is empty if there are no
+     * messages due.
+     */
+    public Message[] pop(long timestamp, int max) {
+        Vector msgs = new Vector(Math.min(max, 100));
+        while (msgs.size() < max) {
+            Message msg = pop(timestamp);
+            if (msg == null) {
+                break;
+            }
+            msgs.add(msg);
+        }
+        return (Message[]) msgs.toArray(new Message[msgs.size()]);
+    }
+
+    /**
+     * Returns true if the storage pops messages in push order, stopping at the first message that is not due.
+     * In such a storage a message pushed or requeued with a future timestamp delays all the messages pushed after
+     * it, so queues don't allow a retry policy on it (see MessageQueue.setRetryPolicy).
+     *
+     * @return false, storages that pop messages in push order must override it.
+     */
+    public boolean isFifo() {
+        return false;
+    }
+
+    /**
+     * Returns the due timestamp of the first message in the storage. Messages in the special stocking area are not
+     * considered. This method is used by event driven queues to know how long they can sleep, so it must be cheap:
+     * storages that can't answer without scanning the whole storage shall not override it.
+     *
+     * @return the earliest due timestamp, Long.MAX_VALUE if there are no messages or UNKNOWN_TIMESTAMP.
+     */
+    public long getNextTimestamp() {
+        return UNKNOWN_TIMESTAMP;
+    }
+
     /**
      * Removes a message from the storage special stocking area of messages previously returned using
      * one of the pop methods.
@@ -114,6 +186,56 @@ public abstract class MessageStorage {
      */
     public abstract void removeMessage(Message msg) throws MessageStorageException;
 
+    /**
+     * Removes a batch of messages from the storage special stocking area.
+     * All the messages are removed even if some of them are not in the special stocking area, in that case the
+     * exception of the first failure is raised after the whole batch has been processed. The default implementation
+     * removes the messages one at a time, storages should override it to remove the whole batch at once.
+     *
+     * @param msgs the messages to remove.
+     *
+     * @throws MessageStorageException if one of the messages is not in the storage special stocking area.
+     */
+    public void removeMessages(Message[] msgs) throws MessageStorageException {
+        MessageStorageException failure = null;
+        for (int i = 0; i < msgs.length; i++) {
+            try {
+                removeMessage(msgs[i]);
+            } catch (MessageStorageException e) {
+                if (failure == null) {
+                    failure = e;
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Moves a message from the storage special stocking area back to the queued messages, so that it will be
+     * returned again by the pop methods after the given due timestamp. This method is used to redeliver messages
+     * that have not been acknowledged.
+     * The default implementation removes the message and pushes it again, so the message can be lost if the push
+     * fails. Storages should override it to requeue the message atomically.
+     *
+     * @param msg the message to requeue.
+     * @param timestamp the new due timestamp of the message.
+     *
+     * @throws MessageStorageException if the message is not in the storage special stocking area.
+     */
+    public void requeue(Message msg, long timestamp) throws MessageStorageException {
+        removeMessage(msg);
+        push(msg, timestamp);
+    }
+
+    /**
+     * Releases the resources held by the storage, i.e. files, threads or database connections. It is called when the
+     * queue is deleted, after that the storage must not be used anymore. The default implementation does nothing.
+     */
+    public void close() {
+    }
+
     /**
      * Returns the number of messages in the storage.
      *
@@ -121,6 +243,27 @@ public abstract class MessageStorage {
      */
     public abstract long size();
 
+    /**
+     * Returns the maximum number of messages the storage can hold. Pushing a message in a full storage raises a
+     * MessageStorageException. The default implementation returns -1, storages with a size limit must override it.
+     *
+     * @return the storage capacity, or a value less than 1 if the storage is unbounded.
+     */
+    public long getCapacity() {
+        return -1;
+    }
+
+    /**
+     * Returns the progress of the recovery of the messages left in handling when the storage has been opened.
+     * The default implementation returns RecoveryProgress.completed, storages that recover in background must
+     * override it.
+     *
+     * @return the recovery progress.
+     */
+    public RecoveryProgress getRecoveryProgress() {
+        return RecoveryProgress.completed;
+    }
+
     /**
      * Removes all the messages from the storage, including messages in the special stocking area.
      */
@@ -22,12 +22,17 @@
 
 package org.vaniglia.messagequeue.storage;
 
+import org.vaniglia.messagequeue.codec.MessageCodec;
+import org.vaniglia.messagequeue.storage.impl.enhancedfsimpl.MessageStorageEnhancedFileSystem;
+import org.vaniglia.messagequeue.storage.impl.walimpl.MessageStorageWriteAheadMemory;
+import org.vaniglia.messagequeue.storage.impl.walimpl.SyncPolicy;
+
 /**
  * This class is a container for parameters used on Message Storage creation.
  * The base (and abstract) class contains static methods to create and initialize the
  * different subtypes that are used for different Message Storage types.
  */
-public abstract class MessageStorageParameters {
+public abstract class MessageStorageParameters implements Cloneable {
 
     public static class MemoryStorageParameters extends MessageStorageParameters {
         private long size;
@@ -42,6 +47,11 @@ public abstract class MessageStorageParameters {
 
     public static class FileSystemStorageParameters extends MessageStorageParameters {
         private String basedir;
+        private long[] bucketLevels;
+        private int maxFilesPerDirectory = 0;
+        private int bucketDigits = MessageStorageEnhancedFileSystem.defaultBucketDigits;
+        private int recoveryThreads = 4;
+        private boolean backgroundRecovery = false;
 
         public FileSystemStorageParameters(String name) {
             super(name);
@@ -53,12 +63,254 @@ public abstract class MessageStorageParameters {
         public String getBasedir() {
             return basedir;
         }
+        public long[] getBucketLevels() {
+            return bucketLevels;
+        }
+        /**
+         * Sets the directory levels of the FileSystemType storage: the time slot in milliseconds of each level, from
+         * the root to the buckets, each a multiple of the next. The default is {3600000, 60000}, hour directories
+         * and minute buckets.
+         */
+        public void setBucketLevels(long[] bucketLevels) {
+            this.bucketLevels = bucketLevels;
+        }
+        public int getMaxFilesPerDirectory() {
+            return maxFilesPerDirectory;
+        }
+        /**
+         * Sets the maximum number of message files in a directory of the FileSystemType storage. The messages of a
+         * bucket are spread in hashed sub-buckets so that no directory exceeds it. The default is 0, no limit.
+         */
+        public void setMaxFilesPerDirectory(int maxFilesPerDirectory) {
+            this.maxFilesPerDirectory = maxFilesPerDirectory;
+        }
+        public int getBucketDigits() {
+            return bucketDigits;
+        }
+        /**
+         * Sets the number of low digits of the due timestamp not used for the directories of the
+         * EnhancedFileSystemType storage. The default is 3, one leaf directory per second. The value can't be
+         * changed once the storage has been created.
+         */
+        public void setBucketDigits(int bucketDigits) {
+            this.bucketDigits = bucketDigits;
+        }
+        public int getRecoveryThreads() {
+            return recoveryThreads;
+        }
+        /**
+         * Sets the number of threads used to move the messages left in the handling directory back to the queue
+         * when the storage is opened. The default is 4.
+         */
+        public void setRecoveryThreads(int recoveryThreads) {
+            this.recoveryThreads = recoveryThreads;
+        }
+        public boolean isBackgroundRecovery() {
+            return backgroundRecovery;
+        }
+        /**
+         * If true the messages left in the handling directory are recovered in background and the storage can be
+         * used meanwhile (see MessageStorage.getRecoveryProgress), otherwise the storage is opened when the recovery
+         * is completed. The default is false.
+         */
+        public void setBackgroundRecovery(boolean backgroundRecovery) {
+            this.backgroundRecovery = backgroundRecovery;
+        }
+    }
+
+    public static class JournalStorageParameters extends FileSystemStorageParameters {
+        private long segmentSize;
+        private boolean syncOnPush;
+
+        public JournalStorageParameters(String name, String basedir, long segmentSize, boolean syncOnPush) {
+            super(name, basedir);
+            this.segmentSize = segmentSize;
+            this.syncOnPush = syncOnPush;
+        }
+        public long getSegmentSize() {
+            return segmentSize;
+        }
+        public boolean isSyncOnPush() {
+            return syncOnPush;
+        }
+    }
+
+    public static class WriteAheadMemoryStorageParameters extends FileSystemStorageParameters {
+        private SyncPolicy syncPolicy = SyncPolicy.Always;
+        private long syncInterval = MessageStorageWriteAheadMemory.defaultSyncInterval;
+        private long snapshotInterval = MessageStorageWriteAheadMemory.defaultSnapshotInterval;
+        private long snapshotLogSize = MessageStorageWriteAheadMemory.defaultSnapshotLogSize;
+
+        public WriteAheadMemoryStorageParameters(String name, String basedir) {
+            super(name, basedir);
+        }
+        public SyncPolicy getSyncPolicy() {
+            return syncPolicy;
+        }
+        public long getSyncInterval() {
+            return syncInterval;
+        }
+        /**
+         * Sets the log sync policy. The default is SyncPolicy.Always.
+         *
+         * @param syncPolicy the sync policy.
+         * @param syncInterval the sync interval in milliseconds, used by the SyncPolicy.Interval policy only.
+         */
+        public void setSyncPolicy(SyncPolicy syncPolicy, long syncInterval) {
+            this.syncPolicy = syncPolicy;
+            this.syncInterval = syncInterval;
+        }
+        public long getSnapshotInterval() {
+            return snapshotInterval;
+        }
+        /**
+         * Sets the maximum time in milliseconds between two snapshots of the live messages. The default is 10
+         * minutes.
+         */
+        public void setSnapshotInterval(long snapshotInterval) {
+            this.snapshotInterval = snapshotInterval;
+        }
+        public long getSnapshotLogSize() {
+            return snapshotLogSize;
+        }
+        /**
+         * Sets the log size in bytes after which a snapshot of the live messages is taken and the log is restarted.
+         * It bounds the part of the log replayed at startup. The default is 64MB.
+         */
+        public void setSnapshotLogSize(long snapshotLogSize) {
+            this.snapshotLogSize = snapshotLogSize;
+        }
+    }
+
+    public static class RingBufferStorageParameters extends MessageStorageParameters {
+        private int bufferSize;
+
+        public RingBufferStorageParameters(String name, int bufferSize) {
+            super(name);
+            this.bufferSize = bufferSize;
+        }
+        public int getBufferSize() {
+            return bufferSize;
+        }
+    }
+
+    /**
+     * Parameters of a PartitionedMessageQueue: the number of partitions, the storage type of the partitions and the
+     * parameters used to create the partition storages. The storage of each partition is named after the queue name
+     * followed by the partition index, size limits of the partition parameters apply to each partition.
+     */
+    public static class PartitionedStorageParameters extends MessageStorageParameters {
+        private int partitions;
+        private MessageStorageType storageType;
+        private MessageStorageParameters partitionParams;
+
+        public PartitionedStorageParameters(String name, int partitions, MessageStorageType storageType, MessageStorageParameters partitionParams) {
+            super(name);
+            this.partitions = partitions;
+            this.storageType = storageType;
+            this.partitionParams = partitionParams;
+        }
+        public int getPartitions() {
+            return partitions;
+        }
+        public MessageStorageType getStorageType() {
+            return storageType;
+        }
+        public MessageStorageParameters getPartitionParams() {
+            return partitionParams;
+        }
+        /**
+         * Returns the parameters of the storage of a partition.
+         *
+         * @param partition the partition index.
+         *
+         * @return a copy of the partition parameters named after the partition. A JDBC table name, if set, is
+         * suffixed with the partition index.
+         */
+        public MessageStorageParameters getPartitionParams(int partition) {
+            MessageStorageParameters params = partitionParams.copy(getPartitionName(name, partition));
+            if (params instanceof JDBCStorageParameters) {
+                JDBCStorageParameters jdbcParams = (JDBCStorageParameters) params;
+                if (jdbcParams.getTableName() != null) {
+                    jdbcParams.setTableName(jdbcParams.getTableName()+"_"+partition);
+                }
+            }
+            return params;
+        }
+        public static String getPartitionName(String name, int partition) {
+            return name+"-"+partition;
+        }
     }
 
     public static class JDBCStorageParameters extends MessageStorageParameters {
+        private String driver;
+        private String url;
+        private String user;
+        private String password;
+        private int poolSize = 4;
+        private String tableName;
+        private String payloadType;
+        private long claimTimeout = 10*60*1000;
+
         public JDBCStorageParameters(String name) {
             super(name);
         }
+        public JDBCStorageParameters(String name, String driver, String url, String user, String password) {
+            super(name);
+            this.driver = driver;
+            this.url = url;
+            this.user = user;
+            this.password = password;
+        }
+        public String getDriver() {
+            return driver;
+        }
+        public String getUrl() {
+            return url;
+        }
+        public String getUser() {
+            return user;
+        }
+        public String getPassword() {
+            return password;
+        }
+        public int getPoolSize() {
+            return poolSize;
+        }
+        /**
+         * Sets the maximum number of connections to the database. The default is 4.
+         */
+        public void setPoolSize(int poolSize) {
+            this.poolSize = poolSize;
+        }
+        public String getTableName() {
+            return tableName;
+        }
+        /**
+         * Sets the name of the messages table. The default is VMQ_ followed by the storage name.
+         */
+        public void setTableName(String tableName) {
+            this.tableName = tableName;
+        }
+        public String getPayloadType() {
+            return payloadType;
+        }
+        /**
+         * Sets the SQL type of the payload column, for databases that don't support BLOB (i.e. BYTEA).
+         */
+        public void setPayloadType(String payloadType) {
+            this.payloadType = payloadType;
+        }
+        public long getClaimTimeout() {
+            return claimTimeout;
+        }
+        /**
+         * Sets the time in milliseconds after which messages left in handling (i.e. by a crashed JVM) are moved back
+         * to the queue. Must be longer than the time needed to process a message. The default is 10 minutes.
+         */
+        public void setClaimTimeout(long claimTimeout) {
+            this.claimTimeout = claimTimeout;
+        }
     }
 
     /**
@@ -96,12 +348,86 @@ public abstract class MessageStorageParameters {
         return new FileSystemStorageParameters(name);
     }
 
+    /**
+     * Creates a Journal Storage Parameters given its name, basedir, segment size and sync policy.
+     *
+     * @param name the storage name
+     * @param basedir the storage basedir
+     * @param segmentSize the size of the journal segment files in bytes
+     * @param syncOnPush if true pushes return only after the journal has been synced to disk
+     *
+     * @return the newly create JournalStorageParameters object
+     */
+    public static MessageStorageParameters createJournalStorageParameters(String name, String basedir, long segmentSize, boolean syncOnPush) {
+        return new JournalStorageParameters(name, basedir, segmentSize, syncOnPush);
+    }
+
+    /**
+     * Creates a Write Ahead Memory Storage Parameters given its name and basedir. Sync policy and snapshots can be
+     * configured on the returned object.
+     *
+     * @param name the storage name
+     * @param basedir the directory of the log and of the snapshots
+     *
+     * @return the newly create WriteAheadMemoryStorageParameters object
+     */
+    public static WriteAheadMemoryStorageParameters createWriteAheadMemoryStorageParameters(String name, String basedir) {
+        return new WriteAheadMemoryStorageParameters(name, basedir);
+    }
+
+    /**
+     * Creates a Ring Buffer Storage Parameters given its name and buffer size.
+     *
+     * @param name the storage name
+     * @param bufferSize the size of the off heap ring buffer in bytes
+     *
+     * @return the newly create RingBufferStorageParameters object
+     */
+    public static MessageStorageParameters createRingBufferStorageParameters(String name, int bufferSize) {
+        return new RingBufferStorageParameters(name, bufferSize);
+    }
+
+    /**
+     * Creates a Partitioned Storage Parameters given its name, the number of partitions and the storage type and
+     * parameters of the partitions.
+     *
+     * @param name the partitioned queue name
+     * @param partitions the number of partitions
+     * @param storageType the storage type of the partitions
+     * @param partitionParams the parameters of the partition storages, their name is replaced by the partition name
+     *
+     * @return the newly create PartitionedStorageParameters object
+     */
+    public static PartitionedStorageParameters createPartitionedStorageParameters(String name, int partitions, MessageStorageType storageType, MessageStorageParameters partitionParams) {
+        return new PartitionedStorageParameters(name, partitions, storageType, partitionParams);
+    }
+
     public static MessageStorageParameters createJDBCStorageParameters(String name) {
         return new JDBCStorageParameters(name);
     }
 
+    /**
+     * Creates a JDBC Storage Parameters given its name and database connection parameters.
+     *
+     * @param name the storage name
+     * @param driver the JDBC driver class name, or null if the driver is already registered
+     * @param url the database url
+     * @param user the database user, or null if the credentials are in the url
+     * @param password the database password
+     *
+     * @return the newly create JDBCStorageParameters object
+     */
+    public static MessageStorageParameters createJDBCStorageParameters(String name, String driver, String url, String user, String password) {
+        return new JDBCStorageParameters(name, driver, url, user, password);
+    }
+
     protected String name;
 
+    /**
+     * Codec used by persistent storages to write messages, null for the storage default.
+     */
+    protected MessageCodec codec;
+
     protected MessageStorageParameters(String name) {
         this.name = name;
     }
@@ -113,4 +439,36 @@ public abstract class MessageStorageParameters {
     public void setName(String name) {
         this.name = name;
     }
+
+    /**
+     * Returns a copy of these parameters with a different name.
+     *
+     * @param name the name of the copy.
+     *
+     * @return the copy of the parameters.
+     */
+    public MessageStorageParameters copy(String name) {
+        try {
+            MessageStorageParameters copy = (MessageStorageParameters) clone();
+            copy.setName(name);
+            return copy;
+        } catch (CloneNotSupportedException e) {
+            throw new IllegalStateException(e.getMessage());
+        }
+    }
+
+    public MessageCodec getCodec() {
+        return codec;
+    }
+
+    /**
+     * Sets the codec used by persistent storages (FileSystemType, EnhancedFileSystemType and JournalType) to write
+     * messages. Memory storages ignore it. The default is the SerializationMessageCodec, except for the
+     * RingBufferType that uses the BinaryMessageCodec.
+     *
+     * @param codec the message codec or null for the storage default.
+     */
+    public void setCodec(MessageCodec codec) {
+        this.codec = codec;
+    }
 }
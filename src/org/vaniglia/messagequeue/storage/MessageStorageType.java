@@ -25,7 +25,13 @@ package org.vaniglia.messagequeue.storage;
 import org.vaniglia.messagequeue.storage.impl.fsimpl.MessageStorageFileSystem;
 import org.vaniglia.messagequeue.storage.impl.jdbcimpl.MessageStorageJDBC;
 import org.vaniglia.messagequeue.storage.impl.memimpl.MessageStorageMemory;
+import org.vaniglia.messagequeue.storage.impl.memimpl.MessageStorageHeapMemory;
+import org.vaniglia.messagequeue.storage.impl.memimpl.MessageStorageConcurrentMemory;
 import org.vaniglia.messagequeue.storage.impl.enhancedfsimpl.MessageStorageEnhancedFileSystem;
+import org.vaniglia.messagequeue.storage.impl.journalimpl.MessageStorageJournal;
+import org.vaniglia.messagequeue.storage.impl.ringimpl.MessageStorageRingBuffer;
+import org.vaniglia.messagequeue.storage.impl.walimpl.MessageStorageWriteAheadMemory;
+import org.vaniglia.messagequeue.storage.impl.walimpl.SyncPolicy;
 
 /**
  * Enumeration class for all the Message Storage Types available.
@@ -33,6 +39,21 @@ import org.vaniglia.messagequeue.storage.impl.enhancedfsimpl.MessageStorageEnhan
  * - MemoryType. Memory based storage. Messages are kept in memory and if the application terminates or crashes than
  *               all messages will be lost.
  *
+ * - HeapMemoryType. Memory based storage. Like the MemoryType, but messages are indexed by due timestamp in a binary
+ *                   heap so push and pop are O(log n). Uses the same MemoryStorageParameters of the MemoryType.
+ *
+ * - ConcurrentMemoryType. Memory based storage. Like the HeapMemoryType, but lock free. Messages are kept in a
+ *                         concurrent skip list so many threads can publish on the same queue without contention.
+ *                         Uses the same MemoryStorageParameters of the MemoryType.
+ *
+ * - RingBufferType. Memory based storage. Messages are encoded in a ring buffer allocated out of the Java heap, so
+ *                   queued messages don't load the garbage collector. Messages are popped in publication order, it
+ *                   is meant for transient queues whose messages are published with the current time. A message
+ *                   with a due time in the future delays the messages published after it, so queues using this
+ *                   storage can't have a retry policy. Messages not acknowledged within the visibility timeout are
+ *                   requeued with the current time. Uses the RingBufferStorageParameters to set the size of the
+ *                   ring in bytes.
+ *
  * - FileSystemType. File system based storage. Messages are stored on file system file using a directory structure.
  *                   No messages will be lost in case of application termination or crash. Messages that where been
  *                   in handling when the application terminated will be recovered and reprocessed at a future startup.
@@ -41,8 +62,18 @@ import org.vaniglia.messagequeue.storage.impl.enhancedfsimpl.MessageStorageEnhan
  *                           adds some improvements to reduce push and pop delays. The main drawback of this storage
  *                           over the plain FileSystemType is a very complex directory structure.
  *
- * - JDBCType. Database based storage. Messages are stored on a JDBC compliant database. This Storage System is yet
- *             to be implemented
+ * - JournalType. File system based storage. Messages are appended to a few large segment files (a journal) instead
+ *                of being stored one per file, and pushes are synced to disk in groups. No messages will be lost in
+ *                case of application termination or crash. Uses the FileSystemStorageParameters or the
+ *                JournalStorageParameters to set the segment size and the sync policy.
+ *
+ * - WriteAheadMemoryType. Memory based storage made durable by a write-ahead log. Messages are kept in memory as by
+ *                         the HeapMemoryType, pushes and acknowledgments are appended to a log and the live messages
+ *                         are periodically written to a snapshot that bounds the log replayed at startup. Uses the
+ *                         WriteAheadMemoryStorageParameters to set the log sync policy and the snapshot frequency.
+ *
+ * - JDBCType. Database based storage. Messages are stored in a table of a JDBC compliant database, so the same queue
+ *             can be shared by many JVMs. Requires the JDBCStorageParameters with the database url.
  */
 public abstract class MessageStorageType {
 
@@ -61,17 +92,59 @@ public abstract class MessageStorageType {
                 }
             };
 
+    public static final MessageStorageType HeapMemoryType =
+            new MessageStorageType("HeapMemoryType") {
+                public MessageStorage getStorage(MessageStorageParameters params) {
+                    String name = params.getName();
+                    if (params instanceof MessageStorageParameters.MemoryStorageParameters) {
+                        MessageStorageParameters.MemoryStorageParameters memStorageParams = (MessageStorageParameters.MemoryStorageParameters) params;
+                        long size = memStorageParams.getSize();
+                        return new MessageStorageHeapMemory(name, size);
+                    }
+                    else {
+                        return new MessageStorageHeapMemory(name);
+                    }
+                }
+            };
+
+    public static final MessageStorageType ConcurrentMemoryType =
+            new MessageStorageType("ConcurrentMemoryType") {
+                public MessageStorage getStorage(MessageStorageParameters params) {
+                    String name = params.getName();
+                    if (params instanceof MessageStorageParameters.MemoryStorageParameters) {
+                        MessageStorageParameters.MemoryStorageParameters memStorageParams = (MessageStorageParameters.MemoryStorageParameters) params;
+                        long size = memStorageParams.getSize();
+                        return new MessageStorageConcurrentMemory(name, size);
+                    }
+                    else {
+                        return new MessageStorageConcurrentMemory(name);
+                    }
+                }
+            };
+
+    public static final MessageStorageType RingBufferType =
+            new MessageStorageType("RingBufferType") {
+                public MessageStorage getStorage(MessageStorageParameters params) {
+                    String name = params.getName();
+                    if (params instanceof MessageStorageParameters.RingBufferStorageParameters) {
+                        MessageStorageParameters.RingBufferStorageParameters ringParams = (MessageStorageParameters.RingBufferStorageParameters) params;
+                        return new MessageStorageRingBuffer(name, ringParams.getBufferSize(), params.getCodec());
+                    }
+                    else {
+                        return new MessageStorageRingBuffer(name, MessageStorageRingBuffer.defaultBufferSize, params.getCodec());
+                    }
+                }
+            };
+
     public static final MessageStorageType FileSystemType =
             new MessageStorageType("FileSystemType") {
                 public MessageStorage getStorage(MessageStorageParameters params) {
                     String name = params.getName();
                     if (params instanceof MessageStorageParameters.FileSystemStorageParameters) {
-                        MessageStorageParameters.FileSystemStorageParameters fsParams = (MessageStorageParameters.FileSystemStorageParameters) params;
-                        String basePath = fsParams.getBasedir();
-                        return new MessageStorageFileSystem(name, basePath);
+                        return new MessageStorageFileSystem((MessageStorageParameters.FileSystemStorageParameters) params);
                     }
                     else {
-                        return new MessageStorageFileSystem(name);
+                        return new MessageStorageFileSystem(name, null, params.getCodec());
                     }
                 }
             };
@@ -81,12 +154,50 @@ public abstract class MessageStorageType {
                 public MessageStorage getStorage(MessageStorageParameters params) {
                     String name = params.getName();
                     if (params instanceof MessageStorageParameters.FileSystemStorageParameters) {
+                        return new MessageStorageEnhancedFileSystem((MessageStorageParameters.FileSystemStorageParameters) params);
+                    }
+                    else {
+                        return new MessageStorageEnhancedFileSystem(name, null, params.getCodec());
+                    }
+                }
+            };
+
+    public static final MessageStorageType WriteAheadMemoryType =
+            new MessageStorageType("WriteAheadMemoryType") {
+                public MessageStorage getStorage(MessageStorageParameters params) {
+                    String name = params.getName();
+                    if (params instanceof MessageStorageParameters.WriteAheadMemoryStorageParameters) {
+                        MessageStorageParameters.WriteAheadMemoryStorageParameters walParams = (MessageStorageParameters.WriteAheadMemoryStorageParameters) params;
+                        return new MessageStorageWriteAheadMemory(name, walParams.getBasedir(), walParams.getSyncPolicy(), walParams.getSyncInterval(),
+                                walParams.getSnapshotInterval(), walParams.getSnapshotLogSize(), params.getCodec());
+                    }
+                    else if (params instanceof MessageStorageParameters.FileSystemStorageParameters) {
+                        MessageStorageParameters.FileSystemStorageParameters fsParams = (MessageStorageParameters.FileSystemStorageParameters) params;
+                        return new MessageStorageWriteAheadMemory(name, fsParams.getBasedir(), SyncPolicy.Always, MessageStorageWriteAheadMemory.defaultSyncInterval,
+                                MessageStorageWriteAheadMemory.defaultSnapshotInterval, MessageStorageWriteAheadMemory.defaultSnapshotLogSize, params.getCodec());
+                    }
+                    else {
+                        return new MessageStorageWriteAheadMemory(name, null, SyncPolicy.Always, MessageStorageWriteAheadMemory.defaultSyncInterval,
+                                MessageStorageWriteAheadMemory.defaultSnapshotInterval, MessageStorageWriteAheadMemory.defaultSnapshotLogSize, params.getCodec());
+                    }
+                }
+            };
+
+    public static final MessageStorageType JournalType =
+            new MessageStorageType("JournalType") {
+                public MessageStorage getStorage(MessageStorageParameters params) {
+                    String name = params.getName();
+                    if (params instanceof MessageStorageParameters.JournalStorageParameters) {
+                        MessageStorageParameters.JournalStorageParameters journalParams = (MessageStorageParameters.JournalStorageParameters) params;
+                        return new MessageStorageJournal(name, journalParams.getBasedir(), journalParams.getSegmentSize(), journalParams.isSyncOnPush(), params.getCodec());
+                    }
+                    else if (params instanceof MessageStorageParameters.FileSystemStorageParameters) {
                         MessageStorageParameters.FileSystemStorageParameters fsParams = (MessageStorageParameters.FileSystemStorageParameters) params;
                         String basePath = fsParams.getBasedir();
-                        return new MessageStorageEnhancedFileSystem(name, basePath);
+                        return new MessageStorageJournal(name, basePath, MessageStorageJournal.defaultSegmentSize, true, params.getCodec());
                     }
                     else {
-                        return new MessageStorageEnhancedFileSystem(name);
+                        return new MessageStorageJournal(name, null, MessageStorageJournal.defaultSegmentSize, true, params.getCodec());
                     }
                 }
             };
@@ -94,8 +205,11 @@ public abstract class MessageStorageType {
     public static final MessageStorageType JDBCType =
             new MessageStorageType("JDBCType") {
                 public MessageStorage getStorage(MessageStorageParameters params) {
-                    String name = params.getName();
-                    return new MessageStorageJDBC(name);
+                    if (!(params instanceof MessageStorageParameters.JDBCStorageParameters) ||
+                            (((MessageStorageParameters.JDBCStorageParameters) params).getUrl() == null)) {
+                        throw new IllegalArgumentException("JDBCType requires JDBCStorageParameters with the database url.");
+                    }
+                    return new MessageStorageJDBC((MessageStorageParameters.JDBCStorageParameters) params);
                 }
             };
 
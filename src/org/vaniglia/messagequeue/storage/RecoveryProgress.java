@@ -0,0 +1,137 @@
+/**
+ * Project Vaniglia
+ * User: Michele Aiello
+ *
+ * Copyright (C) 2003/2007  Michele Aiello
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ */
+
+package org.vaniglia.messagequeue.storage;
+
+/**
+ * Progress of the recovery of the messages left in handling by a persistent storage.
+ * Storages that recover in background return their progress with MessageStorage.getRecoveryProgress, so that the
+ * application can report it or wait for the recovery to complete.
+ */
+public class RecoveryProgress {
+
+    /**
+     * Progress of storages that have nothing to recover.
+     */
+    public static final RecoveryProgress completed = new RecoveryProgress(0);
+
+    private final long total;
+    private final long startTime;
+    private long recovered = 0;
+    private long errors = 0;
+    private long endTime = -1;
+
+    /**
+     * Class constructor.
+     *
+     * @param total the number of messages to recover.
+     */
+    public RecoveryProgress(long total) {
+        this.total = total;
+        this.startTime = System.currentTimeMillis();
+        if (total == 0) {
+            this.endTime = startTime;
+        }
+    }
+
+    public long getTotal() {
+        return total;
+    }
+
+    public synchronized long getRecovered() {
+        return recovered;
+    }
+
+    public synchronized long getErrors() {
+        return errors;
+    }
+
+    /**
+     * Returns the number of messages recovered or not recovered because of errors.
+     */
+    public synchronized long getProcessed() {
+        return recovered + errors;
+    }
+
+    public synchronized boolean isCompleted() {
+        return endTime >= 0;
+    }
+
+    /**
+     * Returns the recovery time in milliseconds so far, or the total recovery time if the recovery is completed.
+     */
+    public synchronized long getElapsedTime() {
+        return ((endTime >= 0) ? endTime : System.currentTimeMillis()) - startTime;
+    }
+
+    /**
+     * Waits for the recovery to complete.
+     *
+     * @param timeout the maximum time to wait in milliseconds, 0 to wait forever.
+     *
+     * @return true if the recovery is completed.
+     *
+     * @throws InterruptedException if the thread is interrupted while waiting.
+     */
+    public synchronized boolean await(long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (endTime < 0) {
+            long wait = 0;
+            if (timeout > 0) {
+                wait = deadline - System.currentTimeMillis();
+                if (wait <= 0) {
+                    return false;
+                }
+            }
+            wait(wait);
+        }
+        return true;
+    }
+
+    public synchronized void messageRecovered() {
+        recovered++;
+    }
+
+    public synchronized void messageNotRecovered() {
+        errors++;
+    }
+
+    public synchronized void recoveryCompleted() {
+        if (endTime < 0) {
+            endTime = System.currentTimeMillis();
+        }
+        notifyAll();
+    }
+
+    public synchronized String toString() {
+        StringBuffer buff = new StringBuffer(80);
+        buff.append(recovered).append('/').append(total).append(" messages recovered");
+        if (errors > 0) {
+            buff.append(", ").append(errors).append(" not recovered because of errors");
+        }
+        buff.append(" in ").append(getElapsedTime()).append(" ms");
+        if (endTime < 0) {
+            buff.append(" (in progress)");
+        }
+        return buff.toString();
+    }
+}
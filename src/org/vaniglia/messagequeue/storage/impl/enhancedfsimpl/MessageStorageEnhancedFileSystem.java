@@ -25,7 +25,13 @@ package org.vaniglia.messagequeue.storage.impl.enhancedfsimpl;
 import org.vaniglia.messagequeue.storage.MessageStorage;
 import org.vaniglia.messagequeue.storage.MessageStorageType;
 import org.vaniglia.messagequeue.storage.MessageStorageException;
+import org.vaniglia.messagequeue.storage.MessageStorageParameters;
+import org.vaniglia.messagequeue.storage.RecoveryProgress;
 import org.vaniglia.messagequeue.Message;
+import org.vaniglia.messagequeue.codec.MessageCodec;
+import org.vaniglia.messagequeue.codec.SerializationMessageCodec;
+import org.vaniglia.messagequeue.storage.impl.fsimpl.HandlingRecovery;
+import org.vaniglia.messagequeue.storage.impl.fsimpl.MessageFileNames;
 import org.apache.log4j.Logger;
 
 import java.io.*;
@@ -36,10 +42,16 @@ import java.util.Vector;
  * File System based storage for Message Queues.
  * This Message Storage stores messages for the queue in the file system using plain files for the messages
  * and organizing the messages in subdirectories to keep track of their due date. The subdirectories organization
- * is based on the individual digits of the message due timestamp. The folder depth is 13.
+ * is based on the individual digits of the message due timestamp. By default the last 3 digits are not used, so the
+ * folder depth is 10 and each leaf directory holds the messages due in the same second. The number of digits left
+ * out (bucketDigits) can be configured: each digit less makes the leaf directories 10 times smaller and the tree one
+ * level deeper. The number of digits is written in the storage directory when the storage is created and can't be
+ * changed afterwards, pop would not find the messages stored at a different depth.
  *
  * When a messages is popped out of the queue it is moved to an "handling" subdirectory until the processing of the
- * message is completed and than removed from the file system.
+ * message is completed and than removed from the file system. Messages left in the handling directory are moved back
+ * to the queue by a pool of recovery threads when the storage is opened, optionally in background (see
+ * HandlingRecovery).
  */
 public class MessageStorageEnhancedFileSystem extends MessageStorage {
 
@@ -47,15 +59,24 @@ public class MessageStorageEnhancedFileSystem extends MessageStorage {
 
     private static final int numOfDigits = 13;
     private static final long divider = (long) Math.pow(10, (numOfDigits-1));
+    public static final int defaultBucketDigits = 3;
 
     private static final String dirExt = ".vmqfs";
     private static final String msgExt = ".vmqmsg";
+    private static final String tmpExt = ".vmqtmp";
     public static final String handlingSubdirName = "handling";
+    private static final String bucketDigitsFileName = "bucketdigits";
     private static final String defaultBasepath = "./VMQ";
 
     private String basepath;
+    private MessageCodec codec;
     private File rootDir;
     private File handlingSubdir;
+    private int bucketDigits;
+    private int depth;
+    private int recoveryThreads;
+    private boolean backgroundRecovery;
+    private HandlingRecovery recovery;
 
     private FilenameFilter messagesFilenameFilter = new MessagesFilenameFilter(msgExt);
     private FileFilter dirFilter = new FileFilter() {
@@ -71,64 +92,187 @@ public class MessageStorageEnhancedFileSystem extends MessageStorage {
 
 
     public MessageStorageEnhancedFileSystem(String name, String basepath) {
-        super(name);
-        this.basepath = basepath;
+        this(name, basepath, null);
+    }
+
+
+    /**
+     * Class constructor.
+     *
+     * @param name the storage name.
+     * @param basepath the directory where the storage is created, null for the default one.
+     * @param codec the codec used to write the messages, null for the SerializationMessageCodec.
+     */
+    public MessageStorageEnhancedFileSystem(String name, String basepath, MessageCodec codec) {
+        this(createParameters(name, basepath, codec));
+    }
+
+
+    /**
+     * Class constructor.
+     *
+     * @param params the storage parameters: name, base directory, codec, directories depth and recovery options.
+     *
+     * @throws IllegalArgumentException if the bucket digits are out of range, from 0 (one directory per millisecond)
+     * to 12, or differ from the bucket digits the storage has been created with.
+     */
+    public MessageStorageEnhancedFileSystem(MessageStorageParameters.FileSystemStorageParameters params) {
+        super(params.getName());
+        this.bucketDigits = params.getBucketDigits();
+        if ((bucketDigits < 0) || (bucketDigits >= numOfDigits)) {
+            throw new IllegalArgumentException("Invalid bucket digits: "+bucketDigits);
+        }
+        this.depth = numOfDigits - bucketDigits;
+        this.basepath = (params.getBasedir() != null) ? params.getBasedir() : defaultBasepath;
+        this.codec = (params.getCodec() != null) ? params.getCodec() : SerializationMessageCodec.getInstance();
+        this.recoveryThreads = params.getRecoveryThreads();
+        this.backgroundRecovery = params.isBackgroundRecovery();
 
         initialize();
     }
 
 
+    private static MessageStorageParameters.FileSystemStorageParameters createParameters(String name, String basepath, MessageCodec codec) {
+        MessageStorageParameters.FileSystemStorageParameters params = new MessageStorageParameters.FileSystemStorageParameters(name, basepath);
+        params.setCodec(codec);
+        return params;
+    }
+
+
     private void initialize() {
         rootDir = new File(this.basepath+"/"+this.name+dirExt);
         handlingSubdir = new File(this.basepath+"/"+this.name+dirExt+"/"+handlingSubdirName);
 
+        File bucketDigitsFile = new File(rootDir, bucketDigitsFileName);
         if (rootDir.exists()) {
-            if (handlingSubdir.exists()) {
-                File[] recoveryMsgs = handlingSubdir.listFiles(messagesFilenameFilter);
-                if (recoveryMsgs.length > 0) {
-                    logger.info("There are messages left in the handling directory.");
-                    logger.info("Beginning messages recovery...");
-                }
-                int numOfRecoveredMsgs = 0;
-                int errors = 0;
-                for (int i = 0; i < recoveryMsgs.length; i++) {
-                    Message msg = null;
-                    msg = readMsg(recoveryMsgs[i]);
-
-                    if (msg != null) {
-                        try {
-                            push(msg, msg.getTimestamp());
-                            recoveryMsgs[i].delete();
-                            numOfRecoveredMsgs++;
-                        } catch (MessageStorageException e) {
-                            logger.debug(e);
-                            errors++;
-                        }
-                    }
-                    else {
-                        recoveryMsgs[i].delete();
-                        errors++;
-                    }
-                }
-                if (recoveryMsgs.length > 0) {
-                    if (errors > 0) {
-                        logger.info(numOfRecoveredMsgs+" messages recovered and "+errors+" not recovered because of errors.");
-                    }
-                    else {
-                        logger.info(numOfRecoveredMsgs+" messages recovered.");
-                    }
-                    logger.info("Finished messages recovery...");
-                }
-            }
-            else {
+            if (!handlingSubdir.exists()) {
                 handlingSubdir.mkdirs();
             }
+            checkBucketDigits(bucketDigitsFile);
         }
         else {
             rootDir.mkdirs();
             handlingSubdir.mkdirs();
         }
+        if (!bucketDigitsFile.exists()) {
+            writeBucketDigits(bucketDigitsFile);
+        }
+
+        // Temporary files of interrupted requeues, the message is still in handling.
+        File[] tmpFiles = handlingSubdir.listFiles(new MessagesFilenameFilter(tmpExt));
+        for (int i = 0; i < tmpFiles.length; i++) {
+            tmpFiles[i].delete();
+        }
+
+        File[] recoveryMsgs = handlingSubdir.listFiles(messagesFilenameFilter);
+        recovery = new HandlingRecovery(name, recoveryMsgs, new HandlingRecovery.Recoverer() {
+            public boolean recover(File msgFile) {
+                return recoverMsg(msgFile);
+            }
+        }, recoveryThreads);
+        recovery.start();
+        if (!backgroundRecovery) {
+            recovery.await();
+        }
+    }
+
+    /**
+     * Checks that the storage is opened with the bucket digits it has been created with. Storages created before
+     * the bucket digits were written used the default ones.
+     */
+    private void checkBucketDigits(File bucketDigitsFile) {
+        int storedDigits;
+        if (bucketDigitsFile.exists()) {
+            BufferedReader in = null;
+            try {
+                in = new BufferedReader(new FileReader(bucketDigitsFile));
+                storedDigits = Integer.parseInt(in.readLine().trim());
+            } catch (Exception e) {
+                throw new IllegalArgumentException("Can't read the bucket digits of storage "+name+" from "+bucketDigitsFile.getAbsolutePath());
+            } finally {
+                if (in != null) {
+                    try {
+                        in.close();
+                    } catch (IOException e) {
+                    }
+                }
+            }
+        }
+        else if (fileCount(rootDir) > 0) {
+            storedDigits = defaultBucketDigits;
+        }
+        else {
+            return;
+        }
+
+        if (storedDigits != bucketDigits) {
+            throw new IllegalArgumentException("Storage "+name+" has been created with "+storedDigits+" bucket digits, it can't be opened with "+bucketDigits+".");
+        }
+    }
+
+    private void writeBucketDigits(File bucketDigitsFile) {
+        Writer out = null;
+        try {
+            out = new FileWriter(bucketDigitsFile);
+            out.write(Integer.toString(bucketDigits));
+        } catch (IOException e) {
+            logger.error("IOException while writing file: "+bucketDigitsFile.getAbsolutePath(), e);
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    public RecoveryProgress getRecoveryProgress() {
+        return recovery.getProgress();
+    }
+
+    /**
+     * Moves a message left in the handling directory back to the queue. Called by the recovery threads: files
+     * written by older versions are read without holding the storage lock.
+     */
+    private boolean recoverMsg(File msgFile) {
+        if (MessageFileNames.getTimestamp(msgFile.getName()) != MessageFileNames.UNKNOWN_TIMESTAMP) {
+            // The due date is in the file name, the file is moved back without reading it.
+            return requeue(msgFile);
+        }
+
+        Message msg = readMsg(msgFile);
+        if (msg == null) {
+            msgFile.delete();
+            return false;
+        }
+        try {
+            push(msg, msg.getTimestamp());
+        } catch (MessageStorageException e) {
+            logger.debug(e);
+            return false;
+        }
+        msgFile.delete();
+        return true;
+    }
+
+    /**
+     * Moves a message file from the handling directory back to its directory.
+     */
+    private synchronized boolean requeue(File msgFile) {
+        String fileName = msgFile.getName();
+        String dirPath = getDirectoryPath(MessageFileNames.getTimestamp(fileName));
+        File dir = new File(dirPath);
+        if (!dir.exists()) {
+            dir.mkdirs();
+        }
 
+        File file = new File(dirPath+fileName);
+        if (file.exists() || !msgFile.renameTo(file)) {
+            logger.debug("Can't move message file "+fileName+" back to the queue.");
+            return false;
+        }
+        return true;
     }
 
     public MessageStorageType getType() {
@@ -146,7 +290,7 @@ public class MessageStorageEnhancedFileSystem extends MessageStorage {
             dir.mkdirs();
         }
 
-        File file = new File(dirPath+"/"+id+msgExt);
+        File file = new File(dirPath+"/"+MessageFileNames.getFileName(id, timestamp, msgExt));
         if (file.exists()) {
             throw new MessageStorageException("Message already existent!");
         }
@@ -157,7 +301,31 @@ public class MessageStorageEnhancedFileSystem extends MessageStorage {
         // the message from being selected while is still opened.
     }
 
+    public synchronized void push(Message[] msgs, long[] timestamps) throws MessageStorageException {
+        super.push(msgs, timestamps);
+    }
+
     public synchronized Message pop(long timestamp) {
+        Vector popped = new Vector(1);
+        popMessages(timestamp, 1, popped);
+        return popped.isEmpty() ? null : (Message) popped.get(0);
+    }
+
+    /**
+     * Pops out up to max messages. All the due messages in a leaf directory are popped with a single listing of
+     * the directory, the tree is walked again only when the leaf directory has been emptied.
+     */
+    public synchronized Message[] pop(long timestamp, int max) {
+        Vector popped = new Vector(Math.min(max, 100));
+        int before;
+        do {
+            before = popped.size();
+            popMessages(timestamp, max, popped);
+        } while ((popped.size() > before) && (popped.size() < max));
+        return (Message[]) popped.toArray(new Message[popped.size()]);
+    }
+
+    private void popMessages(long timestamp, int max, Vector popped) {
         long ts = timestamp;
         long div = divider;
 
@@ -166,7 +334,7 @@ public class MessageStorageEnhancedFileSystem extends MessageStorage {
         boolean ltpath = false;
         long digit = 0;
 
-        for (int level = 0; level < numOfDigits-3; level++) {
+        for (int level = 0; level < depth; level++) {
             if (ltpath) {
                 digit = 9;
             }
@@ -191,22 +359,35 @@ public class MessageStorageEnhancedFileSystem extends MessageStorage {
         }
 
         boolean forcePrune = false;
+        int removedMsgs = 0;
         File[] msgs = currentDir.listFiles(messagesFilenameFilter);
         Arrays.sort(msgs);
         for (int k = 0; k < msgs.length; k++) {
             File crtMsg = msgs[k];
+            if (MessageFileNames.getTimestamp(crtMsg.getName()) > timestamp) {
+                // Names are sorted by due date, the following messages are not due either.
+                break;
+            }
+
             Message msg = readMsg(crtMsg);
             if (msg != null) {
                 if (msg.getTimestamp() <= timestamp) {
                     boolean moved = crtMsg.renameTo(new File(handlingSubdir.getPath()+"/"+ crtMsg.getName()));
-                    if (forcePrune || (msgs.length == 1)) {
-                        pruneDirectory(currentDir);
-                    }
                     if (!moved) {
                         logger.error("Can't move message file "+crtMsg.getName());
-                        return null;
+                        if (forcePrune) {
+                            pruneDirectory(currentDir);
+                        }
+                        return;
+                    }
+                    removedMsgs++;
+                    popped.add(msg);
+                    if (popped.size() >= max) {
+                        if (forcePrune || (removedMsgs == msgs.length)) {
+                            pruneDirectory(currentDir);
+                        }
+                        return;
                     }
-                    return msg;
                 }
             }
             else {
@@ -214,30 +395,78 @@ public class MessageStorageEnhancedFileSystem extends MessageStorage {
                 if ((crtMsg.isFile()) && (crtMsg.length() == 0)) {
                     logger.info("File '"+crtMsg.getName()+"' is unreadable and contains 0 bytes. The file will be deleted. File modification date is "+crtMsg.lastModified());
                     crtMsg.delete();
+                    removedMsgs++;
                     forcePrune = true;
                 }
             }
         }
 
-        if (forcePrune || (msgs.length == 0)) {
+        if (forcePrune || (removedMsgs == msgs.length)) {
             pruneDirectory(currentDir);
         }
-
-        return null;
     }
 
     public synchronized void removeMessage(Message msg) throws MessageStorageException {
+        getHandlingFile(msg).delete();
+    }
+
+    /**
+     * Requeues a message in handling. The message, with the new due timestamp, is written in a temporary file that
+     * is renamed in its directory, and only then the handling file is deleted. If the storage is stopped meanwhile
+     * the message is never lost, but it can be delivered twice if it was already moved in its directory.
+     */
+    public synchronized void requeue(Message msg, long timestamp) throws MessageStorageException {
+        File handlingFile = getHandlingFile(msg);
+
+        String id = msg.getId();
+        msg.setTimestamp(timestamp);
+        String dirPath = getDirectoryPath(timestamp);
+        File dir = new File(dirPath);
+        if (!dir.exists()) {
+            dir.mkdirs();
+        }
+
+        File file = new File(dirPath+"/"+MessageFileNames.getFileName(id, timestamp, msgExt));
+        File tmpFile = new File(handlingSubdir, MessageFileNames.getFileName(id, timestamp, tmpExt));
+        if (!writeMsg(msg, tmpFile) || !tmpFile.renameTo(file)) {
+            tmpFile.delete();
+            throw new MessageStorageException("Can't requeue message "+id);
+        }
+        handlingFile.delete();
+    }
+
+    /**
+     * Returns the file of a message in handling. The file is looked up by message id: the timestamp of the message
+     * is tried first, but the caller could have changed it since the pop (i.e. publishing the message to a dead
+     * letter queue), in that case the handling directory is listed.
+     *
+     * @throws MessageStorageException if the message is not in handling.
+     */
+    private File getHandlingFile(Message msg) throws MessageStorageException {
         if (msg == null) {
             throw new MessageStorageException("Null message");
         }
         String id = msg.getId();
-        File msgFile = new File(handlingSubdir.getPath()+"/"+id+msgExt);
+        File msgFile = new File(handlingSubdir.getPath()+"/"+MessageFileNames.getFileName(id, msg.getTimestamp(), msgExt));
         if (msgFile.exists()) {
-            msgFile.delete();
+            return msgFile;
         }
-        else {
-            throw new MessageStorageException(msgFile.getName()+" doesn't exist.");
+        // Message pushed by an older version.
+        File oldMsgFile = new File(handlingSubdir.getPath()+"/"+id+msgExt);
+        if (oldMsgFile.exists()) {
+            return oldMsgFile;
         }
+        String[] names = handlingSubdir.list(messagesFilenameFilter);
+        for (int i = 0; (names != null) && (i < names.length); i++) {
+            if (id.equals(MessageFileNames.getMessageId(names[i]))) {
+                return new File(handlingSubdir, names[i]);
+            }
+        }
+        throw new MessageStorageException(msgFile.getName()+" doesn't exist.");
+    }
+
+    public synchronized void removeMessages(Message[] msgs) throws MessageStorageException {
+        super.removeMessages(msgs);
     }
 
     public long size() {
@@ -245,8 +474,12 @@ public class MessageStorageEnhancedFileSystem extends MessageStorage {
     }
 
     public void clear() {
-        deleteDirectory(rootDir);
-        initialize();
+        // The recovery threads need the storage lock.
+        recovery.cancel();
+        synchronized (this) {
+            deleteDirectory(rootDir);
+            initialize();
+        }
     }
 
     public String[] getMessageList() {
@@ -261,7 +494,7 @@ public class MessageStorageEnhancedFileSystem extends MessageStorage {
         File currentDir = rootDir;
         String currentPath = currentDir.getPath();
 
-        for (int level = 0; level < numOfDigits-3; level++) {
+        for (int level = 0; level < depth; level++) {
 
             for (int i = 0; i <= 9; i++) {
                 String subPath = currentPath + "/" + i;
@@ -302,7 +535,7 @@ public class MessageStorageEnhancedFileSystem extends MessageStorage {
         path.append(rootDir.getPath());
         path.append('/');
 
-        for (int i = 0; i < numOfDigits-3; i++) {
+        for (int i = 0; i < depth; i++) {
             long digit = ts/div;
             path.append(digit);
             path.append('/');
@@ -341,15 +574,13 @@ public class MessageStorageEnhancedFileSystem extends MessageStorage {
         }
     }
     private Message readMsg(File file) {
-        ObjectInputStream in = null;
+        InputStream in = null;
         try {
-            in = new ObjectInputStream(new FileInputStream(file));
-            Message msg = (Message) in.readObject();
+            in = new BufferedInputStream(new FileInputStream(file));
+            Message msg = codec.decode(in);
             return msg;
         } catch (IOException e) {
             logger.error("IOException while reading file: "+file.getAbsolutePath(), e);
-        } catch (ClassNotFoundException e) {
-            logger.error("ClassNotFoundException while reading file: "+file.getAbsolutePath(), e);
         } finally {
             if (in != null) {
                 try {
@@ -362,14 +593,16 @@ public class MessageStorageEnhancedFileSystem extends MessageStorage {
         return null;
     }
 
-    private void writeMsg(Message msg, File file) {
-        ObjectOutputStream out = null;
+    private boolean writeMsg(Message msg, File file) {
+        OutputStream out = null;
         try {
-            out = new ObjectOutputStream(new FileOutputStream(file));
-            out.writeObject(msg);
+            out = new BufferedOutputStream(new FileOutputStream(file));
+            codec.encode(msg, out);
+            return true;
         } catch (IOException e) {
             logger.error("IOException while writing msg: "+msg.getId()+" - file: "+file.getAbsolutePath(), e);
             logger.error(msg.toString());
+            return false;
         } finally {
             if (out != null) {
                 try {
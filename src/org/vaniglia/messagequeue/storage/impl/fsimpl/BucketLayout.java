@@ -0,0 +1,137 @@
+/**
+ * Project Vaniglia
+ * User: Michele Aiello
+ *
+ * Copyright (C) 2003/2007  Michele Aiello
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ */
+
+package org.vaniglia.messagequeue.storage.impl.fsimpl;
+
+import java.io.File;
+
+/**
+ * Directories layout of the MessageStorageFileSystem.
+ * Messages are grouped in time slots (buckets) by due date, and each bucket has its own directory. Bucket
+ * directories are organized in a tree of time levels: the layout is defined by the duration in milliseconds of the
+ * time slot of each level, from the root to the bucket, each a multiple of the next. The default levels are
+ * {3600000, 60000}: hour directories containing minute buckets, i.e. "root/470589/28235372".
+ *
+ * When a maximum number of files per directory is set the messages of a bucket are spread in hashed sub-buckets
+ * ("root/470589/28235372/h3"). The number of sub-buckets grows with the bucket size and a message is put in the next
+ * sub-bucket if its own is full, so no directory holds more than the maximum number of files.
+ */
+class BucketLayout {
+
+    public static final long[] defaultLevels = new long[] {3600000, 60000};
+
+    private static final String subBucketPrefix = "h";
+    private static final int maxHashedSubBuckets = 1 << 16;
+
+    private final long[] levels;
+    private final long bucketMillis;
+    private final int maxFilesPerDirectory;
+
+    /**
+     * Class constructor.
+     *
+     * @param levels the time slot in milliseconds of each directory level, the last one is the bucket time slot.
+     * null for the default levels.
+     * @param maxFilesPerDirectory the maximum number of message files in a directory, 0 to put all the messages of
+     * a bucket in the bucket directory.
+     *
+     * @throws IllegalArgumentException if a level is not positive or not a multiple of the next one.
+     */
+    BucketLayout(long[] levels, int maxFilesPerDirectory) {
+        if ((levels == null) || (levels.length == 0)) {
+            levels = defaultLevels;
+        }
+        for (int i = 0; i < levels.length; i++) {
+            if ((levels[i] <= 0) || ((i > 0) && ((levels[i-1] % levels[i]) != 0))) {
+                throw new IllegalArgumentException("Invalid bucket levels: each level must be a positive multiple of the next one.");
+            }
+        }
+        this.levels = (long[]) levels.clone();
+        this.bucketMillis = levels[levels.length-1];
+        this.maxFilesPerDirectory = Math.max(0, maxFilesPerDirectory);
+    }
+
+    long getBucketMillis() {
+        return bucketMillis;
+    }
+
+    int getMaxFilesPerDirectory() {
+        return maxFilesPerDirectory;
+    }
+
+    boolean hasSubBuckets() {
+        return maxFilesPerDirectory > 0;
+    }
+
+    long getBucket(long timestamp) {
+        return timestamp/bucketMillis;
+    }
+
+    /**
+     * Returns the path of the directory of a bucket.
+     */
+    String getBucketPath(File rootDir, long bucket) {
+        String rootPath = rootDir.getPath();
+        StringBuffer path = new StringBuffer(rootPath.length()+levels.length*10);
+        path.append(rootPath);
+        long start = bucket*bucketMillis;
+        for (int i = 0; i < levels.length-1; i++) {
+            path.append('/').append(start/levels[i]);
+        }
+        path.append('/').append(bucket);
+        return path.toString();
+    }
+
+    /**
+     * Returns the first sub-bucket to try for a message. The messages are hashed on a number of sub-buckets that
+     * doubles every time the bucket size reaches the capacity of the current sub-buckets.
+     *
+     * @param id the message id.
+     * @param bucketSize the number of messages already in the bucket.
+     */
+    int getSubBucket(String id, long bucketSize) {
+        int subBuckets = 1;
+        while ((subBuckets < maxHashedSubBuckets) && (bucketSize >= (long) subBuckets*maxFilesPerDirectory)) {
+            subBuckets <<= 1;
+        }
+        int hash = id.hashCode();
+        hash ^= (hash >>> 16);
+        return hash & (subBuckets-1);
+    }
+
+    static String getSubBucketName(int subBucket) {
+        return subBucketPrefix+subBucket;
+    }
+
+    static boolean isSubBucketName(String name) {
+        if ((name.length() <= subBucketPrefix.length()) || !name.startsWith(subBucketPrefix)) {
+            return false;
+        }
+        for (int i = subBucketPrefix.length(); i < name.length(); i++) {
+            char c = name.charAt(i);
+            if ((c < '0') || (c > '9')) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
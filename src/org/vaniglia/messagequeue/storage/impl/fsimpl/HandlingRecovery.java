@@ -0,0 +1,194 @@
+/**
+ * Project Vaniglia
+ * User: Michele Aiello
+ *
+ * Copyright (C) 2003/2007  Michele Aiello
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ */
+
+package org.vaniglia.messagequeue.storage.impl.fsimpl;
+
+import org.apache.log4j.Logger;
+import org.vaniglia.messagequeue.storage.RecoveryProgress;
+
+import java.io.File;
+
+/**
+ * Recovery of the message files left in the handling directory of a file system storage.
+ * The files are shared by a pool of worker threads, each moving the files back to the queue with the storage
+ * Recoverer, so that the recovery of a large handling directory is not bound to a single thread. The recovery can
+ * run in background: the storage is usable meanwhile and the recovery progress is logged periodically.
+ */
+public class HandlingRecovery {
+
+    private static final Logger logger = Logger.getLogger(HandlingRecovery.class);
+
+    private static final long progressLogInterval = 10000;
+
+    /**
+     * Moves a message file back from the handling directory to the queue.
+     */
+    public interface Recoverer {
+        /**
+         * @param msgFile the message file in the handling directory.
+         *
+         * @return true if the message has been moved back to the queue.
+         */
+        boolean recover(File msgFile);
+    }
+
+    private final String storageName;
+    private final File[] files;
+    private final Recoverer recoverer;
+    private final Thread[] workers;
+    private final RecoveryProgress progress;
+
+    private int nextFile = 0;
+    private int runningWorkers;
+    private long lastLogTime;
+    private volatile boolean cancelled = false;
+
+    /**
+     * Class constructor.
+     *
+     * @param storageName the name of the storage, for logging and threads names.
+     * @param files the message files to recover.
+     * @param recoverer the storage recoverer.
+     * @param threads the number of worker threads.
+     */
+    public HandlingRecovery(String storageName, File[] files, Recoverer recoverer, int threads) {
+        this.storageName = storageName;
+        this.files = files;
+        this.recoverer = recoverer;
+        this.progress = new RecoveryProgress(files.length);
+        this.workers = new Thread[Math.max(1, Math.min(threads, files.length))];
+        this.runningWorkers = workers.length;
+    }
+
+    public RecoveryProgress getProgress() {
+        return progress;
+    }
+
+    /**
+     * Starts the worker threads and returns.
+     */
+    public void start() {
+        if (files.length == 0) {
+            return;
+        }
+
+        logger.info("There are messages left in the handling directory of storage "+storageName+".");
+        logger.info("Beginning messages recovery of "+files.length+" messages with "+workers.length+" threads...");
+        lastLogTime = System.currentTimeMillis();
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new Thread(new Runnable() {
+                public void run() {
+                    work();
+                }
+            }, storageName+" Recovery-"+i);
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+    }
+
+    /**
+     * Waits for the recovery to complete.
+     */
+    public void await() {
+        try {
+            progress.await(0);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Stops the recovery and waits for the worker threads to terminate. Messages not recovered yet are left in the
+     * handling directory. Must not be called holding locks needed by the Recoverer.
+     */
+    public void cancel() {
+        cancelled = true;
+        for (int i = 0; i < workers.length; i++) {
+            if (workers[i] != null) {
+                try {
+                    workers[i].join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    private void work() {
+        try {
+            File file;
+            while (!cancelled && ((file = nextFile()) != null)) {
+                boolean recovered;
+                try {
+                    recovered = recoverer.recover(file);
+                } catch (RuntimeException e) {
+                    logger.error("Exception recovering message file "+file.getAbsolutePath(), e);
+                    recovered = false;
+                }
+                if (recovered) {
+                    progress.messageRecovered();
+                }
+                else {
+                    progress.messageNotRecovered();
+                }
+                logProgress();
+            }
+        } finally {
+            workerDone();
+        }
+    }
+
+    private synchronized File nextFile() {
+        return (nextFile < files.length) ? files[nextFile++] : null;
+    }
+
+    private void logProgress() {
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            if (now - lastLogTime < progressLogInterval) {
+                return;
+            }
+            lastLogTime = now;
+        }
+        logger.info("Storage "+storageName+" recovery: "+progress);
+    }
+
+    private void workerDone() {
+        synchronized (this) {
+            if (--runningWorkers > 0) {
+                return;
+            }
+        }
+        if (cancelled) {
+            logger.info("Storage "+storageName+" recovery cancelled: "+progress);
+        }
+        else if (progress.getErrors() > 0) {
+            logger.info(progress.getRecovered()+" messages recovered and "+progress.getErrors()+" not recovered because of errors.");
+        }
+        else {
+            logger.info(progress.getRecovered()+" messages recovered.");
+        }
+        logger.info("Finished messages recovery...");
+        progress.recoveryCompleted();
+    }
+}
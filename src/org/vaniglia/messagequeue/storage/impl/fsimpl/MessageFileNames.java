@@ -0,0 +1,113 @@
+/**
+ * Project Vaniglia
+ * User: Michele Aiello
+ *
+ * Copyright (C) 2003/2007  Michele Aiello
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ */
+
+package org.vaniglia.messagequeue.storage.impl.fsimpl;
+
+/**
+ * Names of the message files of the file system storages.
+ * The message due timestamp is encoded in the file name, zero padded to 19 digits, before the message id:
+ * "0000001234567890123_messageId.vmqmsg". The storages can decide if a message is due and sort messages by due
+ * date without reading the files, and sorting the names of a directory sorts its messages by due date.
+ *
+ * Files written by older versions are named after the message id only, for them the timestamp is unknown and the
+ * message must be read to know it.
+ */
+public class MessageFileNames {
+
+    public static final long UNKNOWN_TIMESTAMP = -1;
+
+    private static final int timestampDigits = 19;
+    private static final char separator = '_';
+
+    private MessageFileNames() {
+    }
+
+    /**
+     * Returns the file name of a message.
+     *
+     * @param id the message id.
+     * @param timestamp the message due timestamp.
+     * @param extension the message file extension.
+     *
+     * @return the file name of the message.
+     */
+    public static String getFileName(String id, long timestamp, String extension) {
+        if (timestamp < 0) {
+            return id+extension;
+        }
+
+        String tsStr = String.valueOf(timestamp);
+        StringBuffer buff = new StringBuffer(timestampDigits+id.length()+extension.length()+1);
+        for (int i = tsStr.length(); i < timestampDigits; i++) {
+            buff.append('0');
+        }
+        return buff.append(tsStr).append(separator).append(id).append(extension).toString();
+    }
+
+    /**
+     * Returns the due timestamp encoded in a message file name.
+     *
+     * @param fileName the message file name.
+     *
+     * @return the message due timestamp or UNKNOWN_TIMESTAMP if the file name has the old format.
+     */
+    public static long getTimestamp(String fileName) {
+        if (!hasTimestamp(fileName)) {
+            return UNKNOWN_TIMESTAMP;
+        }
+
+        long timestamp = 0;
+        for (int i = 0; i < timestampDigits; i++) {
+            timestamp = timestamp*10 + (fileName.charAt(i) - '0');
+        }
+        return timestamp;
+    }
+
+    /**
+     * Returns the id of the message stored in a file.
+     *
+     * @param fileName the message file name.
+     *
+     * @return the message id.
+     */
+    public static String getMessageId(String fileName) {
+        int begin = hasTimestamp(fileName) ? timestampDigits+1 : 0;
+        int end = fileName.lastIndexOf('.');
+        if (end <= begin) {
+            end = fileName.length();
+        }
+        return fileName.substring(begin, end);
+    }
+
+    private static boolean hasTimestamp(String fileName) {
+        if ((fileName.length() <= timestampDigits+1) || (fileName.charAt(timestampDigits) != separator)) {
+            return false;
+        }
+        for (int i = 0; i < timestampDigits; i++) {
+            char c = fileName.charAt(i);
+            if ((c < '0') || (c > '9')) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
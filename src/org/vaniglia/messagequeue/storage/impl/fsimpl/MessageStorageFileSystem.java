@@ -23,13 +23,19 @@
 package org.vaniglia.messagequeue.storage.impl.fsimpl;
 
 import org.vaniglia.messagequeue.Message;
+import org.vaniglia.messagequeue.codec.MessageCodec;
+import org.vaniglia.messagequeue.codec.SerializationMessageCodec;
 import org.vaniglia.messagequeue.storage.MessageStorageException;
 import org.vaniglia.messagequeue.storage.MessageStorage;
+import org.vaniglia.messagequeue.storage.MessageStorageParameters;
 import org.vaniglia.messagequeue.storage.MessageStorageType;
+import org.vaniglia.messagequeue.storage.RecoveryProgress;
 import org.apache.log4j.Logger;
 
 import java.io.*;
-import java.util.Arrays;
+import java.util.Iterator;
+import java.util.SortedMap;
+import java.util.TreeSet;
 import java.util.Vector;
 
 /**
@@ -39,6 +45,19 @@ import java.util.Vector;
  *
  * When a messages is popped out of the queue it is moved to an "handling" subdirectory until the processing of the
  * message is completed and than removed from the file system.
+ *
+ * The storage keeps an index of its messages (see MessagesIndex), so size, listing and pop methods don't need to walk
+ * the directories tree: pop starts from the earliest bucket of the index and reads only the message files it
+ * is going to return. Message files are named after their due date (see MessageFileNames), so due messages are
+ * found without reading the files.
+ *
+ * By default messages are grouped in minute buckets inside hour directories. The bucket levels and the maximum
+ * number of files per directory can be configured (see BucketLayout), i.e. for queues with many messages due in the
+ * same minute. The layout can be changed on an existing storage: messages already stored are left where they are.
+ *
+ * When the storage is opened the messages left in the handling directory are moved back to the queue by a pool of
+ * recovery threads (see HandlingRecovery), without reading the files whose name has the due date. The recovery can
+ * run in background while the storage is used (see getRecoveryProgress).
  */
 public class MessageStorageFileSystem extends MessageStorage {
 
@@ -46,14 +65,20 @@ public class MessageStorageFileSystem extends MessageStorage {
 
     private static final String dirExt = ".vmqfs";
     private static final String msgExt = ".vmqmsg";
+    private static final String tmpExt = ".vmqtmp";
     public static final String handlingSubdirName = "handling";
     private static final String defaultBasepath = "./VMQ";
 
     private String basepath;
+    private MessageCodec codec;
     private File rootDir;
     private File handlingSubdir;
+    private MessagesIndex index;
+    private BucketLayout layout;
+    private int recoveryThreads;
+    private boolean backgroundRecovery;
+    private HandlingRecovery recovery;
 
-    private SubdirectoriesFilter filter = new SubdirectoriesFilter();
     private FileFilter dirFilter = new OnlyDirectoriesFilter();
     private FilenameFilter messagesFilenameFilter = new MessagesFilenameFilter(msgExt);
 
@@ -62,61 +87,224 @@ public class MessageStorageFileSystem extends MessageStorage {
     }
 
     public MessageStorageFileSystem(String name, String basepath) {
-        super(name);
-        this.basepath = basepath;
+        this(name, basepath, null);
+    }
+
+    /**
+     * Class constructor.
+     *
+     * @param name the storage name.
+     * @param basepath the directory where the storage is created, null for the default one.
+     * @param codec the codec used to write the messages, null for the SerializationMessageCodec.
+     */
+    public MessageStorageFileSystem(String name, String basepath, MessageCodec codec) {
+        this(createParameters(name, basepath, codec));
+    }
+
+    /**
+     * Class constructor.
+     *
+     * @param params the storage parameters: name, base directory, codec, directories layout and recovery options.
+     */
+    public MessageStorageFileSystem(MessageStorageParameters.FileSystemStorageParameters params) {
+        super(params.getName());
+        this.basepath = (params.getBasedir() != null) ? params.getBasedir() : defaultBasepath;
+        this.codec = (params.getCodec() != null) ? params.getCodec() : SerializationMessageCodec.getInstance();
+        this.layout = new BucketLayout(params.getBucketLevels(), params.getMaxFilesPerDirectory());
+        this.recoveryThreads = params.getRecoveryThreads();
+        this.backgroundRecovery = params.isBackgroundRecovery();
 
         initialize();
     }
 
+    private static MessageStorageParameters.FileSystemStorageParameters createParameters(String name, String basepath, MessageCodec codec) {
+        MessageStorageParameters.FileSystemStorageParameters params = new MessageStorageParameters.FileSystemStorageParameters(name, basepath);
+        params.setCodec(codec);
+        return params;
+    }
+
     private void initialize() {
         rootDir = new File(this.basepath+"/"+this.name+dirExt);
         handlingSubdir = new File(this.basepath+"/"+this.name+dirExt+"/"+handlingSubdirName);
 
         if (rootDir.exists()) {
-            if (handlingSubdir.exists()) {
-                File[] recoveryMsgs = handlingSubdir.listFiles(messagesFilenameFilter);
-                if (recoveryMsgs.length > 0) {
-                    logger.info("There are messages left in the handling directory.");
-                    logger.info("Beginning messages recovery...");
-                }
-                int numOfRecoveredMsgs = 0;
-                int errors = 0;
-                for (int i = 0; i < recoveryMsgs.length; i++) {
-                    Message msg = null;
-                    msg = readMsg(recoveryMsgs[i]);
-
-                    if (msg != null) {
-                        try {
-                            push(msg, msg.getTimestamp());
-                            recoveryMsgs[i].delete();
-                            numOfRecoveredMsgs++;
-                        } catch (MessageStorageException e) {
-                            logger.debug(e);
-                            errors++;
-                        }
-                    }
-                    else {
-                        recoveryMsgs[i].delete();
-                        errors++;
-                    }
-                }
-                if (recoveryMsgs.length > 0) {
-                    if (errors > 0) {
-                        logger.info(numOfRecoveredMsgs+" messages recovered and "+errors+" not recovered because of errors.");
-                    }
-                    else {
-                        logger.info(numOfRecoveredMsgs+" messages recovered.");
-                    }
-                    logger.info("Finished messages recovery...");
-                }
-            }
-            else {
+            buildIndex();
+            if (!handlingSubdir.exists()) {
                 handlingSubdir.mkdirs();
             }
         }
         else {
             rootDir.mkdirs();
             handlingSubdir.mkdirs();
+            index = new MessagesIndex(rootDir);
+        }
+
+        // Messages left in the handling directory stay in handling in the index until they are recovered, so they
+        // are counted and their ids can't be reused meanwhile.
+        // Temporary files of interrupted requeues, the message is still in handling.
+        File[] tmpFiles = handlingSubdir.listFiles(new MessagesFilenameFilter(tmpExt));
+        for (int i = 0; i < tmpFiles.length; i++) {
+            tmpFiles[i].delete();
+        }
+
+        File[] recoveryMsgs = handlingSubdir.listFiles(messagesFilenameFilter);
+        for (int i = 0; i < recoveryMsgs.length; i++) {
+            String fileName = recoveryMsgs[i].getName();
+            index.addHandling(MessageFileNames.getMessageId(fileName), fileName);
+        }
+
+        recovery = new HandlingRecovery(name, recoveryMsgs, new HandlingRecovery.Recoverer() {
+            public boolean recover(File msgFile) {
+                return recoverMsg(msgFile);
+            }
+        }, recoveryThreads);
+        recovery.start();
+        if (!backgroundRecovery) {
+            recovery.await();
+        }
+    }
+
+    public RecoveryProgress getRecoveryProgress() {
+        return recovery.getProgress();
+    }
+
+    /**
+     * Moves a message left in the handling directory back to the queue. Called by the recovery threads: the file is
+     * moved and read without holding the storage lock.
+     */
+    private boolean recoverMsg(File msgFile) {
+        if (MessageFileNames.getTimestamp(msgFile.getName()) != MessageFileNames.UNKNOWN_TIMESTAMP) {
+            // The due date is in the file name, the file is moved back without reading it.
+            return requeue(msgFile);
+        }
+
+        String fileName = msgFile.getName();
+        String id = MessageFileNames.getMessageId(fileName);
+        Message msg = readMsg(msgFile);
+        synchronized (this) {
+            if (!fileName.equals(index.getHandlingFileName(id))) {
+                // Removed meanwhile.
+                return false;
+            }
+            index.removeHandling(id);
+            if (index.getFile(id) != null) {
+                deleteRequeued(msgFile);
+                return false;
+            }
+            if (msg == null) {
+                msgFile.delete();
+                return false;
+            }
+            try {
+                push(msg, msg.getTimestamp());
+            } catch (MessageStorageException e) {
+                logger.debug(e);
+                index.addHandling(id, fileName);
+                return false;
+            }
+            msgFile.delete();
+        }
+        return true;
+    }
+
+    /**
+     * Moves a message file from the handling directory back to its bucket. The target directory is reserved in the
+     * index, so it is not pruned and its sub-bucket is not overfilled, while the file is renamed without the
+     * storage lock.
+     */
+    private boolean requeue(File msgFile) {
+        String fileName = msgFile.getName();
+        String id = MessageFileNames.getMessageId(fileName);
+        long bucket = getBucket(MessageFileNames.getTimestamp(fileName));
+
+        File dir;
+        synchronized (this) {
+            if (!fileName.equals(index.getHandlingFileName(id))) {
+                logger.debug("Can't move message file "+fileName+" back to the queue.");
+                return false;
+            }
+            if (index.getFile(id) != null) {
+                index.removeHandling(id);
+                deleteRequeued(msgFile);
+                return false;
+            }
+            dir = getMessageDirectory(id, bucket);
+            if (!dir.exists()) {
+                dir.mkdirs();
+            }
+            index.reserve(dir);
+        }
+
+        File file = new File(dir, fileName);
+        boolean moved = !file.exists() && msgFile.renameTo(file);
+
+        synchronized (this) {
+            index.release(dir);
+            if (!moved) {
+                logger.debug("Can't move message file "+fileName+" back to the queue.");
+                return false;
+            }
+            index.removeHandling(id);
+            index.addQueued(id, bucket, file);
+        }
+        return true;
+    }
+
+    /**
+     * Deletes a handling file whose message is queued too: requeue has been interrupted after the new message
+     * file was moved in its bucket.
+     */
+    private void deleteRequeued(File msgFile) {
+        logger.info("Message file "+msgFile.getName()+" has already been requeued, deleting it from handling.");
+        msgFile.delete();
+    }
+
+    /**
+     * Builds the messages index with a single walk of the directories tree. Messages are not read.
+     */
+    private void buildIndex() {
+        index = new MessagesIndex(rootDir);
+
+        File[] dirs = rootDir.listFiles(dirFilter);
+        for (int i = 0; i < dirs.length; i++) {
+            if (!dirs[i].equals(handlingSubdir)) {
+                indexDirectory(dirs[i], -1);
+            }
+        }
+    }
+
+    /**
+     * Adds to the index the messages in a directory and in its subdirectories. The bucket of a message is computed
+     * from the due date in the file name, so messages stored with a different layout are indexed too. Files written
+     * by older versions are indexed in the bucket of their directory.
+     *
+     * @param dir the directory.
+     * @param dirBucket the bucket of the directory, the nearest numeric directory name, or -1 if unknown.
+     */
+    private void indexDirectory(File dir, long dirBucket) {
+        String name = dir.getName();
+        if (!BucketLayout.isSubBucketName(name)) {
+            try {
+                dirBucket = Long.parseLong(name);
+            } catch (NumberFormatException e) {
+                return;
+            }
+        }
+
+        String[] msgs = dir.list(messagesFilenameFilter);
+        for (int k = 0; k < msgs.length; k++) {
+            long timestamp = MessageFileNames.getTimestamp(msgs[k]);
+            long bucket = (timestamp != MessageFileNames.UNKNOWN_TIMESTAMP) ? getBucket(timestamp) : dirBucket;
+            if (bucket < 0) {
+                logger.warn("Unable to index message file "+new File(dir, msgs[k]).getAbsolutePath());
+                continue;
+            }
+            index.addQueued(MessageFileNames.getMessageId(msgs[k]), bucket, new File(dir, msgs[k]));
+        }
+
+        File[] subdirs = dir.listFiles(dirFilter);
+        for (int i = 0; i < subdirs.length; i++) {
+            indexDirectory(subdirs[i], dirBucket);
         }
     }
 
@@ -129,31 +317,33 @@ public class MessageStorageFileSystem extends MessageStorage {
         String id = msg.getId();
         msg.setTimestamp(timestamp);
 
-        String dirPath = getDirectoryPath(timestamp);
-        File dir = new File(dirPath);
+        long bucket = getBucket(timestamp);
+        File dir = getMessageDirectory(id, bucket);
         if (!dir.exists()) {
             dir.mkdirs();
         }
 
-        File file = new File(dirPath+"/"+id+msgExt);
-        if (file.exists()) {
+        File file = new File(dir, MessageFileNames.getFileName(id, timestamp, msgExt));
+        if (index.contains(id) || file.exists()) {
             throw new MessageStorageException("Message already existent!");
         }
-        else {
-            writeMsg(msg, file);
+        else if (writeMsg(msg, file)) {
+            index.addQueued(id, bucket, file);
         }
         // IN PROGRESS file with difference extensions and than move to the final name to avoid
         // the message from being selected while is still opened.
     }
 
-    private void writeMsg(Message msg, File file) {
-        ObjectOutputStream out = null;
+    private boolean writeMsg(Message msg, File file) {
+        OutputStream out = null;
         try {
-            out = new ObjectOutputStream(new FileOutputStream(file));
-            out.writeObject(msg);
+            out = new BufferedOutputStream(new FileOutputStream(file));
+            codec.encode(msg, out);
+            return true;
         } catch (IOException e) {
             logger.error("IOException while writing msg: "+msg.getId()+" - file: "+file.getAbsolutePath(), e);
             logger.error(msg.toString());
+            return false;
         } finally {
             if (out != null) {
                 try {
@@ -165,15 +355,13 @@ public class MessageStorageFileSystem extends MessageStorage {
     }
 
     private Message readMsg(File file) {
-        ObjectInputStream in = null;
+        InputStream in = null;
         try {
-            in = new ObjectInputStream(new FileInputStream(file));
-            Message msg = (Message) in.readObject();
+            in = new BufferedInputStream(new FileInputStream(file));
+            Message msg = codec.decode(in);
             return msg;
         } catch (IOException e) {
             logger.error("IOException while reading file: "+file.getAbsolutePath(), e);
-        } catch (ClassNotFoundException e) {
-            logger.error("ClassNotFoundException while reading file: "+file.getAbsolutePath(), e);
         } finally {
             if (in != null) {
                 try {
@@ -186,50 +374,74 @@ public class MessageStorageFileSystem extends MessageStorage {
         return null;
     }
 
+    public synchronized void push(Message[] msgs, long[] timestamps) throws MessageStorageException {
+        super.push(msgs, timestamps);
+    }
+
     public synchronized Message pop(long timestamp) {
-        filter.setTimestamp(timestamp);
-        filter.setLevel(SubdirectoriesFilter.FIRST_LEVEL);
-        File[] firstLeveldirs = rootDir.listFiles(filter);
-
-//        Arrays.sort(firstLeveldirs, numberFilenameComparator);
-        Arrays.sort(firstLeveldirs);
-
-        filter.setLevel(SubdirectoriesFilter.SECOND_LEVEL);
-        for (int i = 0; i < firstLeveldirs.length; i++) {
-            File[] secondLevelDirs = firstLeveldirs[i].listFiles(filter);
-//            Arrays.sort(secondLevelDirs, numberFilenameComparator);
-            Arrays.sort(secondLevelDirs);
-            for (int j = 0; j < secondLevelDirs.length; j++) {
-                File[] msgs = secondLevelDirs[j].listFiles(messagesFilenameFilter);
-//                Arrays.sort(msgs, numberFilenameComparator);
-                Arrays.sort(msgs);
-                for (int k = 0; k < msgs.length; k++) {
-                    File crtMsg = msgs[k];
-                    Message msg = readMsg(crtMsg);
-                    if (msg != null) {
-                        if (msg.getTimestamp() <= timestamp) {
-                            boolean moved = crtMsg.renameTo(new File(handlingSubdir.getPath()+"/"+ crtMsg.getName()));
-                            if (!moved) {
-                                logger.error("Can't move message file "+crtMsg.getName());
-                                return null;
-                            }
-                            if (msgs.length == 1) {
-                                pruneDirectory(secondLevelDirs[j]);
-                            }
-                            return msg;
-                        }
-                    }
-                    else {
-                        logger.error("Unable to read file: "+crtMsg.getAbsolutePath());
+        Vector popped = new Vector(1);
+        popMessages(timestamp, 1, popped);
+        return popped.isEmpty() ? null : (Message) popped.get(0);
+    }
+
+    /**
+     * Pops out up to max messages with a single scan of the directories tree.
+     */
+    public synchronized Message[] pop(long timestamp, int max) {
+        Vector popped = new Vector(Math.min(max, 100));
+        popMessages(timestamp, max, popped);
+        return (Message[]) popped.toArray(new Message[popped.size()]);
+    }
+
+    private void popMessages(long timestamp, int max, Vector popped) {
+        // Buckets are removed from the index as soon as they are empty, so the first bucket is always the cursor.
+        Long endBucket = new Long(getBucket(timestamp)+1);
+        SortedMap buckets = index.getBuckets().headMap(endBucket);
+        while (!buckets.isEmpty() && (popped.size() < max)) {
+            Long bucket = (Long) buckets.firstKey();
+
+            Vector dueFiles = new Vector();
+            Vector dueMsgs = new Vector();
+            Iterator names = ((TreeSet) buckets.get(bucket)).iterator();
+            while (names.hasNext() && (popped.size()+dueMsgs.size() < max)) {
+                String fileName = (String) names.next();
+                if (MessageFileNames.getTimestamp(fileName) > timestamp) {
+                    // Names are sorted by due date, the following messages are not due either.
+                    break;
+                }
+
+                File crtMsg = index.getFile(MessageFileNames.getMessageId(fileName));
+                Message msg = readMsg(crtMsg);
+                if (msg != null) {
+                    if (msg.getTimestamp() <= timestamp) {
+                        dueFiles.add(crtMsg);
+                        dueMsgs.add(msg);
                     }
                 }
-                if (msgs.length == 0) {
-                    pruneDirectory(secondLevelDirs[j]);
-                }                
+                else {
+                    logger.error("Unable to read file: "+crtMsg.getAbsolutePath());
+                }
             }
-        }
 
-        return null;
+            for (int i = 0; i < dueFiles.size(); i++) {
+                File crtMsg = (File) dueFiles.get(i);
+                boolean moved = crtMsg.renameTo(new File(handlingSubdir.getPath()+"/"+ crtMsg.getName()));
+                if (!moved) {
+                    logger.error("Can't move message file "+crtMsg.getName());
+                    return;
+                }
+                Message msg = (Message) dueMsgs.get(i);
+                index.moveToHandling(msg.getId(), bucket.longValue());
+                popped.add(msg);
+
+                File dir = crtMsg.getParentFile();
+                if (index.getDirectorySize(dir) == 0) {
+                    pruneDirectory(dir);
+                }
+            }
+
+            buckets = index.getBuckets().subMap(new Long(bucket.longValue()+1), endBucket);
+        }
     }
 
     private void pruneDirectory(File dir) {
@@ -253,144 +465,147 @@ public class MessageStorageFileSystem extends MessageStorage {
             throw new MessageStorageException("Null message");
         }
         String id = msg.getId();
-        File msgFile = new File(handlingSubdir.getPath()+"/"+id+msgExt);
+        String fileName = index.getHandlingFileName(id);
+        if (fileName == null) {
+            fileName = MessageFileNames.getFileName(id, msg.getTimestamp(), msgExt);
+        }
+        File msgFile = new File(handlingSubdir.getPath()+"/"+fileName);
         if (msgFile.exists()) {
             msgFile.delete();
+            index.removeHandling(id);
         }
         else {
             throw new MessageStorageException(msgFile.getName()+" doesn't exist.");
         }
     }
 
-    public long size() {
-        return fileCount(rootDir);
-    }
+    /**
+     * Requeues a message in handling. The message, with the new due timestamp, is written in a temporary file that
+     * is renamed in its bucket, and only then the handling file is deleted. If the storage is stopped meanwhile the
+     * message is still in handling, or queued and its leftover handling file is deleted by the recovery: it is never
+     * lost.
+     */
+    public synchronized void requeue(Message msg, long timestamp) throws MessageStorageException {
+        if (msg == null) {
+            throw new MessageStorageException("Null message");
+        }
+        String id = msg.getId();
+        String handlingFileName = index.getHandlingFileName(id);
+        if (handlingFileName == null) {
+            throw new MessageStorageException("Message with ID: "+id+" is not in handling.");
+        }
 
-    private long fileCount(File root) {
-        String[] msgsFileNames = root.list(messagesFilenameFilter);
-        int numOfMsgs = msgsFileNames.length;
+        msg.setTimestamp(timestamp);
+        long bucket = getBucket(timestamp);
+        File dir = getMessageDirectory(id, bucket);
+        if (!dir.exists()) {
+            dir.mkdirs();
+        }
 
-        File[] subdirs = root.listFiles(dirFilter);
-        for (int i = 0; i < subdirs.length; i++) {
-            numOfMsgs += fileCount(subdirs[i]);
+        File file = new File(dir, MessageFileNames.getFileName(id, timestamp, msgExt));
+        File tmpFile = new File(handlingSubdir, MessageFileNames.getFileName(id, timestamp, tmpExt));
+        if (!writeMsg(msg, tmpFile) || !tmpFile.renameTo(file)) {
+            tmpFile.delete();
+            throw new MessageStorageException("Can't requeue message "+id);
         }
 
-        return numOfMsgs;
+        new File(handlingSubdir, handlingFileName).delete();
+        index.removeHandling(id);
+        index.addQueued(id, bucket, file);
     }
 
-    public void clear() {
-        deleteDirectory(rootDir);
-        initialize();
+    public synchronized void removeMessages(Message[] msgs) throws MessageStorageException {
+        super.removeMessages(msgs);
     }
 
-    public String[] getMessageList() {
-        Vector msgsList = new Vector();
+    public synchronized long size() {
+        return index.size();
+    }
 
-        addMessageItems(handlingSubdir, msgsList);
+    public void clear() {
+        // The recovery threads need the storage lock.
+        recovery.cancel();
+        synchronized (this) {
+            index.close();
+            deleteDirectory(rootDir);
+            initialize();
+        }
+    }
 
-        File[] firstLeveldirs = rootDir.listFiles();
+    public synchronized String[] getMessageList() {
+        Vector msgsList = new Vector((int) index.size());
 
-//        Arrays.sort(firstLeveldirs, numberFilenameComparator);
-        Arrays.sort(firstLeveldirs);
+        Iterator it = new TreeSet(index.getHandlingFileNames()).iterator();
+        while (it.hasNext()) {
+            msgsList.add(MessageFileNames.getMessageId((String) it.next()));
+        }
 
-        for (int i = 0; i < firstLeveldirs.length; i++) {
-            if (!firstLeveldirs[i].equals(handlingSubdir)) {
-                File[] secondLevelDirs = firstLeveldirs[i].listFiles();
-//                Arrays.sort(secondLevelDirs, numberFilenameComparator);
-                Arrays.sort(secondLevelDirs);
-                for (int j = 0; j < secondLevelDirs.length; j++) {
-                    addMessageItems(secondLevelDirs[j], msgsList);
-                }
+        it = index.getBuckets().values().iterator();
+        while (it.hasNext()) {
+            Iterator names = ((TreeSet) it.next()).iterator();
+            while (names.hasNext()) {
+                msgsList.add(MessageFileNames.getMessageId((String) names.next()));
             }
         }
 
         return (String[]) msgsList.toArray(new String[msgsList.size()]);
     }
 
-    private void addMessageItems(File directory, Vector msgsList) {
-        File[] msgs = directory.listFiles(messagesFilenameFilter);
-//        Arrays.sort(msgs, numberFilenameComparator);
-        Arrays.sort(msgs);
-        for (int k = 0; k < msgs.length; k++) {
-            File crtMsg = msgs[k];
-            String name = crtMsg.getName();
-            int index = name.lastIndexOf('.');
-            if (index > 0) {
-                msgsList.add(name.substring(0, index));
-            }
-            else {
-                msgsList.add(name);
-            }
-        }
-    }
+    public synchronized Message[] getAllMessages() {
+        Vector msgFiles = new Vector((int) index.size());
+        addHandlingFiles(msgFiles);
+        addQueuedFiles(msgFiles);
 
-    public Message[] getAllMessages() {
-        Vector allMsgs = new Vector();
+        Vector allMsgs = new Vector(msgFiles.size());
+        addMessages(msgFiles, allMsgs);
 
-        addMessages(handlingSubdir, allMsgs);
-        File[] firstLeveldirs = rootDir.listFiles();
+        return (Message[]) allMsgs.toArray(new Message[allMsgs.size()]);
+    }
 
-//        Arrays.sort(firstLeveldirs, numberFilenameComparator);
-        Arrays.sort(firstLeveldirs);
+    private void addHandlingFiles(Vector msgFiles) {
+        Iterator it = new TreeSet(index.getHandlingFileNames()).iterator();
+        while (it.hasNext()) {
+            msgFiles.add(new File(handlingSubdir, (String) it.next()));
+        }
+    }
 
-        for (int i = 0; i < firstLeveldirs.length; i++) {
-            if (!firstLeveldirs[i].equals(handlingSubdir)) {
-                File[] secondLevelDirs = firstLeveldirs[i].listFiles();
-//                Arrays.sort(secondLevelDirs, numberFilenameComparator);
-                Arrays.sort(secondLevelDirs);
-                for (int j = 0; j < secondLevelDirs.length; j++) {
-                    addMessages(secondLevelDirs[j], allMsgs);
-                }
+    private void addQueuedFiles(Vector msgFiles) {
+        Iterator it = index.getBuckets().values().iterator();
+        while (it.hasNext()) {
+            Iterator names = ((TreeSet) it.next()).iterator();
+            while (names.hasNext()) {
+                msgFiles.add(index.getFile(MessageFileNames.getMessageId((String) names.next())));
             }
         }
-
-        return (Message[]) allMsgs.toArray(new Message[allMsgs.size()]);
     }
 
-    private void addMessages(File directory, Vector allMsgs) {
-        File[] msgs = directory.listFiles(messagesFilenameFilter);
-//        Arrays.sort(msgs, numberFilenameComparator);
-        Arrays.sort(msgs);
-        for (int k = 0; k < msgs.length; k++) {
-            File msgFile = msgs[k];
-            Message msg = readMsg(msgFile);
+    private void addMessages(Vector msgFiles, Vector allMsgs) {
+        for (int k = 0; k < msgFiles.size(); k++) {
+            Message msg = readMsg((File) msgFiles.get(k));
             if (msg != null) {
                 allMsgs.add(msg);
             }
         }
     }
 
-    public void printAllMessages(PrintStream stream) {
+    public synchronized void printAllMessages(PrintStream stream) {
         stream.println("Messages in handling: ");
 
-        printMessages(handlingSubdir, stream);
-
-        File[] firstLeveldirs = rootDir.listFiles();
-//        Arrays.sort(firstLeveldirs, numberFilenameComparator);
-        Arrays.sort(firstLeveldirs);
+        Vector msgFiles = new Vector();
+        addHandlingFiles(msgFiles);
+        printMessages(msgFiles, stream);
 
         stream.println("");
         stream.println("Messages in the queue: ");
 
-        for (int i = 0; i < firstLeveldirs.length; i++) {
-            if (!firstLeveldirs[i].equals(handlingSubdir)) {
-                File[] secondLevelDirs = firstLeveldirs[i].listFiles();
-//                Arrays.sort(secondLevelDirs, numberFilenameComparator);
-                Arrays.sort(secondLevelDirs);
-                for (int j = 0; j < secondLevelDirs.length; j++) {
-                    printMessages(secondLevelDirs[j], stream);
-                }
-            }
-        }
+        msgFiles.clear();
+        addQueuedFiles(msgFiles);
+        printMessages(msgFiles, stream);
     }
 
-    private void printMessages(File directory, PrintStream stream) {
-        File[] msgs = directory.listFiles(messagesFilenameFilter);
-//        Arrays.sort(msgs, numberFilenameComparator);
-        Arrays.sort(msgs);
-        for (int k = 0; k < msgs.length; k++) {
-            File msgFile = msgs[k];
-            Message msg = readMsg(msgFile);
+    private void printMessages(Vector msgFiles, PrintStream stream) {
+        for (int k = 0; k < msgFiles.size(); k++) {
+            Message msg = readMsg((File) msgFiles.get(k));
             if (msg != null) {
                 stream.print('\t');
                 stream.print(msg.toString());
@@ -399,10 +614,34 @@ public class MessageStorageFileSystem extends MessageStorage {
         }
     }
 
-    private String getDirectoryPath(long timestamp) {
-        long ts2 = timestamp/60000;
-        long ts1 = timestamp/3600000;
-        return rootDir.getPath()+"/"+ts1+"/"+ts2;
+    private long getBucket(long timestamp) {
+        return layout.getBucket(timestamp);
+    }
+
+    /**
+     * Returns the path of the directory of the given bucket.
+     */
+    private String getDirectoryPath(long bucket) {
+        return layout.getBucketPath(rootDir, bucket);
+    }
+
+    /**
+     * Returns the directory where a new message of the given bucket is stored: the bucket directory or, if the
+     * layout has sub-buckets, the first sub-bucket that is not full starting from the one of the message id.
+     */
+    private File getMessageDirectory(String id, long bucket) {
+        File dir = new File(getDirectoryPath(bucket));
+        if (!layout.hasSubBuckets()) {
+            return dir;
+        }
+
+        int subBucket = layout.getSubBucket(id, index.getBucketSize(bucket));
+        File subDir = new File(dir, BucketLayout.getSubBucketName(subBucket));
+        while (index.getDirectorySize(subDir) >= layout.getMaxFilesPerDirectory()) {
+            subBucket++;
+            subDir = new File(dir, BucketLayout.getSubBucketName(subBucket));
+        }
+        return subDir;
     }
 
     private static boolean deleteDirectory(File path) {
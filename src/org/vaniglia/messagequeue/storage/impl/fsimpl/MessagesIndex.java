@@ -0,0 +1,290 @@
+/**
+ * Project Vaniglia
+ * User: Michele Aiello
+ *
+ * Copyright (C) 2003/2007  Michele Aiello
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ */
+
+package org.vaniglia.messagequeue.storage.impl.fsimpl;
+
+import org.apache.log4j.Logger;
+import org.vaniglia.time.SystemDate;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+/**
+ * Index of the messages stored by a MessageStorageFileSystem.
+ * The index keeps, for every bucket (the time slot directories of the storage, see BucketLayout), the sorted names
+ * of the message files in the bucket, for every message its file and for every directory the number of files.
+ * The index is built with a single walk of the directories tree when the storage is opened and than it is updated on
+ * push, pop and remove, so the storage doesn't need to walk the tree to count or list its messages.
+ *
+ * The message counters are also kept in a small memory mapped file in the storage directory, so that monitoring
+ * tools can read the size of the storage (see readSize) without opening it. If the file can't be mapped the index
+ * works anyway, only the counters are not published.
+ *
+ * This class is not thread safe, the storage must synchronize the access to it.
+ */
+public class MessagesIndex {
+
+    private static final Logger logger = Logger.getLogger(MessagesIndex.class);
+
+    public static final String indexFileName = "index.vmqidx";
+
+    private static final int indexMagic = 0x564D5149;
+    private static final int indexVersion = 1;
+
+    private static final int magicOffset = 0;
+    private static final int versionOffset = 4;
+    private static final int queuedOffset = 8;
+    private static final int handlingOffset = 16;
+    private static final int updateTimeOffset = 24;
+    private static final int indexFileSize = 32;
+
+    private RandomAccessFile raf;
+    private MappedByteBuffer counters;
+
+    /**
+     * Sorted message file names by minute bucket.
+     */
+    private TreeMap buckets = new TreeMap();
+
+    /**
+     * Message files by id, for the messages not in handling.
+     */
+    private HashMap files = new HashMap();
+
+    /**
+     * File names of the messages in handling, by message id.
+     */
+    private HashMap handling = new HashMap();
+
+    /**
+     * Number of queued message files by directory.
+     */
+    private HashMap directorySizes = new HashMap();
+
+    public MessagesIndex(File dir) {
+        File indexFile = new File(dir, indexFileName);
+        try {
+            raf = new RandomAccessFile(indexFile, "rw");
+            counters = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, indexFileSize);
+            counters.putInt(magicOffset, indexMagic);
+            counters.putInt(versionOffset, indexVersion);
+            updateCounters();
+        } catch (IOException e) {
+            logger.warn("Unable to map the index file "+indexFile.getAbsolutePath()+". Counters will not be published.", e);
+            close();
+        }
+    }
+
+    /**
+     * Reads the number of messages of a storage from its index file.
+     *
+     * @param dir the storage directory.
+     *
+     * @return the number of messages in the storage, including the ones in handling, or -1 if the index file is
+     * missing or invalid.
+     */
+    public static long readSize(File dir) {
+        File indexFile = new File(dir, indexFileName);
+        if (!indexFile.exists()) {
+            return -1;
+        }
+
+        RandomAccessFile in = null;
+        try {
+            in = new RandomAccessFile(indexFile, "r");
+            if ((in.length() < indexFileSize) || (in.readInt() != indexMagic) || (in.readInt() != indexVersion)) {
+                return -1;
+            }
+            return in.readLong() + in.readLong();
+        } catch (IOException e) {
+            return -1;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    public void addQueued(String id, long bucket, File file) {
+        Long key = new Long(bucket);
+        TreeSet names = (TreeSet) buckets.get(key);
+        if (names == null) {
+            names = new TreeSet();
+            buckets.put(key, names);
+        }
+        names.add(file.getName());
+        files.put(id, file);
+        addToDirectory(file.getParentFile(), 1);
+        updateCounters();
+    }
+
+    /**
+     * Moves a message from its bucket to the handling set.
+     */
+    public void moveToHandling(String id, long bucket) {
+        File file = (File) files.remove(id);
+        if (file != null) {
+            Long key = new Long(bucket);
+            TreeSet names = (TreeSet) buckets.get(key);
+            if (names != null) {
+                names.remove(file.getName());
+                if (names.isEmpty()) {
+                    buckets.remove(key);
+                }
+            }
+            addToDirectory(file.getParentFile(), -1);
+            handling.put(id, file.getName());
+        }
+        updateCounters();
+    }
+
+    public void addHandling(String id, String fileName) {
+        handling.put(id, fileName);
+        updateCounters();
+    }
+
+    public void removeHandling(String id) {
+        handling.remove(id);
+        updateCounters();
+    }
+
+    public boolean contains(String id) {
+        return files.containsKey(id) || handling.containsKey(id);
+    }
+
+    public File getFile(String id) {
+        return (File) files.get(id);
+    }
+
+    /**
+     * Returns the number of queued messages in a bucket.
+     */
+    public long getBucketSize(long bucket) {
+        TreeSet names = (TreeSet) buckets.get(new Long(bucket));
+        return (names != null) ? names.size() : 0;
+    }
+
+    /**
+     * Returns the number of queued message files in a directory.
+     */
+    public int getDirectorySize(File dir) {
+        int[] count = (int[]) directorySizes.get(dir);
+        return (count != null) ? count[0] : 0;
+    }
+
+    /**
+     * Counts a file that is going to be added to a directory, so that the directory is not considered empty.
+     */
+    public void reserve(File dir) {
+        addToDirectory(dir, 1);
+    }
+
+    /**
+     * Releases a reservation made with reserve.
+     */
+    public void release(File dir) {
+        addToDirectory(dir, -1);
+    }
+
+    /**
+     * Returns the sorted message file names by bucket. The returned map must not be modified.
+     */
+    public SortedMap getBuckets() {
+        return buckets;
+    }
+
+    /**
+     * Returns the file name of a message in handling.
+     */
+    public String getHandlingFileName(String id) {
+        return (String) handling.get(id);
+    }
+
+    /**
+     * Returns the file names of the messages in handling. The returned collection must not be modified.
+     */
+    public Collection getHandlingFileNames() {
+        return handling.values();
+    }
+
+    public long getQueuedCount() {
+        return files.size();
+    }
+
+    public long getHandlingCount() {
+        return handling.size();
+    }
+
+    public long size() {
+        return files.size() + handling.size();
+    }
+
+    public void clear() {
+        buckets.clear();
+        files.clear();
+        handling.clear();
+        directorySizes.clear();
+        updateCounters();
+    }
+
+    public void close() {
+        if (counters != null) {
+            counters.force();
+            counters = null;
+        }
+        if (raf != null) {
+            try {
+                raf.close();
+            } catch (IOException e) {
+            }
+            raf = null;
+        }
+    }
+
+    private void addToDirectory(File dir, int delta) {
+        int[] count = (int[]) directorySizes.get(dir);
+        if (count == null) {
+            count = new int[1];
+            directorySizes.put(dir, count);
+        }
+        count[0] += delta;
+        if (count[0] <= 0) {
+            directorySizes.remove(dir);
+        }
+    }
+
+    private void updateCounters() {
+        if (counters == null) {
+            return;
+        }
+        counters.putLong(queuedOffset, files.size());
+        counters.putLong(handlingOffset, handling.size());
+        counters.putLong(updateTimeOffset, SystemDate.getInstance().currentTimeMillis());
+    }
+}
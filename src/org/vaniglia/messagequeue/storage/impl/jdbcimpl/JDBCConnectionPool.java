@@ -0,0 +1,162 @@
+/**
+ * Project Vaniglia
+ * User: Michele Aiello
+ *
+ * Copyright (C) 2003/2007  Michele Aiello
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ */
+
+package org.vaniglia.messagequeue.storage.impl.jdbcimpl;
+
+import org.apache.log4j.Logger;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.LinkedList;
+
+/**
+ * A simple pool of JDBC connections.
+ * Connections are opened on demand up to the pool size, when all of them are in use the threads asking for a
+ * connection wait until one is released. Connections that had errors should be discarded instead of released, so
+ * that broken connections are never reused.
+ */
+public class JDBCConnectionPool {
+
+    private static final Logger logger = Logger.getLogger(JDBCConnectionPool.class);
+
+    private String url;
+    private String user;
+    private String password;
+    private int maxConnections;
+
+    private LinkedList idle = new LinkedList();
+    private int openConnections = 0;
+    private boolean closed = false;
+
+    /**
+     * Class constructor.
+     *
+     * @param driver the JDBC driver class name, or null if the driver is already registered.
+     * @param url the database url.
+     * @param user the database user, or null if the credentials are in the url.
+     * @param password the database password.
+     * @param maxConnections the maximum number of open connections.
+     */
+    public JDBCConnectionPool(String driver, String url, String user, String password, int maxConnections) {
+        if (driver != null) {
+            try {
+                Class.forName(driver);
+            } catch (ClassNotFoundException e) {
+                logger.error("JDBC driver not found: "+driver, e);
+            }
+        }
+        this.url = url;
+        this.user = user;
+        this.password = password;
+        this.maxConnections = Math.max(1, maxConnections);
+    }
+
+    /**
+     * Returns a connection, waiting if all the connections are in use.
+     *
+     * @return a connection in auto commit mode.
+     *
+     * @throws SQLException if the pool is closed or the connection can't be opened.
+     */
+    public Connection getConnection() throws SQLException {
+        synchronized (this) {
+            for (;;) {
+                if (closed) {
+                    throw new SQLException("Connection pool closed.");
+                }
+                if (!idle.isEmpty()) {
+                    return (Connection) idle.removeFirst();
+                }
+                if (openConnections < maxConnections) {
+                    openConnections++;
+                    break;
+                }
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    throw new SQLException("Interrupted while waiting for a connection.");
+                }
+            }
+        }
+
+        try {
+            if (user != null) {
+                return DriverManager.getConnection(url, user, password);
+            }
+            else {
+                return DriverManager.getConnection(url);
+            }
+        } catch (SQLException e) {
+            synchronized (this) {
+                openConnections--;
+                notify();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Gives back a connection to the pool.
+     */
+    public void release(Connection conn) {
+        synchronized (this) {
+            if (!closed) {
+                idle.addFirst(conn);
+                notify();
+                return;
+            }
+        }
+        discard(conn);
+    }
+
+    /**
+     * Closes a connection that had errors.
+     */
+    public void discard(Connection conn) {
+        try {
+            conn.close();
+        } catch (SQLException e) {
+            logger.debug("Exception while closing a connection.", e);
+        }
+        synchronized (this) {
+            openConnections--;
+            notify();
+        }
+    }
+
+    /**
+     * Closes all the idle connections. Connections in use are closed when released.
+     */
+    public void close() {
+        LinkedList toClose;
+        synchronized (this) {
+            closed = true;
+            toClose = idle;
+            idle = new LinkedList();
+            notifyAll();
+        }
+        while (!toClose.isEmpty()) {
+            discard((Connection) toClose.removeFirst());
+        }
+    }
+}
@@ -22,55 +22,666 @@
 
 package org.vaniglia.messagequeue.storage.impl.jdbcimpl;
 
+import org.apache.log4j.Logger;
+import org.vaniglia.messagequeue.Message;
+import org.vaniglia.messagequeue.codec.MessageCodec;
+import org.vaniglia.messagequeue.codec.SerializationMessageCodec;
 import org.vaniglia.messagequeue.storage.MessageStorage;
-import org.vaniglia.messagequeue.storage.MessageStorageType;
 import org.vaniglia.messagequeue.storage.MessageStorageException;
-import org.vaniglia.messagequeue.Message;
+import org.vaniglia.messagequeue.storage.MessageStorageParameters;
+import org.vaniglia.messagequeue.storage.MessageStorageType;
+import org.vaniglia.time.SystemDate;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.PrintStream;
+import java.sql.*;
+import java.util.Vector;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * TBD
+ * Database based storage for Message Queues.
+ * Messages are stored in a table of a JDBC compliant database, so the same queue can be shared by many JVMs. The
+ * table is created on initialization if it doesn't exist:
+ *
+ *   msg_id VARCHAR(64) PRIMARY KEY, due_ts BIGINT, seq BIGINT, state SMALLINT, owner VARCHAR(64),
+ *   claimed_ts BIGINT, payload BLOB
+ *
+ * with an index on (state, due_ts, seq). Only standard SQL is used, so any database (including embedded ones like
+ * H2 or Derby) can be used; the payload column type can be changed for databases without BLOB (i.e. BYTEA).
+ *
+ * Pops claim the due messages in bulk without locking the table: the first due rows are selected using the index
+ * and than claimed with an update that succeeds only if the row is still queued, tagging the claimed rows with a
+ * unique claim token. Rows claimed concurrently by other JVMs are simply skipped. The claimed messages are than
+ * read back using the claim token.
+ *
+ * Messages claimed by a JVM that crashed stay in handling until the claim timeout expires, than they are moved
+ * back to the queue and will be reprocessed.
+ *
+ * Claimed rows whose payload can't be decoded are moved to a dead state and their id is logged. Dead rows are not
+ * popped nor counted by size, they are left in the table to be inspected and deleted by hand.
  */
 public class MessageStorageJDBC extends MessageStorage {
 
-    public MessageStorageJDBC(String name) {
+    private static final Logger logger = Logger.getLogger(MessageStorageJDBC.class);
+
+    public static final String defaultPayloadType = "BLOB";
+    public static final long defaultClaimTimeout = 10*60*1000;
+
+    private static final int queuedState = 0;
+    private static final int handlingState = 1;
+    private static final int deadState = 2;
+
+    private static final AtomicLong claimCounter = new AtomicLong();
+    private static final String instanceId = Long.toString(SystemDate.getInstance().currentTimeMillis(), 36)+"-"+
+            Integer.toString(System.identityHashCode(claimCounter), 36);
+
+    private JDBCConnectionPool pool;
+    private boolean ownsPool = false;
+    private String tableName;
+    private String payloadType;
+    private long claimTimeout;
+    private MessageCodec codec;
+
+    private AtomicLong sequence;
+    private volatile long lastClaimsCheck = 0;
+
+    private String insertSql;
+    private String selectDueSql;
+    private String claimSql;
+    private String selectClaimedSql;
+    private String deadSql;
+    private String deleteSql;
+    private String requeueMessageSql;
+    private String requeueSql;
+    private String nextTimestampSql;
+
+    /**
+     * Class constructor. The storage creates its own pool of connections, that is closed with the storage.
+     *
+     * @param params the storage parameters: name, database connection, table and claim timeout.
+     */
+    public MessageStorageJDBC(MessageStorageParameters.JDBCStorageParameters params) {
+        this(params.getName(), new JDBCConnectionPool(params.getDriver(), params.getUrl(), params.getUser(),
+                params.getPassword(), params.getPoolSize()),
+                params.getTableName(), params.getPayloadType(), params.getClaimTimeout(), params.getCodec());
+        this.ownsPool = true;
+    }
+
+    /**
+     * Class constructor. The pool is not closed with the storage, it can be shared by many storages.
+     *
+     * @param name the storage name.
+     * @param pool the pool of connections to the database.
+     * @param tableName the name of the messages table, null for VMQ_ followed by the storage name.
+     * @param payloadType the SQL type of the payload column, null for BLOB.
+     * @param claimTimeout time in milliseconds after which messages left in handling are moved back to the queue.
+     * @param codec the codec used to write the messages, null for the SerializationMessageCodec.
+     */
+    public MessageStorageJDBC(String name, JDBCConnectionPool pool, String tableName, String payloadType,
+                              long claimTimeout, MessageCodec codec) {
         super(name);
+        this.pool = pool;
+        this.tableName = (tableName != null) ? tableName : getDefaultTableName(name);
+        this.payloadType = (payloadType != null) ? payloadType : defaultPayloadType;
+        this.claimTimeout = claimTimeout;
+        this.codec = (codec != null) ? codec : SerializationMessageCodec.getInstance();
+        this.sequence = new AtomicLong(SystemDate.getInstance().currentTimeMillis()*1000);
+
+        insertSql = "INSERT INTO "+this.tableName+" (msg_id, due_ts, seq, state, payload) VALUES (?, ?, ?, "+queuedState+", ?)";
+        selectDueSql = "SELECT msg_id FROM "+this.tableName+" WHERE state = "+queuedState+" AND due_ts <= ? ORDER BY due_ts, seq";
+        claimSql = "UPDATE "+this.tableName+" SET state = "+handlingState+", owner = ?, claimed_ts = ? WHERE msg_id = ? AND state = "+queuedState;
+        selectClaimedSql = "SELECT msg_id, payload FROM "+this.tableName+" WHERE owner = ? AND state = "+handlingState+" ORDER BY due_ts, seq";
+        deadSql = "UPDATE "+this.tableName+" SET state = "+deadState+" WHERE msg_id = ? AND owner = ? AND state = "+handlingState;
+        deleteSql = "DELETE FROM "+this.tableName+" WHERE msg_id = ? AND state = "+handlingState;
+        requeueMessageSql = "UPDATE "+this.tableName+" SET state = "+queuedState+", owner = NULL, claimed_ts = NULL, due_ts = ?, payload = ? WHERE msg_id = ? AND state = "+handlingState;
+        requeueSql = "UPDATE "+this.tableName+" SET state = "+queuedState+", owner = NULL, claimed_ts = NULL WHERE state = "+handlingState+" AND claimed_ts < ?";
+        nextTimestampSql = "SELECT MIN(due_ts) FROM "+this.tableName+" WHERE state = "+queuedState;
+
+        initialize();
+    }
+
+    private static String getDefaultTableName(String name) {
+        StringBuffer buff = new StringBuffer("VMQ_");
+        for (int i = 0; i < name.length(); i++) {
+            char c = Character.toUpperCase(name.charAt(i));
+            buff.append((((c >= 'A') && (c <= 'Z')) || ((c >= '0') && (c <= '9'))) ? c : '_');
+        }
+        return buff.toString();
+    }
+
+    private void initialize() {
+        Connection conn = null;
+        boolean ok = false;
+        try {
+            conn = pool.getConnection();
+            if (!tableExists(conn)) {
+                Statement stmt = conn.createStatement();
+                try {
+                    stmt.executeUpdate("CREATE TABLE "+tableName+" (msg_id VARCHAR(64) NOT NULL PRIMARY KEY, "+
+                            "due_ts BIGINT NOT NULL, seq BIGINT NOT NULL, state SMALLINT NOT NULL, owner VARCHAR(64), "+
+                            "claimed_ts BIGINT, payload "+payloadType+")");
+                    stmt.executeUpdate("CREATE INDEX "+tableName+"_DUE ON "+tableName+" (state, due_ts, seq)");
+                    logger.info("Created table "+tableName+" for storage "+name);
+                } catch (SQLException e) {
+                    // The table could have been created meanwhile by another JVM.
+                    if (!tableExists(conn)) {
+                        throw e;
+                    }
+                } finally {
+                    stmt.close();
+                }
+            }
+            ok = true;
+        } catch (SQLException e) {
+            logger.error("SQLException while initializing table "+tableName, e);
+            return;
+        } finally {
+            release(conn, ok);
+        }
+
+        int recovered = requeueExpiredClaims();
+        if (recovered > 0) {
+            logger.info("There were messages left in handling.");
+            logger.info(recovered+" messages recovered.");
+        }
+    }
+
+    private boolean tableExists(Connection conn) throws SQLException {
+        DatabaseMetaData metaData = conn.getMetaData();
+        String[] names = new String[] {tableName, tableName.toUpperCase(), tableName.toLowerCase()};
+        for (int i = 0; i < names.length; i++) {
+            ResultSet rs = metaData.getTables(null, null, names[i], null);
+            try {
+                if (rs.next()) {
+                    return true;
+                }
+            } finally {
+                rs.close();
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Moves back to the queue the messages claimed longer than claimTimeout ago.
+     *
+     * @return the number of messages moved back to the queue.
+     */
+    private int requeueExpiredClaims() {
+        long now = SystemDate.getInstance().currentTimeMillis();
+        lastClaimsCheck = now;
+
+        Connection conn = null;
+        boolean ok = false;
+        try {
+            conn = pool.getConnection();
+            PreparedStatement stmt = conn.prepareStatement(requeueSql);
+            try {
+                stmt.setLong(1, now - claimTimeout);
+                int requeued = stmt.executeUpdate();
+                ok = true;
+                return requeued;
+            } finally {
+                stmt.close();
+            }
+        } catch (SQLException e) {
+            logger.error("SQLException while requeueing expired messages of table "+tableName, e);
+            return 0;
+        } finally {
+            release(conn, ok);
+        }
     }
 
     public MessageStorageType getType() {
-        return null;  //To change body of implemented methods use File | Settings | File Templates.
+        return MessageStorageType.JDBCType;
     }
 
     public void push(Message msg, long timestamp) throws MessageStorageException {
-        //To change body of implemented methods use File | Settings | File Templates.
+        push(new Message[] {msg}, new long[] {timestamp});
+    }
+
+    /**
+     * Pushes the messages with a single batch of inserts in one transaction: either all the messages are pushed or
+     * none of them.
+     */
+    public void push(Message[] msgs, long[] timestamps) throws MessageStorageException {
+        if (msgs.length != timestamps.length) {
+            throw new MessageStorageException("Messages and timestamps have different lengths.");
+        }
+        if (msgs.length == 0) {
+            return;
+        }
+
+        Connection conn = null;
+        boolean ok = false;
+        try {
+            conn = pool.getConnection();
+            conn.setAutoCommit(false);
+            PreparedStatement stmt = conn.prepareStatement(insertSql);
+            try {
+                for (int i = 0; i < msgs.length; i++) {
+                    msgs[i].setTimestamp(timestamps[i]);
+                    stmt.setString(1, msgs[i].getId());
+                    stmt.setLong(2, timestamps[i]);
+                    stmt.setLong(3, sequence.getAndIncrement());
+                    stmt.setBytes(4, encode(msgs[i]));
+                    stmt.addBatch();
+                }
+                stmt.executeBatch();
+            } finally {
+                stmt.close();
+            }
+            conn.commit();
+            ok = true;
+        } catch (SQLException e) {
+            throw new MessageStorageException("SQLException while pushing "+msgs.length+" messages in table "+tableName+". The message may be already existent.", e);
+        } catch (IOException e) {
+            throw new MessageStorageException("IOException while encoding messages for table "+tableName, e);
+        } finally {
+            release(conn, ok);
+        }
     }
 
     public Message pop(long timestamp) {
-        return null;  //To change body of implemented methods use File | Settings | File Templates.
+        Message[] msgs = pop(timestamp, 1);
+        return (msgs.length > 0) ? msgs[0] : null;
+    }
+
+    /**
+     * Claims up to max due messages with a batch of conditional updates and reads them back with a single query.
+     */
+    public Message[] pop(long timestamp, int max) {
+        long now = SystemDate.getInstance().currentTimeMillis();
+        if (now - lastClaimsCheck > claimTimeout) {
+            requeueExpiredClaims();
+        }
+
+        Vector msgs = new Vector(Math.min(max, 100));
+        Connection conn = null;
+        boolean ok = false;
+        try {
+            conn = pool.getConnection();
+
+            // Candidates are selected in excess, some of them could be claimed by other JVMs meanwhile.
+            Vector candidates = new Vector(Math.min(max, 100));
+            PreparedStatement select = conn.prepareStatement(selectDueSql);
+            try {
+                select.setMaxRows(max*2);
+                select.setFetchSize(Math.min(max*2, 1000));
+                select.setLong(1, timestamp);
+                ResultSet rs = select.executeQuery();
+                while (rs.next()) {
+                    candidates.add(rs.getString(1));
+                }
+                rs.close();
+            } finally {
+                select.close();
+            }
+
+            if (!candidates.isEmpty()) {
+                String claimToken = instanceId+"-"+claimCounter.incrementAndGet();
+                claim(conn, candidates, max, claimToken, now);
+                readClaimed(conn, claimToken, msgs);
+            }
+            ok = true;
+        } catch (SQLException e) {
+            logger.error("SQLException while popping messages from table "+tableName, e);
+        } finally {
+            release(conn, ok);
+        }
+
+        return (Message[]) msgs.toArray(new Message[msgs.size()]);
+    }
+
+    private void claim(Connection conn, Vector candidates, int max, String claimToken, long now) throws SQLException {
+        conn.setAutoCommit(false);
+        PreparedStatement claim = conn.prepareStatement(claimSql);
+        try {
+            int claimed = 0;
+            int next = 0;
+            while ((claimed < max) && (next < candidates.size())) {
+                int batch = Math.min(max - claimed, candidates.size() - next);
+                for (int i = 0; i < batch; i++) {
+                    claim.setString(1, claimToken);
+                    claim.setLong(2, now);
+                    claim.setString(3, (String) candidates.get(next++));
+                    claim.addBatch();
+                }
+                int[] results = claim.executeBatch();
+                for (int i = 0; i < results.length; i++) {
+                    if ((results[i] > 0) || (results[i] == Statement.SUCCESS_NO_INFO)) {
+                        claimed++;
+                    }
+                }
+            }
+        } finally {
+            claim.close();
+        }
+        conn.commit();
+        conn.setAutoCommit(true);
+    }
+
+    private void readClaimed(Connection conn, String claimToken, Vector msgs) throws SQLException {
+        Vector dead = null;
+        PreparedStatement select = conn.prepareStatement(selectClaimedSql);
+        try {
+            select.setString(1, claimToken);
+            ResultSet rs = select.executeQuery();
+            while (rs.next()) {
+                String id = rs.getString(1);
+                Message msg = decode(rs.getBytes(2));
+                if (msg != null) {
+                    msgs.add(msg);
+                }
+                else {
+                    if (dead == null) {
+                        dead = new Vector();
+                    }
+                    dead.add(id);
+                }
+            }
+            rs.close();
+        } finally {
+            select.close();
+        }
+
+        if (dead != null) {
+            markDead(conn, claimToken, dead);
+        }
+    }
+
+    /**
+     * Moves the claimed rows that can't be decoded to the dead state, otherwise they would stay claimed forever
+     * and be claimed again after each claim timeout.
+     */
+    private void markDead(Connection conn, String claimToken, Vector ids) throws SQLException {
+        PreparedStatement update = conn.prepareStatement(deadSql);
+        try {
+            for (int i = 0; i < ids.size(); i++) {
+                logger.error("Message "+ids.get(i)+" of table "+tableName+" can't be decoded. Moving it to the dead state ("+deadState+").");
+                update.setString(1, (String) ids.get(i));
+                update.setString(2, claimToken);
+                update.addBatch();
+            }
+            update.executeBatch();
+        } finally {
+            update.close();
+        }
+    }
+
+    /**
+     * Closes the pool of connections if it has been created by the storage.
+     */
+    public void close() {
+        if (ownsPool) {
+            pool.close();
+        }
+    }
+
+    public long getNextTimestamp() {
+        Connection conn = null;
+        boolean ok = false;
+        try {
+            conn = pool.getConnection();
+            Statement stmt = conn.createStatement();
+            try {
+                ResultSet rs = stmt.executeQuery(nextTimestampSql);
+                long next = Long.MAX_VALUE;
+                if (rs.next()) {
+                    next = rs.getLong(1);
+                    if (rs.wasNull()) {
+                        next = Long.MAX_VALUE;
+                    }
+                }
+                rs.close();
+                ok = true;
+                return next;
+            } finally {
+                stmt.close();
+            }
+        } catch (SQLException e) {
+            logger.error("SQLException while reading the next timestamp of table "+tableName, e);
+            return UNKNOWN_TIMESTAMP;
+        } finally {
+            release(conn, ok);
+        }
     }
 
     public void removeMessage(Message msg) throws MessageStorageException {
-        //To change body of implemented methods use File | Settings | File Templates.
+        if (msg == null) {
+            throw new MessageStorageException("Null message");
+        }
+        removeMessages(new Message[] {msg});
+    }
+
+    /**
+     * Removes the messages with a single batch of deletes.
+     */
+    public void removeMessages(Message[] msgs) throws MessageStorageException {
+        if (msgs.length == 0) {
+            return;
+        }
+
+        String missing = null;
+        Connection conn = null;
+        boolean ok = false;
+        try {
+            conn = pool.getConnection();
+            conn.setAutoCommit(false);
+            PreparedStatement stmt = conn.prepareStatement(deleteSql);
+            try {
+                for (int i = 0; i < msgs.length; i++) {
+                    stmt.setString(1, msgs[i].getId());
+                    stmt.addBatch();
+                }
+                int[] results = stmt.executeBatch();
+                for (int i = 0; (i < results.length) && (missing == null); i++) {
+                    if (results[i] == 0) {
+                        missing = msgs[i].getId();
+                    }
+                }
+            } finally {
+                stmt.close();
+            }
+            conn.commit();
+            ok = true;
+        } catch (SQLException e) {
+            throw new MessageStorageException("SQLException while removing "+msgs.length+" messages from table "+tableName, e);
+        } finally {
+            release(conn, ok);
+        }
+
+        if (missing != null) {
+            throw new MessageStorageException("Message with ID: "+missing+" doesn't exist in the storage.");
+        }
+    }
+
+    /**
+     * Requeues the message with a single update, the message keeps its row.
+     */
+    public void requeue(Message msg, long timestamp) throws MessageStorageException {
+        if (msg == null) {
+            throw new MessageStorageException("Null message");
+        }
+
+        int updated;
+        Connection conn = null;
+        boolean ok = false;
+        try {
+            conn = pool.getConnection();
+            PreparedStatement stmt = conn.prepareStatement(requeueMessageSql);
+            try {
+                msg.setTimestamp(timestamp);
+                stmt.setLong(1, timestamp);
+                stmt.setBytes(2, encode(msg));
+                stmt.setString(3, msg.getId());
+                updated = stmt.executeUpdate();
+            } finally {
+                stmt.close();
+            }
+            ok = true;
+        } catch (SQLException e) {
+            throw new MessageStorageException("SQLException while requeueing message "+msg.getId()+" in table "+tableName, e);
+        } catch (IOException e) {
+            throw new MessageStorageException("IOException while encoding message "+msg.getId()+" for table "+tableName, e);
+        } finally {
+            release(conn, ok);
+        }
+
+        if (updated == 0) {
+            throw new MessageStorageException("Message with ID: "+msg.getId()+" doesn't exist in the storage.");
+        }
     }
 
     public long size() {
-        return 0;  //To change body of implemented methods use File | Settings | File Templates.
+        Connection conn = null;
+        boolean ok = false;
+        try {
+            conn = pool.getConnection();
+            Statement stmt = conn.createStatement();
+            try {
+                ResultSet rs = stmt.executeQuery("SELECT COUNT(*) FROM "+tableName+" WHERE state <> "+deadState);
+                long size = rs.next() ? rs.getLong(1) : 0;
+                rs.close();
+                ok = true;
+                return size;
+            } finally {
+                stmt.close();
+            }
+        } catch (SQLException e) {
+            logger.error("SQLException while counting the messages of table "+tableName, e);
+            return 0;
+        } finally {
+            release(conn, ok);
+        }
     }
 
     public void clear() {
-        //To change body of implemented methods use File | Settings | File Templates.
+        Connection conn = null;
+        boolean ok = false;
+        try {
+            conn = pool.getConnection();
+            Statement stmt = conn.createStatement();
+            try {
+                stmt.executeUpdate("DELETE FROM "+tableName);
+                ok = true;
+            } finally {
+                stmt.close();
+            }
+        } catch (SQLException e) {
+            logger.error("SQLException while clearing table "+tableName, e);
+        } finally {
+            release(conn, ok);
+        }
     }
 
     public String[] getMessageList() {
-        return new String[0];  //To change body of implemented methods use File | Settings | File Templates.
+        Vector ids = new Vector();
+        query("SELECT msg_id FROM "+tableName+" WHERE state <> "+deadState+" ORDER BY state DESC, due_ts, seq", ids, false);
+        return (String[]) ids.toArray(new String[ids.size()]);
     }
 
     public Message[] getAllMessages() {
-        return new Message[0];  //To change body of implemented methods use File | Settings | File Templates.
+        Vector msgs = new Vector();
+        query("SELECT payload FROM "+tableName+" WHERE state <> "+deadState+" ORDER BY state DESC, due_ts, seq", msgs, true);
+        return (Message[]) msgs.toArray(new Message[msgs.size()]);
     }
 
     public void printAllMessages(PrintStream stream) {
-        //To change body of implemented methods use File | Settings | File Templates.
+        Vector msgs = new Vector();
+
+        stream.println("Messages in handling: ");
+        query("SELECT payload FROM "+tableName+" WHERE state = "+handlingState+" ORDER BY due_ts, seq", msgs, true);
+        printMessages(msgs, stream);
+
+        stream.println("");
+        stream.println("Messages in the queue: ");
+        msgs.clear();
+        query("SELECT payload FROM "+tableName+" WHERE state = "+queuedState+" ORDER BY due_ts, seq", msgs, true);
+        printMessages(msgs, stream);
+    }
+
+    private void printMessages(Vector msgs, PrintStream stream) {
+        for (int i = 0; i < msgs.size(); i++) {
+            stream.print('\t');
+            stream.print(msgs.get(i).toString());
+            stream.println();
+        }
+    }
+
+    /**
+     * Runs a query with a single column result, adding the ids or the decoded messages to the results.
+     */
+    private void query(String sql, Vector results, boolean decode) {
+        Connection conn = null;
+        boolean ok = false;
+        try {
+            conn = pool.getConnection();
+            Statement stmt = conn.createStatement();
+            try {
+                ResultSet rs = stmt.executeQuery(sql);
+                while (rs.next()) {
+                    if (decode) {
+                        Message msg = decode(rs.getBytes(1));
+                        if (msg != null) {
+                            results.add(msg);
+                        }
+                    }
+                    else {
+                        results.add(rs.getString(1));
+                    }
+                }
+                rs.close();
+                ok = true;
+            } finally {
+                stmt.close();
+            }
+        } catch (SQLException e) {
+            logger.error("SQLException while reading table "+tableName, e);
+        } finally {
+            release(conn, ok);
+        }
+    }
+
+    private byte[] encode(Message msg) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(256);
+        codec.encode(msg, buffer);
+        return buffer.toByteArray();
+    }
+
+    private Message decode(byte[] payload) {
+        if (payload == null) {
+            return null;
+        }
+        try {
+            return codec.decode(new ByteArrayInputStream(payload));
+        } catch (IOException e) {
+            logger.error("IOException while decoding a message of table "+tableName, e);
+            return null;
+        }
+    }
+
+    /**
+     * Gives back a connection to the pool. Connections of failed operations are rolled back, and discarded if
+     * the rollback fails too.
+     */
+    private void release(Connection conn, boolean ok) {
+        if (conn == null) {
+            return;
+        }
+        try {
+            if (!conn.getAutoCommit()) {
+                if (!ok) {
+                    conn.rollback();
+                }
+                conn.setAutoCommit(true);
+            }
+            pool.release(conn);
+        } catch (SQLException e) {
+            logger.debug("Discarding connection after error.", e);
+            pool.discard(conn);
+        }
     }
 }
@@ -0,0 +1,91 @@
+/**
+ * Project Vaniglia
+ * User: Michele Aiello
+ *
+ * Copyright (C) 2003/2007  Michele Aiello
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ */
+
+package org.vaniglia.messagequeue.storage.impl.journalimpl;
+
+import java.util.Comparator;
+
+/**
+ * In memory index entry of a message stored in the journal.
+ * The entry holds the message due timestamp and the location of the serialized message in the segments, so that
+ * the message is read and deserialized only when it is popped.
+ */
+class JournalEntry {
+
+    /**
+     * Orders entries by due timestamp and than by push sequence.
+     */
+    static final Comparator dueOrder = new Comparator() {
+        public int compare(Object o1, Object o2) {
+            JournalEntry e1 = (JournalEntry) o1;
+            JournalEntry e2 = (JournalEntry) o2;
+            if (e1.timestamp != e2.timestamp) {
+                return (e1.timestamp < e2.timestamp) ? -1 : 1;
+            }
+            return (e1.sequence < e2.sequence) ? -1 : ((e1.sequence == e2.sequence) ? 0 : 1);
+        }
+    };
+
+    private String id;
+    private long timestamp;
+    private long sequence;
+
+    private JournalSegment segment;
+    private long payloadPosition;
+    private int payloadLength;
+
+    JournalEntry(String id, long timestamp, long sequence) {
+        this.id = id;
+        this.timestamp = timestamp;
+        this.sequence = sequence;
+    }
+
+    String getId() {
+        return id;
+    }
+
+    long getTimestamp() {
+        return timestamp;
+    }
+
+    long getSequence() {
+        return sequence;
+    }
+
+    JournalSegment getSegment() {
+        return segment;
+    }
+
+    long getPayloadPosition() {
+        return payloadPosition;
+    }
+
+    int getPayloadLength() {
+        return payloadLength;
+    }
+
+    void setLocation(JournalSegment segment, long payloadPosition, int payloadLength) {
+        this.segment = segment;
+        this.payloadPosition = payloadPosition;
+        this.payloadLength = payloadLength;
+    }
+}
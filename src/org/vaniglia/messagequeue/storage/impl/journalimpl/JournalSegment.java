@@ -0,0 +1,213 @@
+/**
+ * Project Vaniglia
+ * User: Michele Aiello
+ *
+ * Copyright (C) 2003/2007  Michele Aiello
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ */
+
+package org.vaniglia.messagequeue.storage.impl.journalimpl;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+
+/**
+ * A segment file of the journal.
+ * Segments are preallocated with their full size and records are appended at the write position. The part of the
+ * file after the last record is filled with zeros, so a record length of 0 marks the end of the segment data.
+ *
+ * Each segment keeps track of the messages pushed in it that have not been acknowledged yet (live entries).
+ */
+class JournalSegment {
+
+    private static final String segmentExt = ".vmqseg";
+
+    private long id;
+    private File file;
+    private RandomAccessFile raf;
+    private FileChannel channel;
+
+    private long writePosition;
+
+    /**
+     * Number of push records in the segment.
+     */
+    private int pushes;
+
+    /**
+     * Entries pushed in this segment and not acknowledged yet, by message id.
+     */
+    private HashMap liveEntries = new HashMap();
+
+    private JournalSegment(long id, File file) throws IOException {
+        this.id = id;
+        this.file = file;
+        this.raf = new RandomAccessFile(file, "rw");
+        this.channel = raf.getChannel();
+        this.writePosition = 0;
+        this.pushes = 0;
+    }
+
+    /**
+     * Creates a new, preallocated, segment.
+     */
+    static JournalSegment create(File dir, long id, long size) throws IOException {
+        JournalSegment segment = new JournalSegment(id, new File(dir, fileName(id)));
+        segment.raf.setLength(size);
+        return segment;
+    }
+
+    /**
+     * Opens an existing segment. The write position must be set after the segment has been read.
+     */
+    static JournalSegment open(File file) throws IOException {
+        return new JournalSegment(parseId(file.getName()), file);
+    }
+
+    static boolean isSegmentFile(String name) {
+        return name.endsWith(segmentExt) && (parseId(name) >= 0);
+    }
+
+    static long parseId(String name) {
+        try {
+            return Long.parseLong(name.substring(0, name.length()-segmentExt.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        } catch (IndexOutOfBoundsException e) {
+            return -1;
+        }
+    }
+
+    private static String fileName(long id) {
+        String idStr = String.valueOf(id);
+        StringBuffer buff = new StringBuffer(20+segmentExt.length());
+        for (int i = idStr.length(); i < 20; i++) {
+            buff.append('0');
+        }
+        return buff.append(idStr).append(segmentExt).toString();
+    }
+
+    long getId() {
+        return id;
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    FileChannel getChannel() {
+        return channel;
+    }
+
+    long size() throws IOException {
+        return channel.size();
+    }
+
+    long getWritePosition() {
+        return writePosition;
+    }
+
+    void setWritePosition(long writePosition) {
+        this.writePosition = writePosition;
+    }
+
+    long remaining() throws IOException {
+        return channel.size() - writePosition;
+    }
+
+    /**
+     * Appends a record at the write position.
+     *
+     * @return the position of the record in the segment.
+     */
+    long append(ByteBuffer record) throws IOException {
+        long position = writePosition;
+        long pos = position;
+        while (record.hasRemaining()) {
+            pos += channel.write(record, pos);
+        }
+        writePosition = pos;
+        return position;
+    }
+
+    /**
+     * Fills the buffer with the segment content starting at the given position.
+     */
+    void read(ByteBuffer buffer, long position) throws IOException {
+        long pos = position;
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, pos);
+            if (read < 0) {
+                throw new IOException("Unexpected end of segment "+file.getName()+" at "+pos);
+            }
+            pos += read;
+        }
+    }
+
+    void force() throws IOException {
+        channel.force(false);
+    }
+
+    void addPush(JournalEntry entry) {
+        pushes++;
+        liveEntries.put(entry.getId(), entry);
+    }
+
+    void addLive(JournalEntry entry) {
+        liveEntries.put(entry.getId(), entry);
+    }
+
+    void removeLive(JournalEntry entry) {
+        liveEntries.remove(entry.getId());
+    }
+
+    int getPushes() {
+        return pushes;
+    }
+
+    int getLiveCount() {
+        return liveEntries.size();
+    }
+
+    JournalEntry[] getLiveEntries() {
+        return (JournalEntry[]) liveEntries.values().toArray(new JournalEntry[liveEntries.size()]);
+    }
+
+    void clearLiveEntries() {
+        liveEntries.clear();
+    }
+
+    void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+        }
+        try {
+            raf.close();
+        } catch (IOException e) {
+        }
+    }
+
+    boolean delete() {
+        close();
+        return file.delete();
+    }
+}
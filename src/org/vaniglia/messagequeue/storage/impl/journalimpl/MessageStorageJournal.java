@@ -0,0 +1,674 @@
+/**
+ * Project Vaniglia
+ * User: Michele Aiello
+ *
+ * Copyright (C) 2003/2007  Michele Aiello
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ */
+
+package org.vaniglia.messagequeue.storage.impl.journalimpl;
+
+import org.apache.log4j.Logger;
+import org.vaniglia.messagequeue.Message;
+import org.vaniglia.messagequeue.codec.MessageCodec;
+import org.vaniglia.messagequeue.codec.SerializationMessageCodec;
+import org.vaniglia.messagequeue.storage.MessageStorage;
+import org.vaniglia.messagequeue.storage.MessageStorageException;
+import org.vaniglia.messagequeue.storage.MessageStorageType;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/**
+ * Journal based storage for Message Queues.
+ * Messages are appended to preallocated segment files instead of being written one per file. Pops and
+ * acknowledgments (removeMessage) are appended to the journal as small records, so every operation is a sequential
+ * write and no file system metadata operation is needed per message.
+ *
+ * An in-memory index keeps the due timestamp and the journal position of every message: messages are read back
+ * and deserialized only when they are popped out.
+ *
+ * Pushes are group committed: the push methods return only after the journal has been synced to disk, but many
+ * concurrent pushes are covered by a single fsync. Pops and acknowledgments are not synced on their own, they are
+ * synced together with the following push (in case of crash a message could be handled twice, as it happens with
+ * the file system storages).
+ *
+ * Segments are compacted starting from the oldest one: when it contains no more messages it is deleted, when only a
+ * few of its messages are still in the storage they are copied to the current segment and than it is deleted.
+ *
+ * At startup all the segments are read back: messages that were in handling are moved back to the storage and
+ * will be reprocessed. A requeued message has a new push record, that replaces the previous one.
+ *
+ * Record format: [int length][byte type][body][int crc32 of type and body].
+ */
+public class MessageStorageJournal extends MessageStorage {
+
+    private static final Logger logger = Logger.getLogger(MessageStorageJournal.class);
+
+    private static final String dirExt = ".vmqjournal";
+    private static final String defaultBasepath = "./VMQ";
+
+    public static final long defaultSegmentSize = 64*1024*1024;
+
+    /**
+     * The oldest segment is compacted when its live messages are at most this fraction of its pushes.
+     */
+    private static final double compactionLiveRatio = 0.25;
+
+    private static final byte PUSH = 1;
+    private static final byte POP = 2;
+    private static final byte ACK = 3;
+
+    private static final int headerSize = 5;
+    private static final int trailerSize = 4;
+
+    private String basepath;
+    private long segmentSize;
+    private boolean syncOnPush;
+    private MessageCodec codec;
+
+    private File rootDir;
+
+    private LinkedList segments = new LinkedList();
+    private JournalSegment activeSegment;
+    private long nextSegmentId = 0;
+
+    private TreeSet pending = new TreeSet(JournalEntry.dueOrder);
+    private HashMap handling = new HashMap();
+    private HashMap entries = new HashMap();
+    private long nextSequence = 0;
+
+    private long appendedBytes = 0;
+    private long syncedBytes = 0;
+    private final Object syncLock = new Object();
+
+    public MessageStorageJournal(String name) {
+        this(name, defaultBasepath);
+    }
+
+    public MessageStorageJournal(String name, String basepath) {
+        this(name, basepath, defaultSegmentSize, true);
+    }
+
+    /**
+     * Class constructor.
+     *
+     * @param name the storage name.
+     * @param basepath the directory where the journal is created.
+     * @param segmentSize the size of the segment files.
+     * @param syncOnPush if true pushes return only after the journal has been synced to disk, otherwise syncing is
+     * left to the operating system.
+     */
+    public MessageStorageJournal(String name, String basepath, long segmentSize, boolean syncOnPush) {
+        this(name, basepath, segmentSize, syncOnPush, null);
+    }
+
+    /**
+     * Class constructor.
+     *
+     * @param name the storage name.
+     * @param basepath the directory where the journal is created.
+     * @param segmentSize the size of the segment files.
+     * @param syncOnPush if true pushes return only after the journal has been synced to disk.
+     * @param codec the codec used to write the messages, null for the SerializationMessageCodec.
+     */
+    public MessageStorageJournal(String name, String basepath, long segmentSize, boolean syncOnPush, MessageCodec codec) {
+        super(name);
+        this.basepath = (basepath != null) ? basepath : defaultBasepath;
+        this.segmentSize = segmentSize;
+        this.syncOnPush = syncOnPush;
+        this.codec = (codec != null) ? codec : SerializationMessageCodec.getInstance();
+
+        initialize();
+    }
+
+    private void initialize() {
+        rootDir = new File(this.basepath+"/"+this.name+dirExt);
+        if (!rootDir.exists()) {
+            rootDir.mkdirs();
+        }
+
+        File[] files = rootDir.listFiles(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return JournalSegment.isSegmentFile(name);
+            }
+        });
+        Arrays.sort(files);
+
+        HashSet popped = new HashSet();
+        for (int i = 0; i < files.length; i++) {
+            try {
+                JournalSegment segment = JournalSegment.open(files[i]);
+                replay(segment, popped);
+                segments.addLast(segment);
+                nextSegmentId = segment.getId() + 1;
+            } catch (IOException e) {
+                logger.error("IOException while reading journal segment "+files[i].getAbsolutePath(), e);
+            }
+        }
+
+        pending.addAll(entries.values());
+
+        int recovered = 0;
+        Iterator it = popped.iterator();
+        while (it.hasNext()) {
+            if (entries.containsKey(it.next())) {
+                recovered++;
+            }
+        }
+        if (recovered > 0) {
+            logger.info("There were messages left in handling in the journal.");
+            logger.info(recovered+" messages recovered.");
+        }
+        if (files.length > 0) {
+            logger.info("Journal "+name+" opened with "+entries.size()+" messages in "+files.length+" segments.");
+        }
+
+        try {
+            activeSegment = JournalSegment.create(rootDir, nextSegmentId++, segmentSize);
+            segments.addLast(activeSegment);
+        } catch (IOException e) {
+            logger.error("IOException while creating a journal segment in "+rootDir.getAbsolutePath(), e);
+        }
+
+        compact();
+    }
+
+    /**
+     * Reads all the records of a segment and updates the index.
+     */
+    private void replay(JournalSegment segment, HashSet popped) throws IOException {
+        long size = segment.size();
+        long position = 0;
+        ByteBuffer lengthBuffer = ByteBuffer.allocate(4);
+
+        while (position + headerSize + trailerSize <= size) {
+            lengthBuffer.clear();
+            segment.read(lengthBuffer, position);
+            int length = lengthBuffer.getInt(0);
+            if ((length <= 0) || (position + 4 + length + trailerSize > size)) {
+                break;
+            }
+
+            ByteBuffer record = ByteBuffer.allocate(length + trailerSize);
+            segment.read(record, position + 4);
+            CRC32 crc = new CRC32();
+            crc.update(record.array(), 0, length);
+            if ((int) crc.getValue() != record.getInt(length)) {
+                logger.warn("Corrupted record in journal segment "+segment.getFile().getName()+" at position "+position+". The rest of the segment is skipped.");
+                break;
+            }
+
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(record.array(), 1, length - 1));
+            String id = in.readUTF();
+            switch (record.get(0)) {
+                case PUSH: {
+                    long timestamp = in.readLong();
+                    int payloadLength = in.readInt();
+                    JournalEntry entry = (JournalEntry) entries.get(id);
+                    if (entry != null) {
+                        // The message has been copied here by a compaction, or requeued.
+                        entry.getSegment().removeLive(entry);
+                        if (entry.getTimestamp() != timestamp) {
+                            entry = new JournalEntry(id, timestamp, nextSequence++);
+                            entries.put(id, entry);
+                        }
+                        popped.remove(id);
+                    }
+                    else {
+                        entry = new JournalEntry(id, timestamp, nextSequence++);
+                        entries.put(id, entry);
+                    }
+                    entry.setLocation(segment, position + 4 + length - payloadLength, payloadLength);
+                    segment.addPush(entry);
+                    break;
+                }
+                case POP: {
+                    popped.add(id);
+                    break;
+                }
+                case ACK: {
+                    JournalEntry entry = (JournalEntry) entries.remove(id);
+                    if (entry != null) {
+                        entry.getSegment().removeLive(entry);
+                    }
+                    popped.remove(id);
+                    break;
+                }
+                default: {
+                    logger.warn("Unknown record type "+record.get(0)+" in journal segment "+segment.getFile().getName()+" at position "+position);
+                }
+            }
+
+            position += 4 + length + trailerSize;
+        }
+
+        segment.setWritePosition(position);
+    }
+
+    public MessageStorageType getType() {
+        return MessageStorageType.JournalType;
+    }
+
+    public void push(Message msg, long timestamp) throws MessageStorageException {
+        long position;
+        synchronized (this) {
+            position = append(msg, timestamp);
+        }
+        commit(position);
+    }
+
+    public void push(Message[] msgs, long[] timestamps) throws MessageStorageException {
+        if (msgs.length != timestamps.length) {
+            throw new MessageStorageException("Messages and timestamps have different lengths.");
+        }
+
+        long position = 0;
+        synchronized (this) {
+            for (int i = 0; i < msgs.length; i++) {
+                position = append(msgs[i], timestamps[i]);
+            }
+        }
+        commit(position);
+    }
+
+    /**
+     * Appends a push record to the journal and adds the message to the index.
+     *
+     * @return the journal position that must be synced to make the message durable.
+     */
+    private long append(Message msg, long timestamp) throws MessageStorageException {
+        String id = msg.getId();
+        if (entries.containsKey(id)) {
+            throw new MessageStorageException("Message already existent!");
+        }
+        if (activeSegment == null) {
+            throw new MessageStorageException("Journal "+name+" is not available.");
+        }
+
+        msg.setTimestamp(timestamp);
+        try {
+            byte[] payload = serialize(msg);
+
+            JournalEntry entry = new JournalEntry(id, timestamp, nextSequence++);
+            appendPush(entry, payload);
+            pending.add(entry);
+            entries.put(id, entry);
+        } catch (IOException e) {
+            throw new MessageStorageException("IOException while writing msg: "+id+" on journal "+name, e);
+        }
+
+        return appendedBytes;
+    }
+
+    private void appendPush(JournalEntry entry, byte[] payload) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream(payload.length + entry.getId().length() + 16);
+        DataOutputStream out = new DataOutputStream(body);
+        out.writeUTF(entry.getId());
+        out.writeLong(entry.getTimestamp());
+        out.writeInt(payload.length);
+        out.write(payload);
+        out.flush();
+
+        int bodyLength = body.size();
+        long position = appendRecord(PUSH, body.toByteArray(), bodyLength);
+        entry.setLocation(activeSegment, position + headerSize + bodyLength - payload.length, payload.length);
+        activeSegment.addPush(entry);
+    }
+
+    private void appendIdRecord(byte type, String id) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream(id.length() + 2);
+        DataOutputStream out = new DataOutputStream(body);
+        out.writeUTF(id);
+        out.flush();
+        appendRecord(type, body.toByteArray(), body.size());
+    }
+
+    /**
+     * Appends a record to the active segment, rolling to a new segment if the active one is full.
+     *
+     * @return the position of the record in the active segment.
+     */
+    private long appendRecord(byte type, byte[] body, int bodyLength) throws IOException {
+        ByteBuffer record = ByteBuffer.allocate(headerSize + bodyLength + trailerSize);
+        record.putInt(bodyLength + 1);
+        record.put(type);
+        record.put(body, 0, bodyLength);
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), 4, bodyLength + 1);
+        record.putInt((int) crc.getValue());
+        record.flip();
+
+        int recordLength = record.remaining();
+        if ((activeSegment.remaining() < recordLength) && (activeSegment.getWritePosition() > 0)) {
+            roll();
+        }
+
+        long position = activeSegment.append(record);
+        appendedBytes += recordLength;
+        return position;
+    }
+
+    private void roll() throws IOException {
+        activeSegment.force();
+        activeSegment = JournalSegment.create(rootDir, nextSegmentId++, segmentSize);
+        segments.addLast(activeSegment);
+    }
+
+    /**
+     * Syncs the journal up to the given position. Threads waiting to sync are covered by a single fsync.
+     * Must not be called holding the storage lock, so that other threads can append while the journal is synced.
+     */
+    private void commit(long position) throws MessageStorageException {
+        if (!syncOnPush) {
+            return;
+        }
+
+        synchronized (syncLock) {
+            if (syncedBytes >= position) {
+                return;
+            }
+
+            long target;
+            JournalSegment segment;
+            synchronized (this) {
+                target = appendedBytes;
+                segment = activeSegment;
+            }
+
+            try {
+                segment.force();
+            } catch (ClosedChannelException e) {
+                // The segment has been rolled (and synced) and compacted meanwhile.
+            } catch (IOException e) {
+                throw new MessageStorageException("IOException while syncing journal "+name, e);
+            }
+            syncedBytes = target;
+        }
+    }
+
+    public synchronized Message pop(long timestamp) {
+        while (!pending.isEmpty()) {
+            JournalEntry entry = (JournalEntry) pending.first();
+            if (entry.getTimestamp() > timestamp) {
+                return null;
+            }
+            pending.remove(entry);
+
+            Message msg = readMessage(entry);
+            if (msg == null) {
+                logger.error("Unable to read message "+entry.getId()+" from journal segment "+entry.getSegment().getFile().getName()+". The message is discarded.");
+                try {
+                    acknowledge(entry);
+                } catch (IOException e) {
+                    logger.error("IOException while discarding msg: "+entry.getId(), e);
+                }
+                continue;
+            }
+
+            handling.put(entry.getId(), entry);
+            try {
+                appendIdRecord(POP, entry.getId());
+            } catch (IOException e) {
+                logger.error("IOException while writing pop record for msg: "+entry.getId(), e);
+            }
+            return msg;
+        }
+
+        return null;
+    }
+
+    public synchronized Message[] pop(long timestamp, int max) {
+        return super.pop(timestamp, max);
+    }
+
+    public synchronized long getNextTimestamp() {
+        if (pending.isEmpty()) {
+            return Long.MAX_VALUE;
+        }
+        return ((JournalEntry) pending.first()).getTimestamp();
+    }
+
+    public synchronized void removeMessage(Message msg) throws MessageStorageException {
+        remove(msg);
+        compact();
+    }
+
+    public synchronized void removeMessages(Message[] msgs) throws MessageStorageException {
+        MessageStorageException failure = null;
+        for (int i = 0; i < msgs.length; i++) {
+            try {
+                remove(msgs[i]);
+            } catch (MessageStorageException e) {
+                if (failure == null) {
+                    failure = e;
+                }
+            }
+        }
+        compact();
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Requeues a message in handling appending a new push record for the same id, that replaces the previous one
+     * when the journal is replayed. The message is acknowledged only when it is removed, so it can't be lost.
+     */
+    public void requeue(Message msg, long timestamp) throws MessageStorageException {
+        if (msg == null) {
+            throw new MessageStorageException("Null message");
+        }
+
+        String id = msg.getId();
+        long position;
+        synchronized (this) {
+            JournalEntry old = (JournalEntry) handling.remove(id);
+            if (old == null) {
+                throw new MessageStorageException("Message with ID: "+id+" doesn't exist in the storage.");
+            }
+            if (activeSegment == null) {
+                handling.put(id, old);
+                throw new MessageStorageException("Journal "+name+" is not available.");
+            }
+
+            // Live entries are by id: the old entry must be removed before the new one is added.
+            old.getSegment().removeLive(old);
+            msg.setTimestamp(timestamp);
+            try {
+                JournalEntry entry = new JournalEntry(id, timestamp, nextSequence++);
+                appendPush(entry, serialize(msg));
+                entries.put(id, entry);
+                pending.add(entry);
+            } catch (IOException e) {
+                old.getSegment().addLive(old);
+                handling.put(id, old);
+                throw new MessageStorageException("IOException while requeueing msg: "+id+" on journal "+name, e);
+            }
+            position = appendedBytes;
+            compact();
+        }
+        commit(position);
+    }
+
+    private void remove(Message msg) throws MessageStorageException {
+        if (msg == null) {
+            throw new MessageStorageException("Null message");
+        }
+
+        JournalEntry entry = (JournalEntry) handling.remove(msg.getId());
+        if (entry == null) {
+            throw new MessageStorageException("Message with ID: "+msg.getId()+" doesn't exist in the storage.");
+        }
+
+        try {
+            acknowledge(entry);
+        } catch (IOException e) {
+            throw new MessageStorageException("IOException while writing ack record for msg: "+msg.getId(), e);
+        }
+    }
+
+    private void acknowledge(JournalEntry entry) throws IOException {
+        entries.remove(entry.getId());
+        entry.getSegment().removeLive(entry);
+        appendIdRecord(ACK, entry.getId());
+    }
+
+    /**
+     * Deletes the oldest segments when they have no more live messages, copying the few messages left (if any) to
+     * the active segment. Segments are always deleted oldest first, so that the acknowledgments of the messages of
+     * a segment are never deleted before the segment itself.
+     */
+    private void compact() {
+        while (segments.size() > 1) {
+            JournalSegment head = (JournalSegment) segments.getFirst();
+            if ((head == activeSegment) || (head.getLiveCount() > head.getPushes() * compactionLiveRatio)) {
+                return;
+            }
+
+            try {
+                if (head.getLiveCount() > 0) {
+                    copyForward(head);
+                    activeSegment.force();
+                }
+            } catch (IOException e) {
+                logger.error("IOException while compacting journal segment "+head.getFile().getName(), e);
+                return;
+            }
+
+            segments.removeFirst();
+            if (!head.delete()) {
+                logger.warn("Unable to delete journal segment "+head.getFile().getAbsolutePath());
+            }
+        }
+    }
+
+    private void copyForward(JournalSegment segment) throws IOException {
+        JournalEntry[] live = segment.getLiveEntries();
+        for (int i = 0; i < live.length; i++) {
+            byte[] payload = readPayload(live[i]);
+            appendPush(live[i], payload);
+            if (handling.containsKey(live[i].getId())) {
+                appendIdRecord(POP, live[i].getId());
+            }
+        }
+        segment.clearLiveEntries();
+    }
+
+    public synchronized long size() {
+        return pending.size() + handling.size();
+    }
+
+    public synchronized void clear() {
+        Iterator it = segments.iterator();
+        while (it.hasNext()) {
+            ((JournalSegment) it.next()).delete();
+        }
+        segments.clear();
+        pending.clear();
+        handling.clear();
+        entries.clear();
+        activeSegment = null;
+
+        try {
+            activeSegment = JournalSegment.create(rootDir, nextSegmentId++, segmentSize);
+            segments.addLast(activeSegment);
+        } catch (IOException e) {
+            logger.error("IOException while creating a journal segment in "+rootDir.getAbsolutePath(), e);
+        }
+    }
+
+    public synchronized String[] getMessageList() {
+        String[] msgs = new String[pending.size()+handling.size()];
+        int i = 0;
+
+        Iterator it = handling.keySet().iterator();
+        while (it.hasNext()) {
+            msgs[i++] = (String) it.next();
+        }
+
+        it = pending.iterator();
+        while (it.hasNext()) {
+            msgs[i++] = ((JournalEntry) it.next()).getId();
+        }
+
+        return msgs;
+    }
+
+    public synchronized Message[] getAllMessages() {
+        Vector allMsgs = new Vector(pending.size()+handling.size());
+
+        addMessages(handling.values().iterator(), allMsgs);
+        addMessages(pending.iterator(), allMsgs);
+
+        return (Message[]) allMsgs.toArray(new Message[allMsgs.size()]);
+    }
+
+    private void addMessages(Iterator it, Vector allMsgs) {
+        while (it.hasNext()) {
+            Message msg = readMessage((JournalEntry) it.next());
+            if (msg != null) {
+                allMsgs.add(msg);
+            }
+        }
+    }
+
+    public synchronized void printAllMessages(PrintStream stream) {
+        stream.println("Messages in handling: ");
+        printMessages(handling.values().iterator(), stream);
+
+        stream.println("");
+        stream.println("Messages in the queue: ");
+        printMessages(pending.iterator(), stream);
+    }
+
+    private void printMessages(Iterator it, PrintStream stream) {
+        while (it.hasNext()) {
+            Message msg = readMessage((JournalEntry) it.next());
+            if (msg != null) {
+                stream.print('\t');
+                stream.print(msg.toString());
+                stream.println();
+            }
+        }
+    }
+
+    private byte[] readPayload(JournalEntry entry) throws IOException {
+        ByteBuffer payload = ByteBuffer.allocate(entry.getPayloadLength());
+        entry.getSegment().read(payload, entry.getPayloadPosition());
+        return payload.array();
+    }
+
+    private Message readMessage(JournalEntry entry) {
+        try {
+            return codec.decode(new ByteArrayInputStream(readPayload(entry)));
+        } catch (IOException e) {
+            logger.error("IOException while reading msg: "+entry.getId(), e);
+        }
+
+        return null;
+    }
+
+    private byte[] serialize(Message msg) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(256);
+        codec.encode(msg, buffer);
+        return buffer.toByteArray();
+    }
+}
@@ -0,0 +1,230 @@
+/**
+ * Project Vaniglia
+ * User: Michele Aiello
+ *
+ * Copyright (C) 2003/2007  Michele Aiello
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ */
+
+package org.vaniglia.messagequeue.storage.impl.memimpl;
+
+import org.vaniglia.messagequeue.Message;
+
+/**
+ * Binary min-heap of messages ordered by their due timestamp.
+ * Messages with the same timestamp are kept in insertion order using a sequence number as tiebreaker.
+ * The heap is backed by parallel arrays, so no object is allocated per message and both add and poll are O(log n).
+ *
+ * This class is NOT thread safe.
+ */
+public class MessageHeap {
+
+    private static final int defaultInitialCapacity = 64;
+
+    private Message[] messages;
+    private long[] timestamps;
+    private long[] sequences;
+
+    private int size;
+    private long nextSequence;
+
+    public MessageHeap() {
+        this(defaultInitialCapacity);
+    }
+
+    public MessageHeap(int initialCapacity) {
+        if (initialCapacity < 1) {
+            initialCapacity = 1;
+        }
+        messages = new Message[initialCapacity];
+        timestamps = new long[initialCapacity];
+        sequences = new long[initialCapacity];
+        size = 0;
+        nextSequence = 0;
+    }
+
+    /**
+     * Adds a message to the heap using the message timestamp as key.
+     *
+     * @param msg the message to add.
+     */
+    public void add(Message msg) {
+        if (size == messages.length) {
+            grow();
+        }
+
+        int i = size++;
+        messages[i] = msg;
+        timestamps[i] = msg.getTimestamp();
+        sequences[i] = nextSequence++;
+        siftUp(i);
+    }
+
+    /**
+     * Returns the message with the earliest due timestamp without removing it.
+     *
+     * @return the first message or null if the heap is empty.
+     */
+    public Message peek() {
+        return (size == 0) ? null : messages[0];
+    }
+
+    /**
+     * Returns the timestamp of the first message in the heap.
+     *
+     * @return the earliest due timestamp or Long.MAX_VALUE if the heap is empty.
+     */
+    public long peekTimestamp() {
+        return (size == 0) ? Long.MAX_VALUE : timestamps[0];
+    }
+
+    /**
+     * Removes and returns the message with the earliest due timestamp.
+     *
+     * @return the first message or null if the heap is empty.
+     */
+    public Message poll() {
+        if (size == 0) {
+            return null;
+        }
+
+        Message first = messages[0];
+        size--;
+        if (size > 0) {
+            move(size, 0);
+            siftDown(0);
+        }
+        messages[size] = null;
+
+        return first;
+    }
+
+    /**
+     * Removes and returns the first message only if its due timestamp is not after the given one.
+     *
+     * @param timestamp the timestamp.
+     *
+     * @return the first message with msg.timestamp <= timestamp or null.
+     */
+    public Message poll(long timestamp) {
+        if ((size == 0) || (timestamps[0] > timestamp)) {
+            return null;
+        }
+        return poll();
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        for (int i = 0; i < size; i++) {
+            messages[i] = null;
+        }
+        size = 0;
+    }
+
+    /**
+     * Returns all the messages in the heap ordered by due timestamp.
+     * This method costs O(n log n) and is meant for listing purposes only.
+     *
+     * @return the messages in due order.
+     */
+    public Message[] toSortedArray() {
+        MessageHeap copy = new MessageHeap(size);
+        System.arraycopy(messages, 0, copy.messages, 0, size);
+        System.arraycopy(timestamps, 0, copy.timestamps, 0, size);
+        System.arraycopy(sequences, 0, copy.sequences, 0, size);
+        copy.size = size;
+
+        Message[] sorted = new Message[size];
+        for (int i = 0; i < sorted.length; i++) {
+            sorted[i] = copy.poll();
+        }
+        return sorted;
+    }
+
+    private boolean less(int i, int j) {
+        if (timestamps[i] != timestamps[j]) {
+            return timestamps[i] < timestamps[j];
+        }
+        return sequences[i] < sequences[j];
+    }
+
+    private void move(int from, int to) {
+        messages[to] = messages[from];
+        timestamps[to] = timestamps[from];
+        sequences[to] = sequences[from];
+    }
+
+    private void swap(int i, int j) {
+        Message msg = messages[i];
+        long ts = timestamps[i];
+        long seq = sequences[i];
+        move(j, i);
+        messages[j] = msg;
+        timestamps[j] = ts;
+        sequences[j] = seq;
+    }
+
+    private void siftUp(int i) {
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (!less(i, parent)) {
+                break;
+            }
+            swap(i, parent);
+            i = parent;
+        }
+    }
+
+    private void siftDown(int i) {
+        int half = size >>> 1;
+        while (i < half) {
+            int child = (i << 1) + 1;
+            int right = child + 1;
+            if ((right < size) && less(right, child)) {
+                child = right;
+            }
+            if (!less(child, i)) {
+                break;
+            }
+            swap(i, child);
+            i = child;
+        }
+    }
+
+    private void grow() {
+        int newCapacity = messages.length * 2;
+
+        Message[] newMessages = new Message[newCapacity];
+        System.arraycopy(messages, 0, newMessages, 0, size);
+        messages = newMessages;
+
+        long[] newTimestamps = new long[newCapacity];
+        System.arraycopy(timestamps, 0, newTimestamps, 0, size);
+        timestamps = newTimestamps;
+
+        long[] newSequences = new long[newCapacity];
+        System.arraycopy(sequences, 0, newSequences, 0, size);
+        sequences = newSequences;
+    }
+}
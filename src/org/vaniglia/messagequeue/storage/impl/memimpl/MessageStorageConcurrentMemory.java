@@ -0,0 +1,214 @@
+/**
+ * Project Vaniglia
+ * User: Michele Aiello
+ *
+ * Copyright (C) 2003/2007  Michele Aiello
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ */
+
+package org.vaniglia.messagequeue.storage.impl.memimpl;
+
+import org.vaniglia.messagequeue.Message;
+import org.vaniglia.messagequeue.storage.MessageStorage;
+import org.vaniglia.messagequeue.storage.MessageStorageException;
+import org.vaniglia.messagequeue.storage.MessageStorageType;
+
+import java.io.PrintStream;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock free memory based Message Storage.
+ * Messages are kept in a concurrent skip list ordered by due timestamp (and by a sequence number for messages with
+ * the same timestamp), while messages in handling are kept in a concurrent hash map. No method of this storage
+ * takes a lock, so many producer threads can push messages at the same time without contention.
+ *
+ * The size limit, if any, is enforced on a best effort basis: under heavy contention the storage can exceed it
+ * by at most the number of concurrent producers.
+ */
+public class MessageStorageConcurrentMemory extends MessageStorage {
+
+    /**
+     * Skip list key. Orders messages by timestamp and then by push sequence.
+     */
+    private static final class MessageKey implements Comparable {
+        private final long timestamp;
+        private final long sequence;
+
+        MessageKey(long timestamp, long sequence) {
+            this.timestamp = timestamp;
+            this.sequence = sequence;
+        }
+
+        public int compareTo(Object o) {
+            MessageKey that = (MessageKey) o;
+            if (timestamp != that.timestamp) {
+                return (timestamp < that.timestamp) ? -1 : 1;
+            }
+            return (sequence < that.sequence) ? -1 : ((sequence == that.sequence) ? 0 : 1);
+        }
+    }
+
+    private ConcurrentSkipListMap messages;
+    private ConcurrentHashMap handling;
+
+    private AtomicLong sequence;
+    private AtomicLong count;
+    private long size;
+
+    public MessageStorageConcurrentMemory(String name) {
+        this(name, -1);
+    }
+
+    public MessageStorageConcurrentMemory(String name, long size) {
+        super(name);
+        this.size = size;
+        messages = new ConcurrentSkipListMap();
+        handling = new ConcurrentHashMap();
+        sequence = new AtomicLong(0);
+        count = new AtomicLong(0);
+    }
+
+    public MessageStorageType getType() {
+        return MessageStorageType.ConcurrentMemoryType;
+    }
+
+    public void push(Message msg, long timestamp) throws MessageStorageException {
+        if (count.incrementAndGet() > size && size > 0) {
+            count.decrementAndGet();
+            throw new MessageStorageException("Size limit reached.");
+        }
+
+        msg.setTimestamp(timestamp);
+        messages.put(new MessageKey(timestamp, sequence.getAndIncrement()), msg);
+    }
+
+    public Message pop(long timestamp) {
+        for (;;) {
+            Map.Entry first = messages.firstEntry();
+            if (first == null) {
+                return null;
+            }
+
+            MessageKey key = (MessageKey) first.getKey();
+            if (key.timestamp > timestamp) {
+                return null;
+            }
+
+            Message msg = (Message) first.getValue();
+            if (messages.remove(key, msg)) {
+                handling.put(msg.getId(), msg);
+                return msg;
+            }
+            // Another consumer took it, try with the next one.
+        }
+    }
+
+    public long getNextTimestamp() {
+        Map.Entry first = messages.firstEntry();
+        if (first == null) {
+            return Long.MAX_VALUE;
+        }
+        return ((MessageKey) first.getKey()).timestamp;
+    }
+
+    public void removeMessage(Message msg) throws MessageStorageException {
+        if (msg == null) {
+            throw new MessageStorageException("Null message");
+        }
+
+        if (handling.remove(msg.getId()) == null) {
+            throw new MessageStorageException("Message with ID: "+msg.getId()+" doesn't exist in the storage.");
+        }
+        count.decrementAndGet();
+    }
+
+    /**
+     * Moves the message from handling back to the skip list. The message count doesn't change, so the size limit is
+     * not checked.
+     */
+    public void requeue(Message msg, long timestamp) throws MessageStorageException {
+        if (handling.remove(msg.getId()) == null) {
+            throw new MessageStorageException("Message with ID: "+msg.getId()+" doesn't exist in the storage.");
+        }
+        msg.setTimestamp(timestamp);
+        messages.put(new MessageKey(timestamp, sequence.getAndIncrement()), msg);
+    }
+
+    public long getCapacity() {
+        return size;
+    }
+
+    public long size() {
+        return count.get();
+    }
+
+    public void clear() {
+        messages.clear();
+        handling.clear();
+        count.set(0);
+    }
+
+    public String[] getMessageList() {
+        Vector msgsList = new Vector(messages.size()+handling.size());
+
+        Iterator it = handling.keySet().iterator();
+        while (it.hasNext()) {
+            msgsList.add(it.next());
+        }
+
+        it = messages.values().iterator();
+        while (it.hasNext()) {
+            msgsList.add(((Message) it.next()).getId());
+        }
+
+        return (String[]) msgsList.toArray(new String[msgsList.size()]);
+    }
+
+    public Message[] getAllMessages() {
+        Vector allMsgs = new Vector(messages.size()+handling.size());
+
+        allMsgs.addAll(handling.values());
+        allMsgs.addAll(messages.values());
+
+        return (Message[]) allMsgs.toArray(new Message[allMsgs.size()]);
+    }
+
+    public void printAllMessages(PrintStream stream) {
+        stream.println("Messages in handling: ");
+        Iterator it = handling.values().iterator();
+        while (it.hasNext()) {
+            stream.print('\t');
+            stream.print(it.next().toString());
+            stream.println();
+        }
+
+        stream.println("");
+        stream.println("Messages in the queue: ");
+
+        it = messages.values().iterator();
+        while (it.hasNext()) {
+            stream.print('\t');
+            stream.print(it.next().toString());
+            stream.println();
+        }
+    }
+}
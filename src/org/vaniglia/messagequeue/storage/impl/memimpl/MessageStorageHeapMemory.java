@@ -0,0 +1,196 @@
+/**
+ * Project Vaniglia
+ * User: Michele Aiello
+ *
+ * Copyright (C) 2003/2007  Michele Aiello
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ */
+
+package org.vaniglia.messagequeue.storage.impl.memimpl;
+
+import org.vaniglia.messagequeue.Message;
+import org.vaniglia.messagequeue.storage.MessageStorage;
+import org.vaniglia.messagequeue.storage.MessageStorageException;
+import org.vaniglia.messagequeue.storage.MessageStorageType;
+
+import java.io.PrintStream;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.Vector;
+
+/**
+ * Memory based Message Storage indexed by due timestamp.
+ * This storage behaves like the MessageStorageMemory but keeps the messages in a binary heap instead of an ordered
+ * list, so push and pop cost O(log n) instead of O(n). It should be preferred when the queue can hold a large
+ * number of messages.
+ */
+public class MessageStorageHeapMemory extends MessageStorage {
+
+    protected MessageHeap messages;
+    protected HashMap handling;
+    private long size;
+
+    public MessageStorageHeapMemory(String name) {
+        this(name, -1);
+    }
+
+    public MessageStorageHeapMemory(String name, long size) {
+        super(name);
+        this.size = size;
+        messages = new MessageHeap();
+        handling = new HashMap();
+    }
+
+    public MessageStorageType getType() {
+        return MessageStorageType.HeapMemoryType;
+    }
+
+    public synchronized void push(Message msg, long timestamp) throws MessageStorageException {
+        if ((size > 0) && (size() >= size)) {
+            throw new MessageStorageException("Size limit reached.");
+        }
+
+        msg.setTimestamp(timestamp);
+        messages.add(msg);
+    }
+
+    public synchronized void push(Message[] msgs, long[] timestamps) throws MessageStorageException {
+        if ((size > 0) && (size() + msgs.length > size)) {
+            throw new MessageStorageException("Size limit reached.");
+        }
+        super.push(msgs, timestamps);
+    }
+
+    public synchronized Message pop(long timestamp) {
+        Message msg = messages.poll(timestamp);
+        if (msg != null) {
+            handling.put(msg.getId(), msg);
+        }
+        return msg;
+    }
+
+    public synchronized Message[] pop(long timestamp, int max) {
+        Vector msgs = new Vector(Math.min(max, 100));
+        Message msg;
+        while ((msgs.size() < max) && ((msg = messages.poll(timestamp)) != null)) {
+            handling.put(msg.getId(), msg);
+            msgs.add(msg);
+        }
+        return (Message[]) msgs.toArray(new Message[msgs.size()]);
+    }
+
+    public synchronized long getNextTimestamp() {
+        return messages.peekTimestamp();
+    }
+
+    public synchronized void removeMessage(Message msg) throws MessageStorageException {
+        if (msg == null) {
+            throw new MessageStorageException("Null message");
+        }
+
+        if (handling.remove(msg.getId()) == null) {
+            throw new MessageStorageException("Message with ID: "+msg.getId()+" doesn't exist in the storage.");
+        }
+    }
+
+    /**
+     * Moves the message from handling back to the heap. The message is already counted by the storage, so the size
+     * limit is not checked.
+     */
+    public synchronized void requeue(Message msg, long timestamp) throws MessageStorageException {
+        if (handling.remove(msg.getId()) == null) {
+            throw new MessageStorageException("Message with ID: "+msg.getId()+" doesn't exist in the storage.");
+        }
+        msg.setTimestamp(timestamp);
+        messages.add(msg);
+    }
+
+    public synchronized void removeMessages(Message[] msgs) throws MessageStorageException {
+        super.removeMessages(msgs);
+    }
+
+    public long getCapacity() {
+        return size;
+    }
+
+    public synchronized long size() {
+        return messages.size() + handling.size();
+    }
+
+    public synchronized void clear() {
+        messages.clear();
+        handling.clear();
+    }
+
+    public synchronized String[] getMessageList() {
+        String[] msgs = new String[messages.size()+handling.size()];
+        int i = 0;
+
+        Set keySet = handling.keySet();
+        Iterator itSet = keySet.iterator();
+        while (itSet.hasNext()) {
+            msgs[i++] = (String)itSet.next();
+        }
+
+        Message[] sorted = messages.toSortedArray();
+        for (int j = 0; j < sorted.length; j++) {
+            msgs[i++] = sorted[j].getId();
+        }
+
+        return msgs;
+    }
+
+    public synchronized Message[] getAllMessages() {
+        Message[] msgs = new Message[messages.size()+handling.size()];
+        int i = 0;
+
+        Set entries = handling.entrySet();
+        Iterator itSet = entries.iterator();
+        while (itSet.hasNext()) {
+            msgs[i++] = (Message) ((Map.Entry)itSet.next()).getValue();
+        }
+
+        Message[] sorted = messages.toSortedArray();
+        System.arraycopy(sorted, 0, msgs, i, sorted.length);
+
+        return msgs;
+    }
+
+    public synchronized void printAllMessages(PrintStream stream) {
+        stream.println("Messages in handling: ");
+        Set entries = handling.entrySet();
+        Iterator itSet = entries.iterator();
+        while (itSet.hasNext()) {
+            Message msg = (Message) ((Map.Entry)itSet.next()).getValue();
+            stream.print('\t');
+            stream.print(msg.toString());
+            stream.println();
+        }
+
+        stream.println("");
+        stream.println("Messages in the queue: ");
+
+        Message[] sorted = messages.toSortedArray();
+        for (int i = 0; i < sorted.length; i++) {
+            stream.print('\t');
+            stream.print(sorted[i].toString());
+            stream.println();
+        }
+    }
+}
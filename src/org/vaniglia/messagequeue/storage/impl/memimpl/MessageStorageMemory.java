@@ -66,11 +66,19 @@ public class MessageStorageMemory extends MessageStorage {
         }
 
         msg.setTimestamp(timestamp);
+        insert(msg);
+    }
+
+    /**
+     * Inserts a message in the messages list, ordered by due timestamp. Messages with the same timestamp are kept in
+     * push order.
+     */
+    private void insert(Message msg) {
         ListIterator it = messagesList.listIterator();
 
         while (it.hasNext()) {
             Message currentMsg = (Message) it.next();
-            if (msg.compareTo(currentMsg) <= 0) {
+            if (msg.compareTo(currentMsg) < 0) {
                 it.previous();
                 it.add(msg);
                 return;
@@ -80,6 +88,40 @@ public class MessageStorageMemory extends MessageStorage {
         it.add(msg);
     }
 
+    /**
+     * Pushes a batch of messages. The batch is sorted and than merged in the messages list with a single scan, after
+     * the messages with the same timestamp already in the list.
+     * If the batch doesn't fit in the storage no message is pushed.
+     */
+    public synchronized void push(Message[] msgs, long[] timestamps) throws MessageStorageException {
+        if (msgs.length != timestamps.length) {
+            throw new MessageStorageException("Messages and timestamps have different lengths.");
+        }
+        if ((size > 0) && (size() + msgs.length > size)) {
+            throw new MessageStorageException("Size limit reached.");
+        }
+
+        Message[] sorted = new Message[msgs.length];
+        for (int i = 0; i < msgs.length; i++) {
+            msgs[i].setTimestamp(timestamps[i]);
+            sorted[i] = msgs[i];
+        }
+        Arrays.sort(sorted);
+
+        ListIterator it = messagesList.listIterator();
+        for (int i = 0; i < sorted.length; i++) {
+            Message msg = sorted[i];
+            while (it.hasNext()) {
+                Message currentMsg = (Message) it.next();
+                if (msg.compareTo(currentMsg) < 0) {
+                    it.previous();
+                    break;
+                }
+            }
+            it.add(msg);
+        }
+    }
+
     public synchronized Message pop(long timestamp) {
         ListIterator it = messagesList.listIterator();
 
@@ -95,6 +137,31 @@ public class MessageStorageMemory extends MessageStorage {
         return null;
     }
 
+    public synchronized Message[] pop(long timestamp, int max) {
+        Vector msgs = new Vector(Math.min(max, 100));
+        ListIterator it = messagesList.listIterator();
+
+        // The list is ordered, so due messages are all at the beginning.
+        while (it.hasNext() && (msgs.size() < max)) {
+            Message currentMsg = (Message) it.next();
+            if (currentMsg.getTimestamp() > timestamp) {
+                break;
+            }
+            it.remove();
+            handling.put(currentMsg.getId(), currentMsg);
+            msgs.add(currentMsg);
+        }
+
+        return (Message[]) msgs.toArray(new Message[msgs.size()]);
+    }
+
+    public synchronized long getNextTimestamp() {
+        if (messagesList.isEmpty()) {
+            return Long.MAX_VALUE;
+        }
+        return ((Message) messagesList.getFirst()).getTimestamp();
+    }
+
     public synchronized void removeMessage(Message msg) throws MessageStorageException {
         if (msg == null) {
             throw new MessageStorageException("Null message");
@@ -105,7 +172,27 @@ public class MessageStorageMemory extends MessageStorage {
         }
     }
 
-    public long size() {
+    /**
+     * Moves the message from handling back to the messages list. The message is already counted by the storage,
+     * so the size limit is not checked.
+     */
+    public synchronized void requeue(Message msg, long timestamp) throws MessageStorageException {
+        if (handling.remove(msg.getId()) == null) {
+            throw new MessageStorageException("Message with ID: "+msg.getId()+" doesn't exist in the storage.");
+        }
+        msg.setTimestamp(timestamp);
+        insert(msg);
+    }
+
+    public synchronized void removeMessages(Message[] msgs) throws MessageStorageException {
+        super.removeMessages(msgs);
+    }
+
+    public long getCapacity() {
+        return size;
+    }
+
+    public synchronized long size() {
         return messagesList.size() + handling.size();
     }
 
@@ -0,0 +1,460 @@
+/**
+ * Project Vaniglia
+ * User: Michele Aiello
+ *
+ * Copyright (C) 2003/2007  Michele Aiello
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ */
+
+package org.vaniglia.messagequeue.storage.impl.ringimpl;
+
+import org.apache.log4j.Logger;
+import org.vaniglia.messagequeue.Message;
+import org.vaniglia.messagequeue.codec.BinaryMessageCodec;
+import org.vaniglia.messagequeue.codec.MessageCodec;
+import org.vaniglia.messagequeue.storage.MessageStorage;
+import org.vaniglia.messagequeue.storage.MessageStorageException;
+import org.vaniglia.messagequeue.storage.MessageStorageType;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Vector;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Off heap memory storage.
+ * Messages are encoded in a ring buffer allocated once, out of the Java heap, when the storage is created, so queued
+ * messages don't create any object: a high rate queue doesn't load the garbage collector with the list nodes, map
+ * entries and messages of the other memory storages. Messages are decoded straight from the ring when they are
+ * popped.
+ *
+ * The ring is addressed by ever increasing sequences, the position in the buffer being the sequence modulo the
+ * buffer size. Producers claim the space of their record by moving the claim sequence forward with a compare and
+ * set, write the record without any lock and than publish it moving the cursor sequence forward, in claim order.
+ * Records are popped in publication order from the cursor and their space is released, in order, when they have
+ * been removed. Each record has a header with the payload length, the due timestamp and the record state (queued,
+ * in handling or removed), a record that doesn't fit before the end of the buffer is written at its beginning.
+ *
+ * The ring is a FIFO: messages are popped in publication order when they are due, so a message with a due time in
+ * the future delays the messages published after it. This storage is meant for transient queues whose messages are
+ * published with the current time: queues using it can't have a retry policy, that requeues failed messages with a
+ * delay (see MessageStorage.isFifo). Like the other memory storages all messages are lost when the application
+ * terminates. The size of the storage is the size of the ring in bytes, a push that doesn't fit raises a
+ * MessageStorageException, so queues should be bounded (see MessageQueue.setCapacity) to apply back-pressure.
+ */
+public class MessageStorageRingBuffer extends MessageStorage {
+
+    private static final Logger logger = Logger.getLogger(MessageStorageRingBuffer.class);
+
+    public static final int defaultBufferSize = 64*1024*1024;
+
+    private static final int queuedState = 0;
+    private static final int handlingState = 1;
+    private static final int removedState = 2;
+
+    private static final int paddingLength = -1;
+
+    private static final int lengthOffset = 0;
+    private static final int timestampOffset = 4;
+    private static final int stateOffset = 12;
+    private static final int headerSize = 13;
+
+    private final ByteBuffer ring;
+    private final int capacity;
+    private final MessageCodec codec;
+
+    /**
+     * Sequence up to which space has been claimed by producers.
+     */
+    private final AtomicLong claimSequence = new AtomicLong();
+
+    /**
+     * Sequence up to which records have been published and can be popped.
+     */
+    private final AtomicLong cursorSequence = new AtomicLong();
+
+    /**
+     * Sequence up to which space has been released and can be claimed again.
+     */
+    private final AtomicLong releaseSequence = new AtomicLong();
+
+    /**
+     * Sequence of the next record to pop. Guarded by the storage lock, like the record states.
+     */
+    private long popSequence = 0;
+
+    private final AtomicLong count = new AtomicLong();
+
+    /**
+     * Sequences of the records in handling, by message id.
+     */
+    private final HashMap handling = new HashMap();
+
+    /**
+     * Buffer view and stream used under the storage lock to decode records.
+     */
+    private final ByteBuffer readView;
+    private final ByteBufferInputStream readStream;
+
+    /**
+     * Producer buffers. Messages are encoded on the heap first, to know their size, in buffers reused by each thread.
+     */
+    private final ThreadLocal encodeBuffers = new ThreadLocal() {
+        protected Object initialValue() {
+            return new EncodeBuffer(ring.duplicate());
+        }
+    };
+
+    private static class EncodeBuffer extends ByteArrayOutputStream {
+        private ByteBuffer view;
+
+        EncodeBuffer(ByteBuffer view) {
+            super(256);
+            this.view = view;
+        }
+
+        /**
+         * Copies the encoded message to the ring.
+         */
+        void copyTo(int position) {
+            view.limit(view.capacity());
+            view.position(position);
+            view.put(buf, 0, count);
+        }
+    }
+
+    public MessageStorageRingBuffer(String name) {
+        this(name, defaultBufferSize, null);
+    }
+
+    /**
+     * Creates a ring buffer storage.
+     *
+     * @param name the storage name.
+     * @param bufferSize the size of the ring in bytes.
+     * @param codec the codec used to encode the messages, null for the BinaryMessageCodec.
+     */
+    public MessageStorageRingBuffer(String name, int bufferSize, MessageCodec codec) {
+        super(name);
+        if (bufferSize < headerSize) {
+            throw new IllegalArgumentException("Invalid ring buffer size: "+bufferSize);
+        }
+        logger.info("Allocating a ring buffer of "+bufferSize+" bytes for storage "+name);
+        this.capacity = bufferSize;
+        this.ring = ByteBuffer.allocateDirect(bufferSize);
+        this.codec = (codec != null) ? codec : BinaryMessageCodec.getInstance();
+        this.readView = ring.duplicate();
+        this.readStream = new ByteBufferInputStream(readView);
+    }
+
+    public MessageStorageType getType() {
+        return MessageStorageType.RingBufferType;
+    }
+
+    /**
+     * Returns the size of the ring in bytes.
+     */
+    public int getBufferSize() {
+        return capacity;
+    }
+
+    public void push(Message msg, long timestamp) throws MessageStorageException {
+        msg.setTimestamp(timestamp);
+
+        EncodeBuffer buffer = (EncodeBuffer) encodeBuffers.get();
+        buffer.reset();
+        try {
+            codec.encode(msg, buffer);
+        } catch (IOException e) {
+            throw new MessageStorageException("IOException while encoding message "+msg.getId(), e);
+        }
+        int length = buffer.size();
+        int recordSize = headerSize + length;
+        if (recordSize > capacity) {
+            throw new MessageStorageException("Message "+msg.getId()+" is bigger than the ring buffer.");
+        }
+
+        // Claims the space of the record, and of the padding if the record doesn't fit before the end of the ring.
+        long start;
+        long recordStart;
+        long end;
+        for (;;) {
+            start = claimSequence.get();
+            int tail = capacity - position(start);
+            recordStart = (tail < recordSize) ? start + tail : start;
+            end = recordStart + recordSize;
+            if (end - releaseSequence.get() > capacity) {
+                throw new MessageStorageException("Size limit reached.");
+            }
+            if (claimSequence.compareAndSet(start, end)) {
+                break;
+            }
+        }
+
+        ByteBuffer view = buffer.view;
+        if ((recordStart != start) && (recordStart - start >= headerSize)) {
+            view.putInt(position(start) + lengthOffset, paddingLength);
+        }
+        int position = position(recordStart);
+        view.putInt(position + lengthOffset, length);
+        view.putLong(position + timestampOffset, timestamp);
+        view.put(position + stateOffset, (byte) queuedState);
+        buffer.copyTo(position + headerSize);
+
+        // Publishes the records in claim order, the cursor is moved forward by the producer of the previous record.
+        while (cursorSequence.get() != start) {
+            Thread.yield();
+        }
+        count.incrementAndGet();
+        cursorSequence.set(end);
+    }
+
+    public boolean isFifo() {
+        return true;
+    }
+
+    public synchronized Message pop(long timestamp) {
+        long cursor = cursorSequence.get();
+        long sequence = nextQueued(popSequence, cursor);
+        if (sequence >= cursor) {
+            popSequence = sequence;
+            return null;
+        }
+
+        int position = position(sequence);
+        if (readView.getLong(position + timestampOffset) > timestamp) {
+            popSequence = sequence;
+            return null;
+        }
+
+        Message msg = decode(position);
+        readView.put(position + stateOffset, (byte) handlingState);
+        popSequence = next(sequence);
+        if (msg != null) {
+            handling.put(msg.getId(), new Long(sequence));
+        }
+        else {
+            removeRecord(sequence);
+        }
+        return msg;
+    }
+
+    public synchronized Message[] pop(long timestamp, int max) {
+        Vector msgs = new Vector(Math.min(max, 64));
+        Message msg;
+        while ((msgs.size() < max) && ((msg = pop(timestamp)) != null)) {
+            msgs.add(msg);
+        }
+        return (Message[]) msgs.toArray(new Message[msgs.size()]);
+    }
+
+    public synchronized long getNextTimestamp() {
+        long cursor = cursorSequence.get();
+        long sequence = nextQueued(popSequence, cursor);
+        if (sequence >= cursor) {
+            return Long.MAX_VALUE;
+        }
+        return readView.getLong(position(sequence) + timestampOffset);
+    }
+
+    public synchronized void removeMessage(Message msg) throws MessageStorageException {
+        if (msg == null) {
+            throw new MessageStorageException("Null message");
+        }
+
+        Long sequence = (Long) handling.remove(msg.getId());
+        if (sequence == null) {
+            throw new MessageStorageException("Message with ID: "+msg.getId()+" doesn't exist in the storage.");
+        }
+        removeRecord(sequence.longValue());
+    }
+
+    /**
+     * Requeues a message in place: its record is marked as queued again with the new due timestamp and the pop
+     * sequence is moved back to it, so no space is claimed and the size limit is not checked. The record is not
+     * encoded again, changes made to the message after it has been pushed are lost.
+     */
+    public synchronized void requeue(Message msg, long timestamp) throws MessageStorageException {
+        Long sequence = (Long) handling.remove(msg.getId());
+        if (sequence == null) {
+            throw new MessageStorageException("Message with ID: "+msg.getId()+" doesn't exist in the storage.");
+        }
+        msg.setTimestamp(timestamp);
+        int position = position(sequence.longValue());
+        readView.putLong(position + timestampOffset, timestamp);
+        readView.put(position + stateOffset, (byte) queuedState);
+        if (sequence.longValue() < popSequence) {
+            popSequence = sequence.longValue();
+        }
+    }
+
+    public synchronized void removeMessages(Message[] msgs) throws MessageStorageException {
+        super.removeMessages(msgs);
+    }
+
+    public long size() {
+        return count.get();
+    }
+
+    public synchronized void clear() {
+        long cursor = cursorSequence.get();
+        long sequence = releaseSequence.get();
+        long cleared = 0;
+        while ((sequence = skipPadding(sequence, cursor)) < cursor) {
+            if (readView.get(position(sequence) + stateOffset) != removedState) {
+                cleared++;
+            }
+            sequence = next(sequence);
+        }
+        handling.clear();
+        popSequence = cursor;
+        count.addAndGet(-cleared);
+        releaseSequence.set(cursor);
+    }
+
+    public synchronized String[] getMessageList() {
+        Message[] msgs = getAllMessages();
+        String[] ids = new String[msgs.length];
+        for (int i = 0; i < msgs.length; i++) {
+            ids[i] = msgs[i].getId();
+        }
+        return ids;
+    }
+
+    public synchronized Message[] getAllMessages() {
+        Vector msgs = new Vector();
+        collect(releaseSequence.get(), cursorSequence.get(), -1, msgs);
+        return (Message[]) msgs.toArray(new Message[msgs.size()]);
+    }
+
+    public synchronized void printAllMessages(PrintStream stream) {
+        long cursor = cursorSequence.get();
+
+        stream.println("Messages in handling: ");
+        Vector msgs = new Vector();
+        // A requeued record moves the pop sequence back before records in handling.
+        collect(releaseSequence.get(), cursor, handlingState, msgs);
+        for (int i = 0; i < msgs.size(); i++) {
+            stream.println(msgs.get(i));
+        }
+
+        stream.println("Messages in queue: ");
+        msgs.clear();
+        collect(popSequence, cursor, queuedState, msgs);
+        for (int i = 0; i < msgs.size(); i++) {
+            stream.println(msgs.get(i));
+        }
+    }
+
+    /**
+     * Decodes the messages of the records between two sequences.
+     *
+     * @param state the state of the records to decode, -1 for the records not removed.
+     */
+    private void collect(long from, long to, int state, Vector msgs) {
+        long sequence = from;
+        while ((sequence = skipPadding(sequence, to)) < to) {
+            int position = position(sequence);
+            int recordState = readView.get(position + stateOffset);
+            if ((state < 0) ? (recordState != removedState) : (recordState == state)) {
+                Message msg = decode(position);
+                if (msg != null) {
+                    msgs.add(msg);
+                }
+            }
+            sequence = next(sequence);
+        }
+    }
+
+    /**
+     * Marks a record as removed and releases the space of the removed records at the head of the ring.
+     */
+    private void removeRecord(long sequence) {
+        readView.put(position(sequence) + stateOffset, (byte) removedState);
+        count.decrementAndGet();
+
+        long release = releaseSequence.get();
+        long released = release;
+        while ((released = skipPadding(released, popSequence)) < popSequence) {
+            if (readView.get(position(released) + stateOffset) != removedState) {
+                break;
+            }
+            released = next(released);
+        }
+        if (released != release) {
+            releaseSequence.set(released);
+        }
+    }
+
+    private Message decode(int position) {
+        int length = readView.getInt(position + lengthOffset);
+        readStream.setRegion(position + headerSize, length);
+        try {
+            return codec.decode(readStream);
+        } catch (IOException e) {
+            logger.error("IOException decoding a message of storage "+name+". The message is discarded.", e);
+            return null;
+        } finally {
+            readView.clear();
+        }
+    }
+
+    private int position(long sequence) {
+        return (int) (sequence % capacity);
+    }
+
+    /**
+     * Returns the sequence of the first queued record starting at the given sequence, skipping the padding and the
+     * records in handling or removed, or the given limit if there are no queued records before it. Records before the
+     * pop sequence are not queued unless they have been requeued.
+     */
+    private long nextQueued(long sequence, long limit) {
+        while ((sequence = skipPadding(sequence, limit)) < limit) {
+            if (readView.get(position(sequence) + stateOffset) == queuedState) {
+                break;
+            }
+            sequence = next(sequence);
+        }
+        return sequence;
+    }
+
+    /**
+     * Returns the sequence of the first record starting at the given sequence, skipping the padding at the end of the
+     * ring, or the given limit if there are no records before it.
+     */
+    private long skipPadding(long sequence, long limit) {
+        if (sequence >= limit) {
+            return limit;
+        }
+        int position = position(sequence);
+        int tail = capacity - position;
+        if ((tail < headerSize) || (readView.getInt(position + lengthOffset) == paddingLength)) {
+            return Math.min(sequence + tail, limit);
+        }
+        return sequence;
+    }
+
+    /**
+     * Returns the sequence following a record.
+     */
+    private long next(long sequence) {
+        return sequence + headerSize + readView.getInt(position(sequence) + lengthOffset);
+    }
+}
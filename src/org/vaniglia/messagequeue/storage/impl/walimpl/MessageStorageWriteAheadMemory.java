@@ -0,0 +1,729 @@
+/**
+ * Project Vaniglia
+ * User: Michele Aiello
+ *
+ * Copyright (C) 2003/2007  Michele Aiello
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ */
+
+package org.vaniglia.messagequeue.storage.impl.walimpl;
+
+import org.apache.log4j.Logger;
+import org.vaniglia.messagequeue.Message;
+import org.vaniglia.messagequeue.codec.BinaryMessageCodec;
+import org.vaniglia.messagequeue.codec.MessageCodec;
+import org.vaniglia.messagequeue.storage.MessageStorageException;
+import org.vaniglia.messagequeue.storage.MessageStorageType;
+import org.vaniglia.messagequeue.storage.impl.memimpl.MessageStorageHeapMemory;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/**
+ * Memory based storage made durable by a write-ahead log.
+ * Messages are kept in memory as by the MessageStorageHeapMemory, so pops don't touch the disk, and every push and
+ * acknowledgment (removeMessage) is appended to a sequential log file before it is applied. The log is synced to
+ * disk according to the SyncPolicy.
+ *
+ * The live messages are periodically written to a snapshot, when the log grows over the snapshot log size or when
+ * the snapshot interval has elapsed, and the log is restarted. At startup the last snapshot is loaded and only the
+ * log written after it is replayed, so the recovery time is bounded by the number of live messages and by the
+ * snapshot log size. Messages that were in handling are moved back to the storage and will be reprocessed.
+ *
+ * Snapshots and logs are numbered by generation: the snapshot of generation N holds the messages live when the log
+ * of generation N has been started. Snapshots are written to a temporary file and renamed when complete, older
+ * snapshots and logs are deleted only after that.
+ *
+ * Record format (the same of the JournalType): [int length][byte type][body][int crc32 of type and body].
+ */
+public class MessageStorageWriteAheadMemory extends MessageStorageHeapMemory {
+
+    private static final Logger logger = Logger.getLogger(MessageStorageWriteAheadMemory.class);
+
+    private static final String dirExt = ".vmqwal";
+    private static final String logExt = ".vmqlog";
+    private static final String snapshotExt = ".vmqsnap";
+    private static final String tmpExt = ".tmp";
+    private static final String defaultBasepath = "./VMQ";
+
+    public static final long defaultSyncInterval = 100;
+    public static final long defaultSnapshotInterval = 10*60*1000;
+    public static final long defaultSnapshotLogSize = 64*1024*1024;
+
+    private static final long snapshotCheckInterval = 1000;
+
+    private static final byte PUSH = 1;
+    private static final byte ACK = 3;
+    private static final byte END = 4;
+
+    private static final int headerSize = 5;
+    private static final int trailerSize = 4;
+
+    /**
+     * A live message as it has been written in the log.
+     */
+    private static class LogEntry {
+        final long timestamp;
+        final byte[] payload;
+
+        LogEntry(long timestamp, byte[] payload) {
+            this.timestamp = timestamp;
+            this.payload = payload;
+        }
+    }
+
+    private String basepath;
+    private MessageCodec codec;
+    private SyncPolicy syncPolicy;
+    private long syncInterval;
+    private long snapshotInterval;
+    private long snapshotLogSize;
+
+    private File rootDir;
+
+    /**
+     * Live messages (queued and in handling) by id.
+     */
+    private HashMap live = new HashMap();
+
+    private long generation = 0;
+    private FileOutputStream log;
+    private FileChannel logChannel;
+    private long logSize = 0;
+    private long lastSnapshotTime;
+
+    private long appendedBytes = 0;
+    private long syncedBytes = 0;
+    private final Object syncLock = new Object();
+    private final Object snapshotLock = new Object();
+
+    private Timer timer;
+
+    public MessageStorageWriteAheadMemory(String name) {
+        this(name, defaultBasepath);
+    }
+
+    public MessageStorageWriteAheadMemory(String name, String basepath) {
+        this(name, basepath, SyncPolicy.Always, defaultSyncInterval, defaultSnapshotInterval, defaultSnapshotLogSize, null);
+    }
+
+    /**
+     * Class constructor.
+     *
+     * @param name the storage name.
+     * @param basepath the directory where the log and the snapshots are written, null for the default one.
+     * @param syncPolicy the log sync policy.
+     * @param syncInterval the sync interval in milliseconds of the Interval sync policy.
+     * @param snapshotInterval the maximum time in milliseconds between two snapshots, if the log has been written.
+     * @param snapshotLogSize the log size in bytes after which a snapshot is taken.
+     * @param codec the codec used to write the messages, null for the BinaryMessageCodec.
+     */
+    public MessageStorageWriteAheadMemory(String name, String basepath, SyncPolicy syncPolicy, long syncInterval,
+                                         long snapshotInterval, long snapshotLogSize, MessageCodec codec) {
+        super(name);
+        this.basepath = (basepath != null) ? basepath : defaultBasepath;
+        this.syncPolicy = (syncPolicy != null) ? syncPolicy : SyncPolicy.Always;
+        this.syncInterval = (syncInterval > 0) ? syncInterval : defaultSyncInterval;
+        this.snapshotInterval = (snapshotInterval > 0) ? snapshotInterval : defaultSnapshotInterval;
+        this.snapshotLogSize = (snapshotLogSize > 0) ? snapshotLogSize : defaultSnapshotLogSize;
+        this.codec = (codec != null) ? codec : BinaryMessageCodec.getInstance();
+
+        initialize();
+    }
+
+    private void initialize() {
+        rootDir = new File(this.basepath+"/"+this.name+dirExt);
+        if (!rootDir.exists()) {
+            rootDir.mkdirs();
+        }
+
+        long start = System.currentTimeMillis();
+        long snapshotGeneration = -1;
+        long[] snapshots = listGenerations(snapshotExt);
+        for (int i = snapshots.length-1; (i >= 0) && (snapshotGeneration < 0); i--) {
+            try {
+                replay(getFile(snapshots[i], snapshotExt), true);
+                snapshotGeneration = snapshots[i];
+            } catch (IOException e) {
+                logger.error("IOException while reading snapshot "+getFile(snapshots[i], snapshotExt).getAbsolutePath()+". Trying the previous one.", e);
+                live.clear();
+            }
+        }
+
+        long[] logs = listGenerations(logExt);
+        int replayedLogs = 0;
+        for (int i = 0; i < logs.length; i++) {
+            if (logs[i] < snapshotGeneration) {
+                continue;
+            }
+            try {
+                replay(getFile(logs[i], logExt), false);
+                replayedLogs++;
+            } catch (IOException e) {
+                logger.error("IOException while reading log "+getFile(logs[i], logExt).getAbsolutePath(), e);
+            }
+        }
+        if ((snapshotGeneration >= 0) || (replayedLogs > 0)) {
+            logger.info("Storage "+name+" opened with "+live.size()+" messages in "+(System.currentTimeMillis()-start)+" ms ("+replayedLogs+" logs replayed).");
+        }
+
+        Iterator it = live.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry entry = (Map.Entry) it.next();
+            Message msg = decode((String) entry.getKey(), (LogEntry) entry.getValue());
+            if (msg != null) {
+                messages.add(msg);
+            }
+            else {
+                it.remove();
+            }
+        }
+
+        // A new generation is started with a snapshot of the recovered messages, so partially written logs are
+        // never appended and the old files can be deleted.
+        generation = Math.max(snapshotGeneration, (logs.length > 0) ? logs[logs.length-1] : -1) + 1;
+        try {
+            openLog();
+            writeSnapshot(generation, (String[]) live.keySet().toArray(new String[live.size()]),
+                    (LogEntry[]) live.values().toArray(new LogEntry[live.size()]));
+        } catch (IOException e) {
+            logger.error("IOException while starting the log of storage "+name+" in "+rootDir.getAbsolutePath(), e);
+        }
+
+        timer = new Timer(true);
+        if (syncPolicy == SyncPolicy.Interval) {
+            timer.schedule(new TimerTask() {
+                public void run() {
+                    try {
+                        sync(Long.MAX_VALUE);
+                    } catch (MessageStorageException e) {
+                        logger.error(e.getMessage(), e);
+                    }
+                }
+            }, syncInterval, syncInterval);
+        }
+        timer.schedule(new TimerTask() {
+            public void run() {
+                checkSnapshot();
+            }
+        }, snapshotCheckInterval, snapshotCheckInterval);
+    }
+
+    public MessageStorageType getType() {
+        return MessageStorageType.WriteAheadMemoryType;
+    }
+
+    public void push(Message msg, long timestamp) throws MessageStorageException {
+        msg.setTimestamp(timestamp);
+        byte[] payload = encode(msg);
+
+        long position;
+        synchronized (this) {
+            position = append(msg, payload);
+        }
+        commit(position);
+    }
+
+    public void push(Message[] msgs, long[] timestamps) throws MessageStorageException {
+        if (msgs.length != timestamps.length) {
+            throw new MessageStorageException("Messages and timestamps have different lengths.");
+        }
+
+        byte[][] payloads = new byte[msgs.length][];
+        for (int i = 0; i < msgs.length; i++) {
+            msgs[i].setTimestamp(timestamps[i]);
+            payloads[i] = encode(msgs[i]);
+        }
+
+        long position = 0;
+        synchronized (this) {
+            for (int i = 0; i < msgs.length; i++) {
+                position = append(msgs[i], payloads[i]);
+            }
+        }
+        commit(position);
+    }
+
+    /**
+     * Appends a push record to the log and adds the message to the storage.
+     *
+     * @return the log position that must be synced to make the message durable.
+     */
+    private long append(Message msg, byte[] payload) throws MessageStorageException {
+        String id = msg.getId();
+        if (live.containsKey(id)) {
+            throw new MessageStorageException("Message already existent!");
+        }
+
+        LogEntry entry = new LogEntry(msg.getTimestamp(), payload);
+        appendPush(id, entry);
+
+        live.put(id, entry);
+        messages.add(msg);
+        return appendedBytes;
+    }
+
+    private void appendPush(String id, LogEntry entry) throws MessageStorageException {
+        try {
+            ByteArrayOutputStream body = new ByteArrayOutputStream(entry.payload.length + id.length() + 16);
+            DataOutputStream out = new DataOutputStream(body);
+            writePush(out, id, entry);
+            out.flush();
+            appendRecord(PUSH, body.toByteArray());
+        } catch (IOException e) {
+            throw new MessageStorageException("IOException while writing msg: "+id+" on storage "+name, e);
+        }
+    }
+
+    /**
+     * Requeues a message in handling appending a new push record for the same id, that replaces the previous one
+     * when the log is replayed. The message is acknowledged only when it is removed, so it can't be lost.
+     */
+    public void requeue(Message msg, long timestamp) throws MessageStorageException {
+        if (msg == null) {
+            throw new MessageStorageException("Null message");
+        }
+
+        String id = msg.getId();
+        msg.setTimestamp(timestamp);
+        byte[] payload = encode(msg);
+
+        long position;
+        synchronized (this) {
+            if (!handling.containsKey(id)) {
+                throw new MessageStorageException("Message with ID: "+id+" doesn't exist in the storage.");
+            }
+
+            LogEntry entry = new LogEntry(timestamp, payload);
+            appendPush(id, entry);
+
+            handling.remove(id);
+            live.put(id, entry);
+            messages.add(msg);
+            position = appendedBytes;
+        }
+        commit(position);
+    }
+
+    public void removeMessage(Message msg) throws MessageStorageException {
+        long position;
+        synchronized (this) {
+            position = remove(msg);
+        }
+        commit(position);
+    }
+
+    public void removeMessages(Message[] msgs) throws MessageStorageException {
+        MessageStorageException failure = null;
+        long position = 0;
+        synchronized (this) {
+            for (int i = 0; i < msgs.length; i++) {
+                try {
+                    position = remove(msgs[i]);
+                } catch (MessageStorageException e) {
+                    if (failure == null) {
+                        failure = e;
+                    }
+                }
+            }
+        }
+        commit(position);
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Appends an ack record to the log and removes the message from the handling area.
+     *
+     * @return the log position that must be synced to make the acknowledgment durable.
+     */
+    private long remove(Message msg) throws MessageStorageException {
+        super.removeMessage(msg);
+        String id = msg.getId();
+        live.remove(id);
+        try {
+            ByteArrayOutputStream body = new ByteArrayOutputStream(id.length() + 2);
+            DataOutputStream out = new DataOutputStream(body);
+            out.writeUTF(id);
+            out.flush();
+            appendRecord(ACK, body.toByteArray());
+        } catch (IOException e) {
+            throw new MessageStorageException("IOException while writing ack record for msg: "+id, e);
+        }
+        return appendedBytes;
+    }
+
+    public void clear() {
+        synchronized (snapshotLock) {
+            synchronized (this) {
+                super.clear();
+                live.clear();
+                try {
+                    rollLog();
+                    writeSnapshot(generation, new String[0], new LogEntry[0]);
+                } catch (IOException e) {
+                    logger.error("IOException while clearing storage "+name, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Stops the background sync and snapshot tasks and closes the log, after syncing it. The storage must not be
+     * used anymore.
+     */
+    public void close() {
+        synchronized (snapshotLock) {
+            timer.cancel();
+            synchronized (this) {
+                if (log != null) {
+                    try {
+                        logChannel.force(false);
+                        log.close();
+                    } catch (IOException e) {
+                        logger.error("IOException while closing the log of storage "+name, e);
+                    }
+                    log = null;
+                    logChannel = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes a snapshot of the live messages if the log has grown over the snapshot log size or if the snapshot
+     * interval has elapsed.
+     */
+    private void checkSnapshot() {
+        synchronized (snapshotLock) {
+            String[] ids;
+            LogEntry[] entries;
+            long snapshotGeneration;
+            synchronized (this) {
+                long now = System.currentTimeMillis();
+                if (log == null) {
+                    return;
+                }
+                if ((logSize < snapshotLogSize) && ((logSize == 0) || (now - lastSnapshotTime < snapshotInterval))) {
+                    return;
+                }
+                try {
+                    rollLog();
+                } catch (IOException e) {
+                    logger.error("IOException while starting a new log for storage "+name, e);
+                    return;
+                }
+                snapshotGeneration = generation;
+                ids = (String[]) live.keySet().toArray(new String[live.size()]);
+                entries = (LogEntry[]) live.values().toArray(new LogEntry[live.size()]);
+            }
+
+            // The snapshot is written without holding the storage lock, the entries are never modified.
+            try {
+                writeSnapshot(snapshotGeneration, ids, entries);
+            } catch (IOException e) {
+                logger.error("IOException while writing snapshot "+snapshotGeneration+" of storage "+name, e);
+            }
+        }
+    }
+
+    /**
+     * Writes the snapshot of a generation and deletes the older snapshots and logs.
+     */
+    private void writeSnapshot(long snapshotGeneration, String[] ids, LogEntry[] entries) throws IOException {
+        long start = System.currentTimeMillis();
+        File tmpFile = new File(rootDir, getFile(snapshotGeneration, snapshotExt).getName()+tmpExt);
+        FileOutputStream fileOut = new FileOutputStream(tmpFile);
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut, 64*1024));
+            ByteArrayOutputStream body = new ByteArrayOutputStream(256);
+            DataOutputStream bodyOut = new DataOutputStream(body);
+            for (int i = 0; i < ids.length; i++) {
+                body.reset();
+                writePush(bodyOut, ids[i], entries[i]);
+                bodyOut.flush();
+                writeRecord(out, PUSH, body.toByteArray());
+            }
+            body.reset();
+            bodyOut.writeLong(ids.length);
+            bodyOut.flush();
+            writeRecord(out, END, body.toByteArray());
+            out.flush();
+            fileOut.getChannel().force(false);
+        } finally {
+            fileOut.close();
+        }
+
+        if (!tmpFile.renameTo(getFile(snapshotGeneration, snapshotExt))) {
+            throw new IOException("Unable to rename "+tmpFile.getAbsolutePath());
+        }
+        synchronized (this) {
+            lastSnapshotTime = System.currentTimeMillis();
+        }
+        logger.debug("Snapshot "+snapshotGeneration+" of storage "+name+" written with "+ids.length+" messages in "+(System.currentTimeMillis()-start)+" ms.");
+
+        File[] files = rootDir.listFiles();
+        for (int i = 0; i < files.length; i++) {
+            long fileGeneration = parseGeneration(files[i].getName());
+            if ((fileGeneration >= 0) && (fileGeneration < snapshotGeneration)) {
+                files[i].delete();
+            }
+        }
+    }
+
+    private void writePush(DataOutputStream out, String id, LogEntry entry) throws IOException {
+        out.writeUTF(id);
+        out.writeLong(entry.timestamp);
+        out.writeInt(entry.payload.length);
+        out.write(entry.payload);
+    }
+
+    private static void writeRecord(DataOutputStream out, byte type, byte[] body) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(type);
+        crc.update(body);
+        out.writeInt(body.length + 1);
+        out.writeByte(type);
+        out.write(body);
+        out.writeInt((int) crc.getValue());
+    }
+
+    /**
+     * Appends a record to the log with a single write.
+     */
+    private void appendRecord(byte type, byte[] body) throws IOException {
+        if (log == null) {
+            throw new IOException("The log of storage "+name+" is not available.");
+        }
+
+        ByteBuffer record = ByteBuffer.allocate(headerSize + body.length + trailerSize);
+        record.putInt(body.length + 1);
+        record.put(type);
+        record.put(body);
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), 4, body.length + 1);
+        record.putInt((int) crc.getValue());
+
+        log.write(record.array());
+        logSize += record.capacity();
+        appendedBytes += record.capacity();
+    }
+
+    /**
+     * Makes the log durable up to the given position, according to the sync policy. Must not be called holding the
+     * storage lock, so that other threads can append while the log is synced.
+     */
+    private void commit(long position) throws MessageStorageException {
+        if (syncPolicy == SyncPolicy.Always) {
+            sync(position);
+        }
+    }
+
+    /**
+     * Syncs the log up to the given position. Threads waiting to sync are covered by a single fsync.
+     */
+    private void sync(long position) throws MessageStorageException {
+        synchronized (syncLock) {
+            long target;
+            FileChannel channel;
+            synchronized (this) {
+                target = appendedBytes;
+                channel = logChannel;
+            }
+            if ((syncedBytes >= Math.min(position, target)) || (channel == null)) {
+                return;
+            }
+
+            try {
+                channel.force(false);
+            } catch (ClosedChannelException e) {
+                // The log has been rolled (and synced) meanwhile.
+            } catch (IOException e) {
+                throw new MessageStorageException("IOException while syncing the log of storage "+name, e);
+            }
+            syncedBytes = target;
+        }
+    }
+
+    private void openLog() throws IOException {
+        log = new FileOutputStream(getFile(generation, logExt), true);
+        logChannel = log.getChannel();
+        logSize = 0;
+    }
+
+    /**
+     * Closes the current log, after syncing it, and opens the log of the next generation.
+     */
+    private void rollLog() throws IOException {
+        if (log != null) {
+            try {
+                if (syncPolicy != SyncPolicy.OS) {
+                    logChannel.force(false);
+                }
+            } finally {
+                log.close();
+                log = null;
+                logChannel = null;
+            }
+        }
+        generation++;
+        openLog();
+    }
+
+    /**
+     * Reads a snapshot or a log and applies its records to the live messages.
+     *
+     * @param file the file to read.
+     * @param snapshot true if the file is a snapshot: it must be complete.
+     */
+    private void replay(File file, boolean snapshot) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64*1024));
+        try {
+            long position = 0;
+            for (;;) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                if (length <= 0) {
+                    break;
+                }
+
+                byte[] record = new byte[length];
+                int crcValue;
+                try {
+                    in.readFully(record);
+                    crcValue = in.readInt();
+                } catch (EOFException e) {
+                    logger.warn("Truncated record in "+file.getName()+" at position "+position+". The rest of the file is skipped.");
+                    break;
+                }
+                CRC32 crc = new CRC32();
+                crc.update(record);
+                if ((int) crc.getValue() != crcValue) {
+                    logger.warn("Corrupted record in "+file.getName()+" at position "+position+". The rest of the file is skipped.");
+                    break;
+                }
+
+                DataInputStream body = new DataInputStream(new ByteArrayInputStream(record, 1, length - 1));
+                switch (record[0]) {
+                    case PUSH: {
+                        String id = body.readUTF();
+                        long timestamp = body.readLong();
+                        byte[] payload = new byte[body.readInt()];
+                        body.readFully(payload);
+                        live.put(id, new LogEntry(timestamp, payload));
+                        break;
+                    }
+                    case ACK: {
+                        live.remove(body.readUTF());
+                        break;
+                    }
+                    case END: {
+                        if (snapshot) {
+                            return;
+                        }
+                        break;
+                    }
+                    default: {
+                        logger.warn("Unknown record type "+record[0]+" in "+file.getName()+" at position "+position);
+                    }
+                }
+
+                position += 4 + length + trailerSize;
+            }
+
+            if (snapshot) {
+                throw new IOException("Incomplete snapshot "+file.getName());
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private long[] listGenerations(final String ext) {
+        String[] names = rootDir.list(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return name.endsWith(ext);
+            }
+        });
+        long[] generations = new long[names.length];
+        int count = 0;
+        for (int i = 0; i < names.length; i++) {
+            long fileGeneration = parseGeneration(names[i]);
+            if (fileGeneration >= 0) {
+                generations[count++] = fileGeneration;
+            }
+        }
+        long[] result = new long[count];
+        System.arraycopy(generations, 0, result, 0, count);
+        Arrays.sort(result);
+        return result;
+    }
+
+    private File getFile(long fileGeneration, String ext) {
+        String genStr = String.valueOf(fileGeneration);
+        StringBuffer buff = new StringBuffer(20+ext.length());
+        for (int i = genStr.length(); i < 20; i++) {
+            buff.append('0');
+        }
+        return new File(rootDir, buff.append(genStr).append(ext).toString());
+    }
+
+    /**
+     * Returns the generation of a log, snapshot or temporary snapshot file, or -1 for other files.
+     */
+    private static long parseGeneration(String name) {
+        int end = name.indexOf('.');
+        if ((end != 20) || !(name.endsWith(logExt) || name.endsWith(snapshotExt) || name.endsWith(tmpExt))) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(name.substring(0, end));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private byte[] encode(Message msg) throws MessageStorageException {
+        try {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream(256);
+            codec.encode(msg, buffer);
+            return buffer.toByteArray();
+        } catch (IOException e) {
+            throw new MessageStorageException("IOException while encoding msg: "+msg.getId(), e);
+        }
+    }
+
+    private Message decode(String id, LogEntry entry) {
+        try {
+            Message msg = codec.decode(new ByteArrayInputStream(entry.payload));
+            msg.setTimestamp(entry.timestamp);
+            return msg;
+        } catch (IOException e) {
+            logger.error("IOException while reading msg: "+id+". The message is discarded.", e);
+        }
+        return null;
+    }
+}
@@ -0,0 +1,51 @@
+/**
+ * Project Vaniglia
+ * User: Michele Aiello
+ *
+ * Copyright (C) 2003/2007  Michele Aiello
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ */
+
+package org.vaniglia.messagequeue.storage.impl.walimpl;
+
+/**
+ * Enumeration class for the policies used by the MessageStorageWriteAheadMemory to sync its log to disk.
+ *
+ * - Always. Pushes and acknowledgments return only after the log has been synced. Concurrent writes are covered by
+ *           a single sync (group commit). No message is lost in case of crash.
+ *
+ * - Interval. The log is synced by a background thread every sync interval. Messages pushed in the last interval
+ *             can be lost in case of crash of the operating system, but not in case of crash of the application.
+ *
+ * - OS. The log is never synced explicitly, syncing is left to the operating system.
+ */
+public final class SyncPolicy {
+
+    public static final SyncPolicy Always = new SyncPolicy("Always");
+    public static final SyncPolicy Interval = new SyncPolicy("Interval");
+    public static final SyncPolicy OS = new SyncPolicy("OS");
+
+    private final String name;
+
+    private SyncPolicy(String name) {
+        this.name = name;
+    }
+
+    public String toString() {
+        return name;
+    }
+}
@@ -100,6 +100,17 @@ public abstract class AbstractRecordType implements RecordType {
         }
     }
 
+    /**
+     * Sets the value of a field from a character sequence, used by the memory mapped parsing mode.
+     * This implementation converts the sequence to a String, record types whose records can handle the sequence
+     * directly (see Record.setFieldValue(int, CharSequence)) override it.
+     */
+    public void setFieldValue(Record record, int index, CharSequence value)
+            throws InvalidFieldException, InvalidFieldValueException
+    {
+        setFieldValue(record, index, (value != null) ? value.toString() : null);
+    }
+
     public abstract FieldType fieldTypeAt(int index);
 
     protected abstract Record _createRecord();
@@ -39,6 +39,44 @@ public abstract class FieldType {
 
     protected abstract Object _createField(String value) throws InvalidFieldValueException;
 
+    /**
+     * Creates the field object from a not empty character sequence.
+     * The sequence can be a view over a buffer that is reused for the next fields, so implementations must not
+     * keep a reference to it. This implementation converts the sequence to a String, field types that can build
+     * their object directly from the characters should override it.
+     */
+    protected Object _createField(CharSequence value) throws InvalidFieldValueException {
+        return _createField(value.toString());
+    }
+
+    /**
+     * Creates the field object from a character sequence, without converting it to a String if the field has no
+     * preprocessors and its type doesn't need it. See _createField(CharSequence).
+     */
+    public final Object createField(CharSequence value) throws InvalidFieldValueException {
+        if ((value == null) || !preProcessors.isEmpty()) {
+            return createField((value != null) ? value.toString() : null);
+        }
+
+        Object obj;
+        if (value.length() > 0) {
+            obj = _createField(value);
+        }
+        else {
+            obj = _createField(defaultValue);
+        }
+
+        if (!validate(obj)) {
+            if (name != null) {
+                throw new InvalidFieldValueException("The value '"+value+"' is not valid for field "+name);
+            }
+            else {
+                throw new InvalidFieldValueException("The value '"+value+"' is not valid for this field");
+            }
+        }
+        return obj;
+    }
+
     public final Object createField(String value) throws InvalidFieldValueException {
         try {
             value = preprocess(value);
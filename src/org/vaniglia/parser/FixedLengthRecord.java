@@ -39,6 +39,13 @@ public class FixedLengthRecord extends Record {
         fields[index] = type.fieldTypeAt(index).createField(value);
     }
 
+    public void setFieldValue(int index, CharSequence value) throws InvalidFieldException, InvalidFieldValueException {
+        if (index >= fields.length) {
+            throw new InvalidFieldException();
+        }
+        fields[index] = type.fieldTypeAt(index).createField(value);
+    }
+
     public String getValue(int index){
         if ((index >= 0) && (index < fields.length)) {
             Object ret = fields[index];
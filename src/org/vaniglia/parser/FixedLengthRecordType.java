@@ -79,4 +79,10 @@ public class FixedLengthRecordType extends AbstractRecordType {
         ((FixedLengthRecord)record).setFieldValue(index, value);
     }
 
+    public void setFieldValue(Record record, int index, CharSequence value)
+            throws InvalidFieldException, InvalidFieldValueException
+    {
+        ((FixedLengthRecord)record).setFieldValue(index, value);
+    }
+
 }
@@ -0,0 +1,181 @@
+/**
+ * Project Vaniglia
+ * User: Michele Aiello
+ *
+ * Copyright (C) 2003/2007  Michele Aiello
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ */
+package org.vaniglia.parser;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads the lines of a range of a file through a memory mapped window.
+ * The window is moved forward when a line doesn't fit in it, and it is enlarged when a single line is longer than
+ * the window, so files of any size can be read. Lines are terminated by '\n', '\r' or "\r\n", as for
+ * BufferedReader.readLine.
+ *
+ * After nextLine the current line is the range [getLineStart(), getLineEnd()) of getBuffer(). The buffer can change
+ * at every call of nextLine.
+ */
+class MappedLineReader {
+
+    static final int defaultWindowSize = 64 * 1024 * 1024;
+
+    private RandomAccessFile raf;
+    private FileChannel channel;
+
+    /**
+     * End (exclusive) of the range to read.
+     */
+    private long end;
+
+    private int windowSize;
+    private long windowStart;
+    private MappedByteBuffer window;
+
+    /**
+     * Position in the window of the next line.
+     */
+    private int position;
+
+    private int lineStart;
+    private int lineEnd;
+
+    MappedLineReader(File file) throws IOException {
+        this(file, 0, -1, defaultWindowSize);
+    }
+
+    /**
+     * @param file the file to read.
+     * @param start the file position of the first line to read.
+     * @param end the end of the range to read (exclusive), -1 to read up to the end of the file.
+     * @param windowSize the initial size of the mapped window.
+     */
+    MappedLineReader(File file, long start, long end, int windowSize) throws IOException {
+        this.raf = new RandomAccessFile(file, "r");
+        this.channel = raf.getChannel();
+        this.end = (end < 0) ? channel.size() : Math.min(end, channel.size());
+        this.windowSize = windowSize;
+        try {
+            map(Math.min(start, this.end));
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    boolean hasMoreLines() {
+        return windowStart + position < end;
+    }
+
+    /**
+     * Moves to the next line.
+     *
+     * @return false if there are no more lines.
+     */
+    boolean nextLine() throws IOException {
+        while (hasMoreLines()) {
+            int limit = window.limit();
+            boolean lastWindow = (windowStart + limit >= end);
+            int i = position;
+            while ((i < limit) && (window.get(i) != '\n') && (window.get(i) != '\r')) {
+                i++;
+            }
+
+            if (i < limit) {
+                if (window.get(i) == '\n') {
+                    setLine(i, i + 1);
+                    return true;
+                }
+                if (i + 1 < limit) {
+                    setLine(i, (window.get(i + 1) == '\n') ? i + 2 : i + 1);
+                    return true;
+                }
+                if (lastWindow) {
+                    setLine(i, i + 1);
+                    return true;
+                }
+                // The "\r\n" may be split between this window and the next one.
+            }
+            else if (lastWindow) {
+                // Last line without terminator.
+                setLine(limit, limit);
+                return true;
+            }
+
+            if (position == 0) {
+                // The line is longer than the window.
+                if (windowSize == Integer.MAX_VALUE) {
+                    throw new IOException("Line at position "+windowStart+" is too long.");
+                }
+                windowSize = (windowSize > Integer.MAX_VALUE / 2) ? Integer.MAX_VALUE : windowSize * 2;
+            }
+            map(windowStart + position);
+        }
+        return false;
+    }
+
+    ByteBuffer getBuffer() {
+        return window;
+    }
+
+    int getLineStart() {
+        return lineStart;
+    }
+
+    int getLineEnd() {
+        return lineEnd;
+    }
+
+    /**
+     * Returns the position in the file of the next line.
+     */
+    long getPosition() {
+        return windowStart + position;
+    }
+
+    void close() {
+        window = null;
+        try {
+            channel.close();
+        } catch (IOException e) {
+        }
+        try {
+            raf.close();
+        } catch (IOException e) {
+        }
+    }
+
+    private void setLine(int terminatorStart, int nextPosition) {
+        lineStart = position;
+        lineEnd = terminatorStart;
+        position = nextPosition;
+    }
+
+    private void map(long offset) throws IOException {
+        int size = (int) Math.min(windowSize, end - offset);
+        window = channel.map(FileChannel.MapMode.READ_ONLY, offset, size);
+        windowStart = offset;
+        position = 0;
+    }
+}
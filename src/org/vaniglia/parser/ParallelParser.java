@@ -0,0 +1,314 @@
+/**
+ * Project Vaniglia
+ * User: Michele Aiello
+ *
+ * Copyright (C) 2003/2007  Michele Aiello
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ */
+package org.vaniglia.parser;
+
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Parses a file with a pool of threads.
+ * The file is split in chunks of about the configured size, aligned to the line boundaries, and every chunk is
+ * memory mapped and parsed by a thread of the pool with the token, comment and RecordType of the given Parser (see
+ * Parser.setMemoryMapped). The RecordType, with its field types, validators, preprocessors and record processor,
+ * must be thread safe.
+ *
+ * The records are passed to a RecordHandler:
+ * - in the file order (the default), by the thread calling parse. The records of every chunk are kept until all
+ *   the previous chunks have been delivered.
+ * - unordered (see setOrdered), by the pool threads as soon as they are parsed. The handler must be thread safe.
+ *
+ * Lines that can't be parsed are logged and skipped. The recovery file of the Parser is not used.
+ */
+public class ParallelParser {
+
+    private static final Logger logger = Logger.getLogger(ParallelParser.class);
+
+    public static final long DEFAULT_CHUNK_SIZE = 8 * 1024 * 1024;
+    public static final long MIN_CHUNK_SIZE = 64 * 1024;
+
+    private Parser parser;
+    private int threads;
+    private long chunkSize = DEFAULT_CHUNK_SIZE;
+    private boolean ordered = true;
+
+    /**
+     * @param parser the parser that defines the format of the file.
+     * @param threads the number of parsing threads.
+     */
+    public ParallelParser(Parser parser, int threads) throws ParserException {
+        if (threads <= 0) {
+            throw new IllegalArgumentException("The number of threads must be greater than 0.");
+        }
+        parser.checkSingleByteToken();
+        this.parser = parser;
+        this.threads = threads;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    public long getChunkSize() {
+        return chunkSize;
+    }
+
+    public void setChunkSize(long chunkSize) {
+        if (chunkSize < MIN_CHUNK_SIZE) {
+            // Every chunk is mapped separately, too many small mappings would waste memory.
+            throw new IllegalArgumentException("The chunk size must be at least "+MIN_CHUNK_SIZE+" bytes.");
+        }
+        this.chunkSize = chunkSize;
+    }
+
+    public boolean isOrdered() {
+        return ordered;
+    }
+
+    public void setOrdered(boolean ordered) {
+        this.ordered = ordered;
+    }
+
+    /**
+     * Parses a file, passing every record to the handler.
+     *
+     * @return the number of records parsed.
+     *
+     * @throws ParserException if the file can't be read. The runtime exceptions thrown by the handler are
+     * rethrown as they are.
+     */
+    public long parse(String fileName, RecordHandler handler) throws ParserException {
+        File file = new File(fileName);
+        if (!file.isFile()) {
+            throw new ParserException("File '"+fileName+"' not found.");
+        }
+
+        long[] boundaries;
+        try {
+            boundaries = split(file);
+        } catch (IOException e) {
+            throw new ParserException("Unable to read file '"+fileName+"'", e);
+        }
+
+        AtomicLong parsed = new AtomicLong();
+        ExecutorService executor = Executors.newFixedThreadPool(threads, new WorkerFactory(file.getName()));
+        LinkedList pending = new LinkedList();
+        try {
+            int next = 0;
+            while ((next < boundaries.length - 1) || !pending.isEmpty()) {
+                // Keeps a bounded number of chunks in progress, so ordered parsing doesn't load the whole file.
+                while ((next < boundaries.length - 1) && (pending.size() < threads * 2)) {
+                    pending.add(executor.submit(new ChunkTask(file, boundaries[next], boundaries[next + 1],
+                            handler, parsed)));
+                    next++;
+                }
+
+                ArrayList records = (ArrayList) ((Future) pending.removeFirst()).get();
+                if (records != null) {
+                    deliver(records, handler);
+                }
+            }
+        } catch (InterruptedException e) {
+            throw new ParserException("Interrupted while parsing file '"+fileName+"'", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                // Thrown by the handler, as in ordered mode.
+                throw (RuntimeException) e.getCause();
+            }
+            throw new ParserException("Exception parsing file '"+fileName+"'", e.getCause());
+        } finally {
+            for (Iterator iterator = pending.iterator(); iterator.hasNext();) {
+                ((Future) iterator.next()).cancel(true);
+            }
+            executor.shutdownNow();
+        }
+
+        return parsed.get();
+    }
+
+    private void deliver(ArrayList records, RecordHandler handler) {
+        RecordType recordType = parser.getRecordType();
+        for (int i = 0; i < records.size(); i++) {
+            Record record = (Record) records.get(i);
+            try {
+                handler.handleRecord(record);
+            } finally {
+                recordType.releaseRecord(record);
+            }
+        }
+    }
+
+    /**
+     * Splits the file in chunks.
+     *
+     * @return the chunk boundaries: chunk i is [boundaries[i], boundaries[i+1]).
+     */
+    private long[] split(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            long size = raf.length();
+            ArrayList list = new ArrayList();
+            list.add(new Long(0));
+            long boundary = 0;
+            while (size - boundary > chunkSize) {
+                boundary = nextLineStart(raf, boundary + chunkSize, size);
+                if (boundary >= size) {
+                    break;
+                }
+                list.add(new Long(boundary));
+            }
+            list.add(new Long(size));
+
+            long[] boundaries = new long[list.size()];
+            for (int i = 0; i < boundaries.length; i++) {
+                boundaries[i] = ((Long) list.get(i)).longValue();
+            }
+            return boundaries;
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Returns the position of the first line starting at or after the given position.
+     */
+    private static long nextLineStart(RandomAccessFile raf, long position, long size) throws IOException {
+        byte[] buffer = new byte[64 * 1024];
+        // A line starts at position if the previous byte ends a line.
+        long pos = position - 1;
+        while (pos < size) {
+            raf.seek(pos);
+            int read = raf.read(buffer, 0, (int) Math.min(buffer.length, size - pos));
+            if (read <= 0) {
+                break;
+            }
+            for (int i = 0; i < read; i++) {
+                if (buffer[i] == '\n') {
+                    return pos + i + 1;
+                }
+            }
+            pos += read;
+        }
+        return size;
+    }
+
+    private class ChunkTask implements Callable {
+
+        private File file;
+        private long start;
+        private long end;
+        private RecordHandler handler;
+        private AtomicLong parsed;
+
+        ChunkTask(File file, long start, long end, RecordHandler handler, AtomicLong parsed) {
+            this.file = file;
+            this.start = start;
+            this.end = end;
+            this.handler = handler;
+            this.parsed = parsed;
+        }
+
+        /**
+         * @return the records of the chunk in ordered mode, null otherwise.
+         */
+        public Object call() throws IOException {
+            RecordType recordType = parser.getRecordType();
+            ArrayList records = ordered ? new ArrayList() : null;
+            ByteCharSequence view = new ByteCharSequence();
+            int windowSize = (int) Math.min(end - start + 1, MappedLineReader.defaultWindowSize);
+            MappedLineReader reader = new MappedLineReader(file, start, end, windowSize);
+            try {
+                while (reader.nextLine()) {
+                    if (Thread.currentThread().isInterrupted()) {
+                        break;
+                    }
+
+                    ByteBuffer buffer = reader.getBuffer();
+                    int lineStart = reader.getLineStart();
+                    int lineEnd = reader.getLineEnd();
+                    if (!parser.isRecordLine(buffer, lineStart, lineEnd, view)) {
+                        continue;
+                    }
+
+                    Record record = recordType.createRecord();
+                    try {
+                        parser.parseLine(record, buffer, lineStart, lineEnd, view);
+                    } catch (InvalidFieldException e) {
+                        view.set(buffer, lineStart, lineEnd - lineStart);
+                        logger.error("InvalidFieldException. Skipping line '"+view+"' because "+e.getMessage());
+                        recordType.releaseRecord(record);
+                        continue;
+                    } catch (InvalidFieldValueException e) {
+                        view.set(buffer, lineStart, lineEnd - lineStart);
+                        logger.error("InvalidFieldValueException. Skipping line '"+view+"' because "+e.getMessage());
+                        recordType.releaseRecord(record);
+                        continue;
+                    }
+
+                    parsed.incrementAndGet();
+                    if (records != null) {
+                        records.add(record);
+                    }
+                    else {
+                        try {
+                            handler.handleRecord(record);
+                        } finally {
+                            recordType.releaseRecord(record);
+                        }
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+            return records;
+        }
+    }
+
+    private static class WorkerFactory implements ThreadFactory {
+
+        private String name;
+        private int count = 0;
+
+        WorkerFactory(String name) {
+            this.name = name;
+        }
+
+        public synchronized Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "Parser "+name+" "+(count++));
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -24,11 +24,17 @@ package org.vaniglia.parser;
 import org.apache.log4j.Logger;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 
 /**
  * This is a parser for Token Speratated Values (TSV) file.
  * The format of the records in the file is defined via the RecordType.
+ *
+ * In memory mapped mode (see setMemoryMapped) the file opened for getNextRecord is mapped in memory and lines and
+ * tokens are found directly in the mapped bytes. The fields are passed to their FieldType as a reusable
+ * CharSequence view, so no String is created for the fields whose type doesn't need it. In this mode every byte of
+ * the file is a char (ISO-8859-1), so it is meant for ASCII and Latin-1 files.
  */
 public class Parser {
 
@@ -57,6 +63,14 @@ public class Parser {
 
     private boolean flush = false;
 
+    private boolean memoryMapped = false;
+
+    /**
+     * Whether the source line is set in the records (Record.getSourceRecord). In memory mapped mode the source
+     * line is a String created only for this purpose.
+     */
+    private boolean keepSourceRecord = true;
+
     /**
      * The record type for the file to parse.
      */
@@ -72,6 +86,13 @@ public class Parser {
      */
     private BufferedReader reader = null;
 
+    /**
+     * Input file read in memory mapped mode.
+     */
+    private MappedLineReader mappedReader = null;
+
+    private final ByteCharSequence fieldView = new ByteCharSequence();
+
     /**
      * Positions file. This file is used to recover in case of crash.
      */
@@ -82,6 +103,12 @@ public class Parser {
      */
     private long currentPosition;
 
+    /**
+     * Number of lines of the open file consumed so far, including comments, blank lines and invalid lines. It is the
+     * position written in the recovery file, open skips as many lines to resume the parsing.
+     */
+    private long consumedLines;
+
     private Thread shutdownHook = null;
 
     private static class ShutdownRecoveryNotifier implements Runnable {
@@ -124,7 +151,7 @@ public class Parser {
     }
 
     public void setRecovery(int recovery) throws ParserException {
-        if (reader != null) {
+        if (isOpen()) {
             throw new ParserException("File already open, can't change recovery now.");
         }
 
@@ -139,6 +166,32 @@ public class Parser {
         this.flush = flush;
     }
 
+    public boolean isMemoryMapped() {
+        return memoryMapped;
+    }
+
+    /**
+     * Enables the memory mapped mode for the files opened with open. The token must be a single byte char.
+     */
+    public void setMemoryMapped(boolean memoryMapped) throws ParserException {
+        if (isOpen()) {
+            throw new ParserException("File already open, can't change memory mapped mode now.");
+        }
+        if (memoryMapped) {
+            checkSingleByteToken();
+        }
+
+        this.memoryMapped = memoryMapped;
+    }
+
+    public boolean getKeepSourceRecord() {
+        return keepSourceRecord;
+    }
+
+    public void setKeepSourceRecord(boolean keepSourceRecord) {
+        this.keepSourceRecord = keepSourceRecord;
+    }
+
     public boolean deleteRecovery(String filename) {
         File recoveryFile = new File(filename+recoveryFileExtention);
         return recoveryFile.delete();
@@ -153,21 +206,99 @@ public class Parser {
     }
 
     /**
-     * This method opens a file for parsing.
+     * Returns true if the line in the range [start, end) of the buffer is not empty and is not a comment.
      *
-     * @param filename the input file name
-     *
-     * @return the current file position. Usually is 0, but can be different in case of a recovery.
+     * @param view the view used to log the line.
+     */
+    boolean isRecordLine(ByteBuffer buffer, int start, int end, ByteCharSequence view) {
+        if (start == end) {
+            return false;
+        }
+
+        int i = start;
+        while ((i < end) && ((buffer.get(i) & 0xff) <= ' ')) {
+            i++;
+        }
+        boolean isComment = (i < end) && ((char) (buffer.get(i) & 0xff) == comment);
+        if ((logger.isDebugEnabled()) && (isComment)) {
+            view.set(buffer, start, end - start);
+            logger.debug("The line '"+view+"' is a comment");
+        }
+        return !isComment;
+    }
+
+    /**
+     * Parses the line in the range [start, end) of the buffer into the given record.
+     * This method doesn't change the parser state, so it can be called by many threads at the same time, each
+     * with its own view, if the RecordType is thread safe.
      *
-     * @throws ParserException if the input file can't be found or can't be opened.
+     * @param view the view used to pass the fields to the RecordType.
      */
-    public long open(String filename) throws ParserException {
+    void parseLine(Record record, ByteBuffer buffer, int start, int end, ByteCharSequence view)
+            throws InvalidFieldException, InvalidFieldValueException
+    {
+        if (keepSourceRecord) {
+            view.set(buffer, start, end - start);
+            record.setSourceRecord(view.toString());
+        }
+        byte tokenByte = (byte) token;
+        int nextFieldBegin = start;
+        int fieldIndex = recordType.getNextNonConstantFieldIndex(-1);
+        for (int i = start; i < end; i++) {
+            if (buffer.get(i) == tokenByte) {
+                setFieldValue(record, fieldIndex, view, buffer, nextFieldBegin, i);
+                fieldIndex = recordType.getNextNonConstantFieldIndex(fieldIndex);
+                nextFieldBegin = i + 1;
+            }
+        }
+        setFieldValue(record, fieldIndex, view, buffer, nextFieldBegin, end);
+        recordType.initConstantFields(record);
+
+        recordType.postProcessRecord(record);
+    }
+
+    /**
+     * Checks that the token can be found in the bytes of the file.
+     */
+    void checkSingleByteToken() throws ParserException {
+        if (token > 0xff) {
+            throw new ParserException("The token must be a single byte char in memory mapped mode.");
+        }
+    }
+
+    RecordType getRecordType() {
+        return recordType;
+    }
+
+    private boolean isOpen() {
+        return (reader != null) || (mappedReader != null);
+    }
+
+    private void closeReaders() {
         if (reader != null) {
             try {
                 reader.close();
             } catch (IOException e) {
             }
         }
+        if (mappedReader != null) {
+            mappedReader.close();
+        }
+        this.reader = null;
+        this.mappedReader = null;
+    }
+
+    /**
+     * This method opens a file for parsing.
+     *
+     * @param filename the input file name
+     *
+     * @return the current file position, in lines. Usually is 0, but can be different in case of a recovery.
+     *
+     * @throws ParserException if the input file can't be found or can't be opened.
+     */
+    public long open(String filename) throws ParserException {
+        closeReaders();
 
         if (recoveryFileStream != null) {
             try {
@@ -184,17 +315,30 @@ public class Parser {
         }
 
         this.filename = filename;
-        this.reader = null;
         this.recoveryFileStream = null;
         this.shutdownHook = null;
 
-        try {
-            reader = new BufferedReader(new FileReader(this.filename));
-        } catch (FileNotFoundException e) {
-            throw new ParserException("File '"+filename+"' not found.");
+        if (memoryMapped) {
+            File file = new File(this.filename);
+            if (!file.isFile()) {
+                throw new ParserException("File '"+filename+"' not found.");
+            }
+            try {
+                mappedReader = new MappedLineReader(file);
+            } catch (IOException e) {
+                throw new ParserException("Unable to map file '"+filename+"'", e);
+            }
+        }
+        else {
+            try {
+                reader = new BufferedReader(new FileReader(this.filename));
+            } catch (FileNotFoundException e) {
+                throw new ParserException("File '"+filename+"' not found.");
+            }
         }
 
         currentPosition = 0;
+        consumedLines = 0;
 
         File recoveryFile = new File(this.filename+recoveryFileExtention);
         if (recoveryFile.exists()) {
@@ -208,20 +352,25 @@ public class Parser {
 
             try {
                 for (;;)
-                    currentPosition = positionsFileReader.readLong();
+                    consumedLines = positionsFileReader.readLong();
             } catch (IOException e) {
             }
 
-            logger.info("Recovering from position: "+currentPosition);
+            logger.info("Recovering from position: "+consumedLines);
 
             try {
                 positionsFileReader.close();
             } catch (IOException e) {
             }
 
-            for (int i = 0; i < currentPosition; i++) {
+            for (int i = 0; i < consumedLines; i++) {
                 try {
-                    reader.readLine();
+                    if (mappedReader != null) {
+                        mappedReader.nextLine();
+                    }
+                    else {
+                        reader.readLine();
+                    }
                 } catch (IOException e) {
                     e.printStackTrace();
                 }
@@ -247,14 +396,18 @@ public class Parser {
             recoveryFile.delete();
         }
 
-        return currentPosition;
+        return consumedLines;
     }
 
     public boolean hasMoreRecords() throws ParserException {
-        if (reader == null) {
+        if (!isOpen()) {
             throw new ParserException("No file open");
         }
 
+        if (mappedReader != null) {
+            return mappedReader.hasMoreLines();
+        }
+
         boolean retValue = false;
         try {
             retValue = reader.ready();
@@ -266,16 +419,43 @@ public class Parser {
     }
 
     public Record getNextRecord() throws ParserException, InvalidFieldValueException {
-        if (reader == null) {
+        try {
+            return getNextRecord(false);
+        } catch (InvalidFieldException e) {
+            // Not thrown when not strict.
+            return null;
+        } catch (IOException e) {
+            // Not thrown when not strict.
+            return null;
+        }
+    }
+
+    /**
+     * Reads the next record.
+     *
+     * @param strict if true the InvalidFieldExceptions and IOExceptions are thrown and the record of an invalid line
+     * is released, otherwise they are printed and the record is returned as it is (or null on IOException).
+     *
+     * @return the next record, null at the end of the file.
+     */
+    private Record getNextRecord(boolean strict)
+            throws ParserException, InvalidFieldException, InvalidFieldValueException, IOException
+    {
+        if (!isOpen()) {
             throw new ParserException("No file opened");
         }
 
+        if (mappedReader != null) {
+            return getNextMappedRecord(strict);
+        }
+
         Record record = null;
         String buff = null;
         try {
             do {
                 buff = reader.readLine();
                 if (buff == null) return null;
+                consumedLines++;
             } while ((buff.length() == 0) || isComment(buff));
 
             int nextFieldBegin = 0;
@@ -300,11 +480,21 @@ public class Parser {
                 }
             }
         } catch (InvalidFieldException e) {
+            if (strict) {
+                recordType.releaseRecord(record);
+                throw e;
+            }
             e.printStackTrace();
         } catch (InvalidFieldValueException e) {
+            if (strict) {
+                recordType.releaseRecord(record);
+            }
             e.setSource(buff);
             throw e;
         } catch (IOException e) {
+            if (strict) {
+                throw e;
+            }
             e.printStackTrace();
         } catch(NullPointerException e) {
             e.printStackTrace();
@@ -313,6 +503,66 @@ public class Parser {
         return record;
     }
 
+    private Record getNextMappedRecord(boolean strict)
+            throws InvalidFieldException, InvalidFieldValueException, IOException
+    {
+        Record record = null;
+        ByteBuffer buffer = null;
+        int lineStart = 0;
+        int lineEnd = 0;
+        try {
+            do {
+                if (!mappedReader.nextLine()) return null;
+                consumedLines++;
+                buffer = mappedReader.getBuffer();
+                lineStart = mappedReader.getLineStart();
+                lineEnd = mappedReader.getLineEnd();
+            } while (!isRecordLine(buffer, lineStart, lineEnd, fieldView));
+
+            record = recordType.createRecord();
+            parseLine(record, buffer, lineStart, lineEnd, fieldView);
+            currentPosition++;
+            if (recoveryFileStream != null) {
+                if ((currentPosition % recovery) == 0) {
+                    updatePositionFile(flush);
+                }
+            }
+        } catch (InvalidFieldException e) {
+            if (strict) {
+                recordType.releaseRecord(record);
+                throw e;
+            }
+            e.printStackTrace();
+        } catch (InvalidFieldValueException e) {
+            if (strict) {
+                recordType.releaseRecord(record);
+            }
+            fieldView.set(buffer, lineStart, lineEnd - lineStart);
+            e.setSource(fieldView.toString());
+            throw e;
+        } catch (IOException e) {
+            if (strict) {
+                throw e;
+            }
+            e.printStackTrace();
+        }
+
+        return record;
+    }
+
+    private void setFieldValue(Record record, int fieldIndex, ByteCharSequence view, ByteBuffer buffer, int start,
+                               int end)
+            throws InvalidFieldException, InvalidFieldValueException
+    {
+        view.set(buffer, start, end - start);
+        if (recordType instanceof AbstractRecordType) {
+            ((AbstractRecordType) recordType).setFieldValue(record, fieldIndex, view);
+        }
+        else {
+            recordType.setFieldValue(record, fieldIndex, view.toString());
+        }
+    }
+
     public Record parseString(String value) throws InvalidFieldValueException {
         Record record = null;
         if (value.length() == 0) return null;
@@ -393,7 +643,7 @@ public class Parser {
 
     private synchronized void updatePositionFile(boolean flush) throws IOException {
         if (recoveryFileStream != null) {
-            recoveryFileStream.writeLong(currentPosition);
+            recoveryFileStream.writeLong(consumedLines);
             if (flush) {
                 recoveryFileStream.flush();
             }
@@ -401,24 +651,34 @@ public class Parser {
     }
 
     public void close() throws ParserException {
-        if (reader == null) {
+        if (!isOpen()) {
             throw new ParserException("No file open");
         }
 
-        try {
-            reader.close();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+        close(true);
+    }
+
+    /**
+     * Closes the open file.
+     *
+     * @param deleteRecovery false to keep the recovery file, so that the parsing can be resumed.
+     */
+    private void close(boolean deleteRecovery) {
+        closeReaders();
 
         if (recoveryFileStream != null) {
             try {
+                if (!deleteRecovery) {
+                    updatePositionFile(true);
+                }
                 recoveryFileStream.close();
             } catch (IOException e) {
             }
 
-            File recoveryFile = new File(this.filename+ recoveryFileExtention);
-            recoveryFile.delete();
+            if (deleteRecovery) {
+                File recoveryFile = new File(this.filename+ recoveryFileExtention);
+                recoveryFile.delete();
+            }
         }
 
         if (shutdownHook != null) {
@@ -426,11 +686,71 @@ public class Parser {
         }
 
         this.filename = null;
-        this.reader = null;
         this.recoveryFileStream = null;
         this.shutdownHook = null;
     }
 
+    /**
+     * Parses a file passing the records to the handler one at a time, so the records of the file are never all in
+     * memory. Every record is released to the RecordType pool as soon as the handler returns.
+     * The file is read as with open and getNextRecord, so the memory mapped mode and the recovery file are used if
+     * enabled. If the handler throws an exception the file is closed keeping the recovery file, so the parsing
+     * can be resumed from the record that failed. Lines that can't be parsed are logged and skipped.
+     *
+     * @return the number of records passed to the handler.
+     *
+     * @throws ParserException if the file can't be opened or read.
+     */
+    public long parse(String fileName, RecordHandler handler) throws ParserException {
+        open(fileName);
+
+        long count = 0;
+        boolean completed = false;
+        try {
+            for (;;) {
+                Record record;
+                try {
+                    record = getNextRecord(true);
+                } catch (InvalidFieldException e) {
+                    logger.error("InvalidFieldException. Skipping line "+consumedLines+" because "+e.getMessage());
+                    continue;
+                } catch (InvalidFieldValueException e) {
+                    logger.error("InvalidFieldValueException. Skipping line "+consumedLines+" because "+e.getMessage());
+                    continue;
+                } catch (IOException e) {
+                    throw new ParserException("Unable to read file '"+fileName+"'", e);
+                }
+                if (record == null) {
+                    break;
+                }
+
+                boolean handled = false;
+                try {
+                    handler.handleRecord(record);
+                    handled = true;
+                } finally {
+                    recordType.releaseRecord(record);
+                    if (!handled) {
+                        // The record will be parsed again when the parsing is resumed, the lines before it are not.
+                        currentPosition--;
+                        consumedLines--;
+                    }
+                }
+                count++;
+            }
+            completed = true;
+        } finally {
+            close(completed);
+        }
+
+        return count;
+    }
+
+    /**
+     * Parses a whole file, returning all its records.
+     * All the records are kept in memory at the same time, parse(String, RecordHandler) should be used for large
+     * files.
+     */
     public Record[] parse(String fileName) throws ParserException {
         BufferedReader reader = null;
         try {
@@ -191,6 +191,12 @@ public class ParserConfigurator {
             flush = false;
         }
 
+        boolean memoryMapped = false;
+        String memoryMappedStr = parserElement.getAttribute("memoryMapped");
+        if (memoryMappedStr.length() > 0) {
+            memoryMapped = Boolean.valueOf(memoryMappedStr).booleanValue();
+        }
+
         RecordType recordType = null;
 
         NodeList fixedLenghtRecordTypeList = parserElement.getElementsByTagName("FixedLenghtRecordType");
@@ -363,6 +369,11 @@ public class ParserConfigurator {
 
         Parser parser = new Parser(recordType, token, comment, recovery);
         parser.setFlush(flush);
+        try {
+            parser.setMemoryMapped(memoryMapped);
+        } catch (ParserException e) {
+            throw new ParserConfigurationException(e);
+        }
         return parser;
     }
 
@@ -50,6 +50,14 @@ public abstract class Record {
 
     public abstract void setFieldValue(int index, String value) throws InvalidFieldException, InvalidFieldValueException;
 
+    /**
+     * Sets the value of a field from a character sequence. The sequence can be a view over a buffer that is reused
+     * for the next fields, so it must not be kept. This implementation converts the sequence to a String.
+     */
+    public void setFieldValue(int index, CharSequence value) throws InvalidFieldException, InvalidFieldValueException {
+        setFieldValue(index, (value != null) ? value.toString() : null);
+    }
+
     public void setFieldValue(String name, String value) throws InvalidFieldException, InvalidFieldValueException {
         int index = type.getIndexOfField(name);
         if (index >= 0) {
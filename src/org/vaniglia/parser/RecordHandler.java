@@ -0,0 +1,38 @@
+/**
+ * Project Vaniglia
+ * User: Michele Aiello
+ *
+ * Copyright (C) 2003/2007  Michele Aiello
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ */
+package org.vaniglia.parser;
+
+/**
+ * Receives the records parsed by Parser.parse(String, RecordHandler) or by a ParallelParser.
+ */
+public interface RecordHandler {
+
+    /**
+     * Handles a parsed record.
+     * The record is released to its RecordType pool as soon as this method returns, so it must not be kept after
+     * the call: the values needed later must be copied.
+     *
+     * @param record the parsed record.
+     */
+    void handleRecord(Record record);
+
+}
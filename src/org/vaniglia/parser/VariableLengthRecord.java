@@ -34,14 +34,24 @@ public class VariableLengthRecord extends Record {
     }
 
     public void setFieldValue(int index, String value) throws InvalidFieldValueException {
+        ensureCapacity(index);
+        fields[index] = type.fieldTypeAt(index).createField(value);
+        lastFieldIndex = (index>lastFieldIndex)?index:lastFieldIndex;
+    }
+
+    public void setFieldValue(int index, CharSequence value) throws InvalidFieldValueException {
+        ensureCapacity(index);
+        fields[index] = type.fieldTypeAt(index).createField(value);
+        lastFieldIndex = (index>lastFieldIndex)?index:lastFieldIndex;
+    }
+
+    private void ensureCapacity(int index) {
         if (index >= fields.length) {
             int newDim = (fields.length==0)?(index+1):(Math.max(fields.length*2, index+1));
             Object[] newArray = new Object[newDim];
             System.arraycopy(fields, 0, newArray, 0, fields.length);
             fields = newArray;
         }
-        fields[index] = type.fieldTypeAt(index).createField(value);
-        lastFieldIndex = (index>lastFieldIndex)?index:lastFieldIndex;
     }
 
     public String getValue(int index){
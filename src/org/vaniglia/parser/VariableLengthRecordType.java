@@ -81,6 +81,12 @@ public class VariableLengthRecordType extends AbstractRecordType {
         ((VariableLengthRecord)record).setFieldValue(index, value);
     }
 
+    public void setFieldValue(Record record, int index, CharSequence value)
+            throws InvalidFieldException, InvalidFieldValueException
+    {
+        ((VariableLengthRecord)record).setFieldValue(index, value);
+    }
+
     protected Record _createRecord() {
         return new VariableLengthRecord(this);
     }
@@ -71,4 +71,32 @@ public class BooleanType extends FieldType {
         }
     }
 
+    protected Object _createField(CharSequence value) {
+        int start = 0;
+        int end = value.length();
+        if (trim) {
+            while ((start < end) && (value.charAt(start) <= ' ')) {
+                start++;
+            }
+            while ((end > start) && (value.charAt(end-1) <= ' ')) {
+                end--;
+            }
+        }
+
+        if ((trueValue == null) || (trueValue.length() != end - start)) {
+            return Boolean.FALSE;
+        }
+
+        for (int i = 0; i < trueValue.length(); i++) {
+            char c1 = value.charAt(start + i);
+            char c2 = trueValue.charAt(i);
+            if ((c1 != c2) && (!ignoreCase || ((Character.toUpperCase(c1) != Character.toUpperCase(c2)) &&
+                    (Character.toLowerCase(c1) != Character.toLowerCase(c2)))))
+            {
+                return Boolean.FALSE;
+            }
+        }
+        return Boolean.TRUE;
+    }
+
 }
@@ -57,4 +57,20 @@ public class CharType extends FieldType {
         }
     }
 
+    protected Object _createField(CharSequence value) {
+        int i = 0;
+        if (trim) {
+            while ((i < value.length()) && (value.charAt(i) <= ' ')) {
+                i++;
+            }
+        }
+
+        if (i < value.length()) {
+            return new Character(value.charAt(i));
+        }
+        else {
+            return null;
+        }
+    }
+
 }
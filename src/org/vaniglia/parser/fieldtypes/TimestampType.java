@@ -76,11 +76,7 @@ public class TimestampType extends FieldType {
             } catch (NumberFormatException e) {
                 throw new InvalidFieldValueException(value+" is not a valid timestamp.");
             }
-            if (!isJavaTimestamp) {
-                millis = millis * 1000;
-            }
-
-            date = new Date(millis);
+            date = createDate(millis);
         }
 
         if (date != null) {
@@ -91,4 +87,50 @@ public class TimestampType extends FieldType {
         }
     }
 
+    protected Object _createField(CharSequence value) throws InvalidFieldValueException {
+        int start = 0;
+        int end = value.length();
+        while ((start < end) && (value.charAt(start) <= ' ')) {
+            start++;
+        }
+        while ((end > start) && (value.charAt(end-1) <= ' ')) {
+            end--;
+        }
+        if (start == end) {
+            return null;
+        }
+
+        // Same as Long.parseLong, without creating the String.
+        int i = start;
+        boolean negative = false;
+        char first = value.charAt(i);
+        if ((first == '-') || (first == '+')) {
+            negative = (first == '-');
+            i++;
+            if (i == end) {
+                throw new InvalidFieldValueException(value.subSequence(start, end)+" is not a valid timestamp.");
+            }
+        }
+
+        long limit = negative ? Long.MIN_VALUE : -Long.MAX_VALUE;
+        long multmin = limit / 10;
+        long result = 0;
+        for (; i < end; i++) {
+            int digit = value.charAt(i) - '0';
+            if ((digit < 0) || (digit > 9) || (result < multmin) || (result * 10 < limit + digit)) {
+                throw new InvalidFieldValueException(value.subSequence(start, end)+" is not a valid timestamp.");
+            }
+            result = result * 10 - digit;
+        }
+
+        return new DateField(createDate(negative ? result : -result), outputFormat);
+    }
+
+    private Date createDate(long millis) {
+        if (!isJavaTimestamp) {
+            millis = millis * 1000;
+        }
+        return new Date(millis);
+    }
+
 }
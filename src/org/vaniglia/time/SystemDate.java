@@ -23,7 +23,7 @@ package org.vaniglia.time;
 
 public class SystemDate {
 
-	private static SystemDate _instance;
+	private static final SystemDate _instance = new SystemDate();
 
 	private long baseTime = -1;
 	private long timeOfBaseTime = -1;
@@ -32,10 +32,7 @@ public class SystemDate {
 	private SystemDate() {
 	}
 
-	public static synchronized final SystemDate getInstance() {
-		if (_instance == null) {
-			_instance = new SystemDate();
-		}
+	public static final SystemDate getInstance() {
 		return _instance;
 	}
 
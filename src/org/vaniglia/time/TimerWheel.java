@@ -0,0 +1,229 @@
+/**
+ * Project Vaniglia
+ * User: Michele Aiello
+ *
+ * Copyright (C) 2003/2007  Michele Aiello
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ */
+package org.vaniglia.time;
+
+import org.apache.log4j.Logger;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * A hashed timer wheel for large numbers of short lived timeouts.
+ * The wheel is an array of buckets that is swept by a single thread, one bucket per tick. A timeout is put in the
+ * bucket it expires in, with the number of whole turns of the wheel it has still to wait, so scheduling and
+ * cancelling a timeout are O(1) regardless of the number of pending timeouts, while a java.util.Timer would keep
+ * them in a heap. The price is precision: timeouts expire on the first tick after their delay.
+ *
+ * Expired tasks are run by the wheel thread, so they must be short. Cancelled timeouts are removed from their bucket
+ * the next time the bucket is swept.
+ */
+public class TimerWheel {
+
+    private static final Logger logger = Logger.getLogger(TimerWheel.class);
+
+    private static final int pending = 0;
+    private static final int cancelled = 1;
+    private static final int expired = 2;
+
+    /**
+     * A task scheduled on the wheel.
+     */
+    public static final class Timeout {
+
+        private final Runnable task;
+        private final long deadline;
+        private long rounds;
+        private int state = pending;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Cancels the timeout.
+         *
+         * @return true if the timeout has been cancelled, false if it was already expired or cancelled.
+         */
+        public synchronized boolean cancel() {
+            if (state != pending) {
+                return false;
+            }
+            state = cancelled;
+            return true;
+        }
+
+        public synchronized boolean isCancelled() {
+            return state == cancelled;
+        }
+
+        public synchronized boolean isExpired() {
+            return state == expired;
+        }
+
+        private synchronized boolean expire() {
+            if (state != pending) {
+                return false;
+            }
+            state = expired;
+            return true;
+        }
+    }
+
+    private final long tickMillis;
+    private final LinkedList[] buckets;
+
+    /**
+     * Timeouts scheduled since the last tick. They are moved to their buckets by the wheel thread, so the buckets
+     * are accessed by the wheel thread only.
+     */
+    private final LinkedList newTimeouts = new LinkedList();
+
+    private final Thread worker;
+    private final long startTime;
+    private long tick = 0;
+    private volatile boolean running = true;
+
+    /**
+     * Creates and starts a timer wheel.
+     *
+     * @param name the name of the wheel thread.
+     * @param tickMillis the duration of a tick, that is the precision of the wheel.
+     * @param wheelSize the number of buckets. Timeouts longer than tickMillis*wheelSize are kept in the wheel for
+     * more than one turn.
+     */
+    public TimerWheel(String name, long tickMillis, int wheelSize) {
+        if (tickMillis < 1) {
+            throw new IllegalArgumentException("Invalid tick duration: "+tickMillis);
+        }
+        if (wheelSize < 1) {
+            throw new IllegalArgumentException("Invalid wheel size: "+wheelSize);
+        }
+        this.tickMillis = tickMillis;
+        this.buckets = new LinkedList[wheelSize];
+        for (int i = 0; i < wheelSize; i++) {
+            buckets[i] = new LinkedList();
+        }
+
+        startTime = System.currentTimeMillis();
+        worker = new Thread(new Runnable() {
+            public void run() {
+                sweep();
+            }
+        }, name);
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    public long getTickMillis() {
+        return tickMillis;
+    }
+
+    /**
+     * Schedules a task.
+     *
+     * @param task the task to run when the timeout expires.
+     * @param delayMillis the delay after which the timeout expires.
+     *
+     * @return the timeout, that can be used to cancel the task.
+     */
+    public Timeout schedule(Runnable task, long delayMillis) {
+        if (!running) {
+            throw new IllegalStateException("Timer wheel stopped.");
+        }
+        Timeout timeout = new Timeout(task, System.currentTimeMillis() + Math.max(delayMillis, 0) - startTime);
+        synchronized (newTimeouts) {
+            newTimeouts.add(timeout);
+        }
+        return timeout;
+    }
+
+    /**
+     * Stops the wheel. Pending timeouts never expire.
+     */
+    public void stop() {
+        running = false;
+        worker.interrupt();
+    }
+
+    private void sweep() {
+        while (running) {
+            long tickDeadline = (tick + 1) * tickMillis;
+            long sleep = tickDeadline - (System.currentTimeMillis() - startTime);
+            if (sleep > 0) {
+                try {
+                    Thread.sleep(sleep);
+                } catch (InterruptedException e) {
+                    continue;
+                }
+            }
+
+            transferNewTimeouts();
+
+            LinkedList bucket = buckets[(int) (tick % buckets.length)];
+            Iterator it = bucket.iterator();
+            while (it.hasNext()) {
+                Timeout timeout = (Timeout) it.next();
+                if (timeout.isCancelled()) {
+                    it.remove();
+                }
+                else if (timeout.rounds > 0) {
+                    timeout.rounds--;
+                }
+                else {
+                    it.remove();
+                    if (timeout.expire()) {
+                        try {
+                            timeout.task.run();
+                        } catch (Throwable e) {
+                            logger.error("Exception running an expired timeout task", e);
+                        }
+                    }
+                }
+            }
+            tick++;
+        }
+    }
+
+    private void transferNewTimeouts() {
+        LinkedList timeouts;
+        synchronized (newTimeouts) {
+            if (newTimeouts.isEmpty()) {
+                return;
+            }
+            timeouts = new LinkedList(newTimeouts);
+            newTimeouts.clear();
+        }
+
+        Iterator it = timeouts.iterator();
+        while (it.hasNext()) {
+            Timeout timeout = (Timeout) it.next();
+            if (timeout.isCancelled()) {
+                continue;
+            }
+            // The tick the timeout expires on, never in the past.
+            long expiryTick = Math.max((timeout.deadline + tickMillis - 1) / tickMillis - 1, tick);
+            timeout.rounds = (expiryTick - tick) / buckets.length;
+            buckets[(int) (expiryTick % buckets.length)].add(timeout);
+        }
+    }
+}
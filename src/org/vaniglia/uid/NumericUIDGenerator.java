@@ -0,0 +1,133 @@
+/**
+ * Project Vaniglia
+ * User: Michele Aiello
+ *
+ * Copyright (C) 2003/2007  Michele Aiello
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ */
+
+package org.vaniglia.uid;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Thread safe generator of numeric unique identifiers.
+ *
+ * The identifiers are positive longs taken from a global counter that starts, when the generator is created, from
+ * the current time in milliseconds shifted left by 20 bits. Identifiers are therefore increasing and unique also
+ * across restarts of the application, as long as less than about one million identifiers per millisecond are
+ * generated on average.
+ *
+ * To avoid contention on the global counter every thread reserves a block of identifiers at a time and then hands
+ * them out from its own block, so identifiers generated by different threads are unique but not ordered among
+ * themselves. Generating an identifier doesn't allocate any object: the String form of an identifier (see
+ * toString) can be rendered only when it is actually needed.
+ */
+public class NumericUIDGenerator {
+
+    private static final int timestampShift = 20;
+
+    private static final NumericUIDGenerator _instance = new NumericUIDGenerator();
+
+    private final AtomicLong counter;
+    private final int blockSize;
+
+    /**
+     * Per thread block of identifiers: the next identifier and the end (exclusive) of the block.
+     */
+    private final ThreadLocal blocks = new ThreadLocal() {
+        protected Object initialValue() {
+            return new long[2];
+        }
+    };
+
+    public static NumericUIDGenerator getInstance() {
+        return _instance;
+    }
+
+    public NumericUIDGenerator() {
+        this(1024);
+    }
+
+    /**
+     * @param blockSize the number of identifiers reserved by a thread at a time.
+     */
+    public NumericUIDGenerator(int blockSize) {
+        if (blockSize <= 0) {
+            throw new IllegalArgumentException("The block size must be greater than 0.");
+        }
+        this.blockSize = blockSize;
+        this.counter = new AtomicLong(System.currentTimeMillis() << timestampShift);
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    /**
+     * Returns a new identifier. The identifier is always greater than 0.
+     */
+    public long nextUid() {
+        long[] block = (long[]) blocks.get();
+        if (block[0] == block[1]) {
+            block[0] = counter.getAndAdd(blockSize);
+            block[1] = block[0] + blockSize;
+        }
+        return block[0]++;
+    }
+
+    /**
+     * Returns a new identifier in its String form.
+     */
+    public String getUid() {
+        return toString(nextUid());
+    }
+
+    /**
+     * Renders an identifier as a String. The String form is the decimal representation of the identifier.
+     */
+    public static String toString(long uid) {
+        return Long.toString(uid);
+    }
+
+    /**
+     * Parses the String form of an identifier.
+     *
+     * @return the identifier, or -1 if the String is not the String form of an identifier generated by this class
+     * (i.e. it is not a canonical decimal representation of a positive long).
+     */
+    public static long parse(String uid) {
+        int length = (uid != null) ? uid.length() : 0;
+        if ((length == 0) || (length > 19) || (uid.charAt(0) == '0')) {
+            return -1;
+        }
+
+        long value = 0;
+        for (int i = 0; i < length; i++) {
+            int digit = uid.charAt(i) - '0';
+            if ((digit < 0) || (digit > 9)) {
+                return -1;
+            }
+            value = value * 10 + digit;
+            if (value < 0) {
+                // Overflow
+                return -1;
+            }
+        }
+        return value;
+    }
+}